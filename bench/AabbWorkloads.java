@@ -0,0 +1,82 @@
+import java.util.Random;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import benchmarks.AabbBenchmark;
+import benchmarks.Workload;
+
+// The work for benchmarks.AabbBenchmark: NUM_RAYS random rays, each tested against the same NUM_BOXES random boxes.
+public class AabbWorkloads implements Workload.Factory {
+    private static final int NUM_BOXES = AabbBenchmark.NUM_BOXES;
+    private static final int NUM_RAYS = AabbBenchmark.NUM_RAYS;
+
+    private final Aabb[] _boxes = new Aabb[NUM_BOXES];
+    private final Plane[][] _boxPlanes = new Plane[NUM_BOXES][];
+    private final Ray[] _rays = new Ray[NUM_RAYS];
+
+    public AabbWorkloads() {
+        Random random = new Random(235);
+        for (int i = 0; i < NUM_BOXES; ++i) {
+            Vector3 min = new Vector3(random.nextDouble() * 20.0 - 10.0, random.nextDouble() * 20.0 - 10.0, random.nextDouble() * 20.0 - 10.0);
+            Vector3 size = new Vector3(random.nextDouble() * 4.0, random.nextDouble() * 4.0, random.nextDouble() * 4.0);
+            _boxes[i] = new Aabb(min, min.add(size));
+            _boxPlanes[i] = buildPlanes(_boxes[i]);
+        }
+        for (int i = 0; i < NUM_RAYS; ++i) {
+            Vector3 origin = new Vector3(random.nextDouble() * 30.0 - 15.0, random.nextDouble() * 30.0 - 15.0, random.nextDouble() * 30.0 - 15.0);
+            Vector3 direction = new Vector3(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+            _rays[i] = new Ray(origin, direction, 0.0, 0.0);
+        }
+    }
+
+    @Override
+    public Workload create(String name, String... params) {
+        switch (name) {
+            case "planes": return this::runPlanes;
+            case "slab": return this::runSlab;
+            case "clipRay": return this::runClipRay;
+            default: throw new IllegalArgumentException("There's no AABB benchmark called " + name);
+        }
+    }
+
+    private void runPlanes(Blackhole blackhole) {
+        for (Ray ray : _rays) {
+            Vector3 end = ray.getOrigin().add(ray.getDirection().multiply(ray.getMagnitude()));
+            for (Plane[] planes : _boxPlanes) {
+                LineSegment lineSegment = new LineSegment(ray.getOrigin(), end);
+                for (int i = 0; i < 6 && lineSegment != null; ++i) {
+                    lineSegment = planes[i].getPortionBehind(lineSegment);
+                }
+                blackhole.consume(lineSegment);
+            }
+        }
+    }
+
+    private void runSlab(Blackhole blackhole) {
+        final double[] entryExit = new double[2];
+        for (Ray ray : _rays) {
+            for (Aabb box : _boxes) {
+                blackhole.consume(box.intersectRay(ray.getOrigin(), ray.getInverseDirection(), ray.getMagnitude(), entryExit));
+            }
+        }
+    }
+
+    private void runClipRay(Blackhole blackhole) {
+        for (Ray ray : _rays) {
+            for (Aabb box : _boxes) {
+                blackhole.consume(box.clipRay(ray));
+            }
+        }
+    }
+
+    private static Plane[] buildPlanes(Aabb box) {
+        return new Plane[] {
+                new Plane(new Vector3(box._min._x, 0.0, 0.0), new Vector3(-1.0, 0.0, 0.0)),
+                new Plane(new Vector3(0.0, box._min._y, 0.0), new Vector3(0.0, -1.0, 0.0)),
+                new Plane(new Vector3(0.0, 0.0, box._min._z), new Vector3(0.0, 0.0, -1.0)),
+                new Plane(new Vector3(box._max._x, 0.0, 0.0), new Vector3(1.0, 0.0, 0.0)),
+                new Plane(new Vector3(0.0, box._max._y, 0.0), new Vector3(0.0, 1.0, 0.0)),
+                new Plane(new Vector3(0.0, 0.0, box._max._z), new Vector3(0.0, 0.0, 1.0))
+        };
+    }
+}
@@ -0,0 +1,386 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Checks that ObjFile gives exactly the same meshes as a simple parser that reads a line at a time with
+// BufferedReader and String.split(), like the original ObjFile did. OBJ files are generated with "o", "usemtl", "s" and
+// "mtllib" statements, faces before the first "o", triangles, quads and pentagons, absolute and negative indices, faces
+// with and without tex coords and normals, comments, tabs and CRLF line endings, and numbers that do and don't take the
+// fast path through ObjFile's number parsing. The larger files are cut into several chunks, including one that's a
+// single object, so faces refer back to vertices in earlier chunks. Any OBJ files named on the command line are checked
+// too. The meshes and MTL file that ObjFile passes to its Listener while parsing have to be the same ones it ends up with.
+// Exits with 1 if any mesh differs. Run it with:
+// mvn test-compile exec:exec@check -Dcheck.args="ObjFileCheck [seed] [OBJ files...]"
+public class ObjFileCheck {
+    private static final int SMALL_FILE_BYTES = 256 * 1024;
+    private static final int LARGE_FILE_BYTES = 16 * 1024 * 1024; // At least 4 chunks, even on a single core
+
+    public static void main(String[] args) throws Exception {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 235;
+        Path folder = Files.createTempDirectory("ObjFileCheck");
+        ArrayList<File> files = new ArrayList<>();
+        files.add(generate(folder.resolve("small.obj").toFile(), SMALL_FILE_BYTES, seed, true, false));
+        files.add(generate(folder.resolve("crlf.obj").toFile(), SMALL_FILE_BYTES, seed + 1, true, true));
+        files.add(generate(folder.resolve("large.obj").toFile(), LARGE_FILE_BYTES, seed + 2, true, false));
+        files.add(generate(folder.resolve("single.obj").toFile(), LARGE_FILE_BYTES, seed + 3, false, false));
+        for (int i = 1; i < args.length; ++i) {
+            files.add(new File(args[i]));
+        }
+
+        boolean identical = true;
+        try {
+            for (File file : files) {
+                identical &= check(file);
+            }
+        }
+        finally {
+            for (File file : folder.toFile().listFiles()) {
+                Files.delete(file.toPath());
+            }
+            Files.delete(folder);
+        }
+        System.exit(identical ? 0 : 1);
+    }
+
+    private static boolean check(File file) throws IOException {
+        long startTimeNs = System.nanoTime();
+        ReferenceObjFile expected = new ReferenceObjFile(file);
+        long referenceNs = System.nanoTime() - startTimeNs;
+        startTimeNs = System.nanoTime();
+        ArrayList<String> materialFilesFound = new ArrayList<>();
+        Set<PolyhedronMesh> meshesParsed = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        ObjFile actual = new ObjFile(file, new ObjFile.Listener() {
+            public void materialFileFound(String fileName) {
+                synchronized (materialFilesFound) {
+                    materialFilesFound.add(fileName);
+                }
+            }
+            public void meshParsed(PolyhedronMesh mesh) {
+                meshesParsed.add(mesh);
+            }
+        });
+        long objFileNs = System.nanoTime() - startTimeNs;
+
+        String difference = null;
+        if (!Objects.equals(expected._materialFileName, actual.getMaterialFileName())) {
+            difference = "the MTL file is " + actual.getMaterialFileName() + ", not " + expected._materialFileName;
+        }
+        else if (expected._meshes.size() != actual.getMeshCount()) {
+            difference = "there are " + actual.getMeshCount() + " meshes, not " + expected._meshes.size();
+        }
+        else if (!materialFilesFound.equals(expected._materialFileName == null ? List.of() :
+                                            List.of(expected._materialFileName))) {
+            difference = "the Listener was given MTL files " + materialFilesFound;
+        }
+        for (int i = 0; difference == null && i < expected._meshes.size(); ++i) {
+            difference = compare(expected._meshes.get(i), actual.getMesh(i));
+            if (difference == null && !meshesParsed.remove(actual.getMesh(i))) {
+                difference = "the Listener wasn't given mesh " + actual.getMesh(i).getName();
+            }
+        }
+        if (difference == null && !meshesParsed.isEmpty()) {
+            difference = "the Listener was given " + meshesParsed.size() + " meshes that ObjFile didn't end up with";
+        }
+
+        int numFaces = 0;
+        for (PolyhedronMesh mesh : expected._meshes) {
+            numFaces += mesh.getNumFaces();
+        }
+        System.out.printf("%s: %d meshes, %d faces, %s. %d ms to parse a line at a time, %d ms with ObjFile%n",
+                file.getName(), expected._meshes.size(), numFaces, difference == null ? "identical" : difference,
+                referenceNs / 1000000, objFileNs / 1000000);
+        return difference == null;
+    }
+
+    // Returns what's different, or null if nothing is.
+    private static String compare(PolyhedronMesh expected, PolyhedronMesh actual) {
+        String mesh = "mesh " + expected.getName();
+        if (!expected.getName().equals(actual.getName())) {
+            return mesh + " is called " + actual.getName();
+        }
+        if (!Arrays.equals(expected.getVertices(), actual.getVertices())) {
+            return mesh + "'s vertices differ";
+        }
+        if (!Arrays.equals(expected.getTexCoords(), actual.getTexCoords())) {
+            return mesh + "'s tex coords differ";
+        }
+        if (!Arrays.equals(expected.getNormals(), actual.getNormals())) {
+            return mesh + "'s normals differ";
+        }
+        if (!Arrays.equals(expected.getFaces(), actual.getFaces())) {
+            return mesh + "'s faces differ";
+        }
+        if (expected.getPieces().length != actual.getPieces().length) {
+            return mesh + " has " + actual.getPieces().length + " pieces, not " + expected.getPieces().length;
+        }
+        for (int i = 0; i < expected.getPieces().length; ++i) {
+            PolyhedronMesh.Piece expectedPiece = expected.getPieces()[i];
+            PolyhedronMesh.Piece actualPiece = actual.getPieces()[i];
+            String piece = mesh + "'s piece " + i;
+            if (!Objects.equals(expectedPiece.getMaterialName(), actualPiece.getMaterialName())) {
+                return piece + " uses " + actualPiece.getMaterialName() + ", not " + expectedPiece.getMaterialName();
+            }
+            if (!Arrays.equals(expectedPiece.getFlatShadedFaces(), actualPiece.getFlatShadedFaces())) {
+                return piece + "'s flat shaded faces differ";
+            }
+            Set<Integer> groupIds = expectedPiece.getGroupIds();
+            if (!groupIds.equals(actualPiece.getGroupIds())) {
+                return piece + "'s smoothing groups are " + actualPiece.getGroupIds() + ", not " + groupIds;
+            }
+            for (int groupId : groupIds) {
+                if (!Arrays.equals(expectedPiece.getSmoothShadedFaceGroup(groupId),
+                                   actualPiece.getSmoothShadedFaceGroup(groupId))) {
+                    return piece + "'s faces in smoothing group " + groupId + " differ";
+                }
+            }
+        }
+        return null;
+    }
+
+    // Faces refer to vertices of their own object, either counting back from the last one (negative indices), or from
+    // the start of the file. The first 64th of the file is before any "o" statement. After that, with manyObjects false,
+    // everything is in a single object.
+    private static File generate(File file, int numBytes, long seed, boolean manyObjects, boolean crlf) throws IOException {
+        Random random = new Random(seed);
+        String newLine = crlf ? "\r\n" : "\n";
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(file))) {
+            long bytesWritten = 0;
+            int numVertices = 0, numTexCoords = 0, numNormals = 0;
+            int firstVertex = 0, firstTexCoord = 0, firstNormal = 0;
+            int numObjects = 0;
+            StringBuilder line = new StringBuilder();
+            out.write("# Generated by ObjFileCheck" + newLine + "mtllib generated.mtl" + newLine);
+            while (bytesWritten < numBytes) {
+                line.setLength(0);
+                if ((numObjects == 0 && bytesWritten > numBytes / 64) || (manyObjects && random.nextInt(2000) == 0)) {
+                    line.append("o object").append(numObjects++).append(newLine);
+                    firstVertex = numVertices;
+                    firstTexCoord = numTexCoords;
+                    firstNormal = numNormals;
+                }
+                int r = random.nextInt(100);
+                if (r < 30) {
+                    line.append(random.nextInt(10) == 0 ? "v\t" : "v ").append(formatNumber(random, 100.0)).append(' ')
+                        .append(formatNumber(random, 100.0)).append("  ").append(formatNumber(random, 100.0));
+                    ++numVertices;
+                }
+                else if (r < 40) {
+                    line.append("vt ").append(formatNumber(random, 1.0)).append(' ').append(formatNumber(random, 1.0));
+                    ++numTexCoords;
+                }
+                else if (r < 50) {
+                    line.append("vn ").append(formatNumber(random, 1.0)).append(' ').append(formatNumber(random, 1.0))
+                        .append(' ').append(formatNumber(random, 1.0));
+                    ++numNormals;
+                }
+                else if (r < 52) {
+                    line.append("usemtl material").append(random.nextInt(6));
+                }
+                else if (r < 54) {
+                    line.append("s ").append(random.nextBoolean() ? "off" : Integer.toString(1 + random.nextInt(3)));
+                }
+                else if (r < 55) {
+                    // Only the first "mtllib" statement counts
+                    line.append(random.nextInt(100) == 0 ? "mtllib other.mtl" : "# A comment");
+                }
+                else if (numVertices - firstVertex > 0 && numTexCoords - firstTexCoord > 0 &&
+                         numNormals - firstNormal > 0) {
+                    line.append('f');
+                    int numCorners = 3 + Math.max(0, random.nextInt(5) - 2);
+                    int form = random.nextInt(4); // v, v/vt, v//vn or v/vt/vn
+                    for (int corner = 0; corner < numCorners; ++corner) {
+                        line.append(' ').append(generateIndex(random, firstVertex, numVertices));
+                        if (form == 1 || form == 3) {
+                            line.append('/').append(generateIndex(random, firstTexCoord, numTexCoords));
+                        }
+                        if (form == 2) {
+                            line.append("//").append(generateIndex(random, firstNormal, numNormals));
+                        }
+                        if (form == 3) {
+                            line.append('/').append(generateIndex(random, firstNormal, numNormals));
+                        }
+                    }
+                }
+                line.append(newLine);
+                out.append(line);
+                bytesWritten += line.length();
+            }
+        }
+        return file;
+    }
+
+    // Mostly numbers that ObjFile converts itself, with the odd one that it leaves to Double.parseDouble().
+    private static String formatNumber(Random random, double scale) {
+        double value = (random.nextDouble() * 2.0 - 1.0) * scale;
+        switch (random.nextInt(20)) {
+            case 0: return String.format("%.5e", value);
+            case 1: return Double.toString(value); // Up to 17 significant digits
+            case 2: return Integer.toString((int)value);
+            default: return String.format("%.6f", value);
+        }
+    }
+
+    // An index of one of the elements from first up to (but not including) count, 1 based or counting back from count.
+    private static int generateIndex(Random random, int first, int count) {
+        int index = first + random.nextInt(Math.min(count - first, 50)) + (count - first > 50 ? count - first - 50 : 0);
+        return random.nextBoolean() ? index + 1 : index - count;
+    }
+
+    // Parses the file a line at a time, splitting each into words. The meshes are built the same way as ObjFile's, from
+    // the same statements, so any difference is in how the file was parsed.
+    private static class ReferenceObjFile {
+        final ArrayList<PolyhedronMesh> _meshes = new ArrayList<>();
+        String _materialFileName;
+        private final ArrayList<Double> _vertices = new ArrayList<>();
+        private final ArrayList<Double> _texCoords = new ArrayList<>();
+        private final ArrayList<Double> _normals = new ArrayList<>();
+        private final ArrayList<Integer> _faces = new ArrayList<>();
+        private final ArrayList<PolyhedronMesh.Piece> _pieces = new ArrayList<>();
+        private String _meshName;
+        private boolean _isObject;
+        private int _firstVertex, _firstTexCoord, _firstNormal;
+        private String _materialName;
+        private boolean _hasPiece;
+        private int _smoothingGroupId = -1;
+        private int _pieceFirstFace;
+
+        ReferenceObjFile(File file) throws IOException {
+            _meshName = file.getName();
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.charAt(0) == '#') {
+                        continue;
+                    }
+                    String[] words = line.split("\\s+");
+                    switch (words[0]) {
+                        case "v": addDoubles(words, 3, _vertices); break;
+                        case "vt": addDoubles(words, 2, _texCoords); break;
+                        case "vn": addDoubles(words, 3, _normals); break;
+                        case "f": addFace(words); break;
+                        case "usemtl": useMaterial(words[1]); break;
+                        case "s": _smoothingGroupId = words[1].equals("off") ? -1 : Integer.parseInt(words[1]); break;
+                        case "mtllib":
+                            if (_materialFileName == null) {
+                                _materialFileName = words[1];
+                            }
+                            break;
+                        case "o":
+                            endMesh();
+                            _meshName = words[1];
+                            _isObject = true;
+                            _firstVertex = _vertices.size() / 3;
+                            _firstTexCoord = _texCoords.size() / 2;
+                            _firstNormal = _normals.size() / 3;
+                            break;
+                    }
+                }
+            }
+            endMesh();
+        }
+
+        private static void addDoubles(String[] words, int count, ArrayList<Double> values) {
+            for (int i = 1; i <= count; ++i) {
+                values.add(Double.parseDouble(words[i]));
+            }
+        }
+
+        // Split into a fan of triangles, like ObjFile does.
+        private void addFace(String[] words) throws IOException {
+            int[][] corners = new int[words.length - 1][];
+            for (int i = 1; i < words.length; ++i) {
+                String[] indices = words[i].split("/", -1);
+                corners[i - 1] = new int[] {
+                        resolveIndex(indices[0], _vertices.size() / 3, _firstVertex),
+                        indices.length > 1 ? resolveIndex(indices[1], _texCoords.size() / 2, _firstTexCoord) : -1,
+                        indices.length > 2 ? resolveIndex(indices[2], _normals.size() / 3, _firstNormal) : -1 };
+            }
+            for (int corner = 1; corner + 1 < corners.length; ++corner) {
+                for (int[] triangleCorner : new int[][] { corners[0], corners[corner], corners[corner + 1] }) {
+                    for (int index : triangleCorner) {
+                        _faces.add(index);
+                    }
+                }
+            }
+        }
+
+        private static int resolveIndex(String word, int count, int first) throws IOException {
+            if (word.isEmpty()) {
+                return -1;
+            }
+            int index = Integer.parseInt(word);
+            int resolved = (index > 0 ? index - 1 : count + index) - first;
+            if (resolved < 0 || resolved >= count - first) {
+                throw new IOException("A face refers to a vertex outside of its object");
+            }
+            return resolved;
+        }
+
+        private int getNumFaces() {
+            return _faces.size() / PolyhedronMesh.FACE_INTS;
+        }
+
+        private void useMaterial(String materialName) {
+            if (_hasPiece) {
+                addPiece();
+            }
+            _hasPiece = true;
+            _materialName = materialName;
+            _smoothingGroupId = -1;
+        }
+
+        private void addPiece() {
+            PolyhedronMesh.Piece piece = new PolyhedronMesh.Piece(_materialName);
+            int[] faces = new int[getNumFaces() - _pieceFirstFace];
+            for (int i = 0; i < faces.length; ++i) {
+                faces[i] = _pieceFirstFace + i;
+            }
+            if (_smoothingGroupId == -1) {
+                piece.setFlatShadedFaces(faces);
+            }
+            else {
+                piece.addSmoothShadedFaceGroup(_smoothingGroupId, faces);
+            }
+            _pieces.add(piece);
+            _pieceFirstFace = getNumFaces();
+        }
+
+        private void endMesh() {
+            if (_hasPiece || _pieceFirstFace < getNumFaces()) {
+                addPiece();
+            }
+            if (_isObject || getNumFaces() > 0) {
+                PolyhedronMesh mesh = new PolyhedronMesh(_meshName);
+                mesh.setVertices(toDoubles(_vertices, _firstVertex * 3));
+                mesh.setTexCoords(toDoubles(_texCoords, _firstTexCoord * 2));
+                mesh.setNormals(toDoubles(_normals, _firstNormal * 3));
+                mesh.setFaces(_faces.stream().mapToInt(Integer::intValue).toArray());
+                mesh.setPieces(_pieces.toArray(new PolyhedronMesh.Piece[0]));
+                _meshes.add(mesh);
+            }
+            _faces.clear();
+            _pieces.clear();
+            _hasPiece = false;
+            _materialName = null;
+            _smoothingGroupId = -1;
+            _pieceFirstFace = 0;
+        }
+
+        private static double[] toDoubles(ArrayList<Double> values, int first) {
+            return values.subList(first, values.size()).stream().mapToDouble(Double::doubleValue).toArray();
+        }
+    }
+}
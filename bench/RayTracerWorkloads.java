@@ -0,0 +1,334 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import benchmarks.RayTracerBenchmarks;
+import benchmarks.Workload;
+
+// The work for benchmarks.RayTracerBenchmarks, from single ray/triangle tests up to a whole low resolution frame. The
+// scene is set up with the same options as Main's --development, and its files are loaded from the working folder.
+public class RayTracerWorkloads implements Workload.Factory {
+    private static final int RAY_GRID_WIDTH = RayTracerBenchmarks.RAY_GRID_WIDTH;
+    private static final int RAY_GRID_HEIGHT = RayTracerBenchmarks.RAY_GRID_HEIGHT;
+    private static final int NUM_RAYS = RayTracerBenchmarks.NUM_RAYS;
+    private static final int NUM_TEXTURE_SAMPLES = RayTracerBenchmarks.NUM_TEXTURE_SAMPLES;
+    private static final int NUM_TRIANGLES = RayTracerBenchmarks.NUM_TRIANGLES;
+    private static final int PIXEL_GROUP_SIZE = 8; // As TileRenderer groups pixels for shadow ray packets
+    private static final int LEAF_SIZE = 8; // Two groups of double precision triangles, or one of single precision
+    private static final String TEXTURE_FILENAME = "ConcreteWall.jpg";
+    private static final double TEXTURE_FOOTPRINT_TEXELS = 6.0; // Between mip levels 2 and 3, for TRILINEAR
+
+    @Override
+    public Workload create(String name, String... params) throws Exception {
+        switch (name) {
+            case "triangleIntersectRay": return createTriangleIntersectRay();
+            case "triangleLeaf": return createTriangleLeaf(params[0], params[1]);
+            case "bvhTraceRay": return createBvhTrace(params[0], params[1], false);
+            case "bvhIsOccluded": return createBvhTrace(params[0], params[1], true);
+            case "textureTakeSample": return createTextureTakeSample(TextureSampling.Filtering.valueOf(params[0]));
+            case "sceneIntersect": return createSceneTrace(false);
+            case "sceneIsOccluded": return createSceneTrace(true);
+            case "sceneShadowRays": return createSceneShadowRays(params[0].equals("packet"));
+            case "frame": return createFrame(RenderingOptions.AntiAliasing.valueOf(params[0]), Boolean.parseBoolean(params[1]));
+            default: throw new IllegalArgumentException("There's no ray tracer benchmark called " + name);
+        }
+    }
+
+    private static RenderingOptions createRenderingOptions() {
+        RenderingOptions ro = new RenderingOptions();
+        ro.setDevelopment();
+        ro._outputImageWidth = RAY_GRID_WIDTH;
+        ro._outputImageHeight = RAY_GRID_HEIGHT;
+        return ro;
+    }
+
+    private static Ray[] castCameraRays(RenderingOptions ro) throws Exception {
+        Camera camera = new Camera(ro._cameraPosition, ro._cameraEulersDegrees);
+        RayCaster rayCaster = new RayCaster(ro);
+        Ray[] rays = new Ray[NUM_RAYS];
+        for (int y = 0; y < RAY_GRID_HEIGHT; ++y) {
+            for (int x = 0; x < RAY_GRID_WIDTH; ++x) {
+                rays[y * RAY_GRID_WIDTH + x] = rayCaster.castRay(x + 0.5, y + 0.5, camera);
+            }
+        }
+        return rays;
+    }
+
+    // The warehouse mesh isn't transformed, so camera rays can be traced against its BVH directly.
+    private static BoundingVolumeHierarchy loadMeshBoundingVolumeHierarchy(RenderingOptions ro) throws Exception {
+        ObjFile objFile = new ObjFile(new File("OldWarehouse.obj"));
+        PolyhedronMesh mesh = objFile.getMesh(0);
+        BoundingVolumeHierarchy bvh = new BoundingVolumeHierarchy(mesh);
+        for (int i = 0; i < mesh.getPieces().length; ++i) {
+            PolyhedronMesh.Piece piece = mesh.getPieces()[i];
+            bvh.insertFaces(piece.getFlatShadedFaces(), i);
+            Set<Integer> groupIds = piece.getGroupIds();
+            for (Integer groupId : groupIds) {
+                bvh.insertFaces(piece.getSmoothShadedFaceGroup(groupId), i);
+            }
+        }
+        bvh.build(ro._bvhMaxLeafFaces);
+        return bvh;
+    }
+
+    // The Vector API kernel is only there if the JVM was started with --add-modules jdk.incubator.vector, which pom.xml
+    // does. Without it ITriangleKernel.create() falls back to the scalar one, which would be measured under the wrong
+    // name, so that's an error here.
+    private static ITriangleKernel createTriangleKernel(String name) {
+        ITriangleKernel kernel = ITriangleKernel.create(name.equals("vector"));
+        if (!kernel.getName().equals(name)) {
+            throw new IllegalStateException("The " + name + " ray/triangle tests aren't available");
+        }
+        return kernel;
+    }
+
+    // PolyhedronMesh.intersectFace(), which the kernels replaced, one ray and one triangle at a time, against the first
+    // NUM_TRIANGLES faces of the warehouse mesh.
+    private static Workload createTriangleIntersectRay() throws Exception {
+        final Ray[] rays = castCameraRays(createRenderingOptions());
+        final BoundingVolumeHierarchy bvh = loadMeshBoundingVolumeHierarchy(createRenderingOptions());
+        final int[] faces = new int[NUM_TRIANGLES];
+        for (int i = 0; i < NUM_TRIANGLES; ++i) {
+            faces[i] = bvh.getFace(i);
+        }
+        final PolyhedronMesh mesh = bvh.getMesh();
+        return blackhole -> {
+            for (Ray ray : rays) {
+                for (int face : faces) {
+                    blackhole.consume(mesh.intersectFace(face, ray.getOrigin(), ray.getDirection()));
+                }
+            }
+        };
+    }
+
+    // The same ray/triangle tests, made a leaf's worth at a time by the kernel.
+    private static Workload createTriangleLeaf(String kernelName, String precision) throws Exception {
+        final Ray[] rays = castCameraRays(createRenderingOptions());
+        final BoundingVolumeHierarchy bvh = loadMeshBoundingVolumeHierarchy(createRenderingOptions());
+        int[] faces = new int[NUM_TRIANGLES];
+        int[] slots = new int[NUM_TRIANGLES];
+        for (int i = 0; i < NUM_TRIANGLES; ++i) {
+            faces[i] = bvh.getFace(i);
+            slots[i] = i;
+        }
+        final LeafTriangles leafTriangles = new LeafTriangles(bvh.getMesh(), faces, slots, precision.equals("float"));
+        final ITriangleKernel kernel = createTriangleKernel(kernelName);
+        final double[] distance = new double[1];
+        return blackhole -> {
+            for (Ray ray : rays) {
+                for (int offset = 0; offset < NUM_TRIANGLES; offset += LEAF_SIZE) {
+                    blackhole.consume(kernel.intersect(leafTriangles, offset, LEAF_SIZE,
+                            ray.getOrigin(), ray.getDirection(), Double.MAX_VALUE, distance));
+                }
+            }
+        };
+    }
+
+    private static Workload createBvhTrace(String kernelName, String precision, boolean occlusion) throws Exception {
+        RenderingOptions ro = createRenderingOptions();
+        final Ray[] rays = castCameraRays(ro);
+        final BoundingVolumeHierarchy bvh = loadMeshBoundingVolumeHierarchy(ro);
+        bvh.setTriangleKernel(createTriangleKernel(kernelName));
+        if (precision.equals("float")) {
+            bvh.useSinglePrecision();
+        }
+        final TraceContext context = new TraceContext(0, 0, new RenderMetrics().createCounters());
+        if (occlusion) {
+            return blackhole -> {
+                for (Ray ray : rays) {
+                    context._meshTrace.reset();
+                    blackhole.consume(bvh.isOccluded(ray, ray.getMagnitude(), context._meshTrace, context._meshStack));
+                }
+            };
+        }
+        return blackhole -> {
+            for (Ray ray : rays) {
+                context._meshTrace.reset();
+                blackhole.consume(bvh.traceRay(ray, ray.getMagnitude(), context._meshTrace, context._meshStack));
+                blackhole.consume(context._meshTrace._faceIndex);
+            }
+        };
+    }
+
+    private static Workload createTextureTakeSample(TextureSampling.Filtering filtering) throws Exception {
+        RenderingOptions ro = createRenderingOptions();
+        final Texture texture = Texture.load(new File(TEXTURE_FILENAME));
+        if (filtering == TextureSampling.Filtering.TRILINEAR) {
+            texture.buildMipLevels();
+        }
+        final TextureSampling textureSampling = new TextureSampling(filtering, ro._texCoordWrapping);
+        final double[] texCoords = new double[NUM_TEXTURE_SAMPLES * 2];
+        Random random = new Random(235);
+        for (int i = 0; i < texCoords.length; ++i) {
+            texCoords[i] = random.nextDouble();
+        }
+        final double footprint = TEXTURE_FOOTPRINT_TEXELS / Math.sqrt((double)texture.getWidth() * (double)texture.getHeight());
+        final Vector3 colour = new Vector3();
+        return blackhole -> {
+            for (int i = 0; i < NUM_TEXTURE_SAMPLES; ++i) {
+                blackhole.consume(textureSampling.takeSample(texCoords[i * 2], texCoords[i * 2 + 1], footprint,
+                        texture, colour));
+            }
+        };
+    }
+
+    private static SceneGraph loadSceneGraph(RenderingOptions ro) throws Exception {
+        try (AssetLoader assets = new AssetLoader(ro)) {
+            return new SceneGraph(ro, new TextureSampling(ro._textureFiltering, ro._texCoordWrapping), assets);
+        }
+    }
+
+    private static Workload createSceneTrace(boolean occlusion) throws Exception {
+        RenderingOptions ro = createRenderingOptions();
+        final Ray[] rays = castCameraRays(ro);
+        final SceneGraph sceneGraph = loadSceneGraph(ro);
+        final TraceContext context = new TraceContext(0, 0, new RenderMetrics().createCounters());
+        if (occlusion) {
+            return blackhole -> {
+                for (Ray ray : rays) {
+                    blackhole.consume(sceneGraph.isOccluded(ray, SceneGraph.FAR_CLIP_PLANE, context));
+                }
+            };
+        }
+        final IntersectResult result = new IntersectResult();
+        return blackhole -> {
+            for (Ray ray : rays) {
+                blackhole.consume(sceneGraph.intersect(ray, result, context));
+                blackhole.consume(result._distance);
+            }
+        };
+    }
+
+    // The shadow rays from where the camera rays hit towards each light that reaches the hit, as RayTracer traces them.
+    // The camera rays are taken a PIXEL_GROUP_SIZE square of pixels at a time, and the shadow rays from each group
+    // towards a light are either traced one at a time, with the occluder cache, or as a ShadowPacket.
+    private static Workload createSceneShadowRays(boolean packets) throws Exception {
+        RenderingOptions ro = createRenderingOptions();
+        final Ray[] cameraRays = castCameraRays(ro);
+        final SceneGraph sceneGraph = loadSceneGraph(ro);
+        final LightGrid lightGrid = sceneGraph.getLightGrid();
+        final TraceContext context = new TraceContext(0, lightGrid.getNumLights(), new RenderMetrics().createCounters());
+
+        // Each group's shadow rays towards each light, in the order the lights are numbered
+        final ArrayList<Ray[]> groups = new ArrayList<>();
+        final ArrayList<double[]> groupDistances = new ArrayList<>();
+        final ArrayList<Integer> groupLights = new ArrayList<>();
+        IntersectResult hit = new IntersectResult();
+        for (int groupY = 0; groupY < RAY_GRID_HEIGHT; groupY += PIXEL_GROUP_SIZE) {
+            for (int groupX = 0; groupX < RAY_GRID_WIDTH; groupX += PIXEL_GROUP_SIZE) {
+                ArrayList<ArrayList<Ray>> lightRays = new ArrayList<>();
+                ArrayList<ArrayList<Double>> lightDistances = new ArrayList<>();
+                for (int i = 0; i < lightGrid.getNumLights(); ++i) {
+                    lightRays.add(new ArrayList<>());
+                    lightDistances.add(new ArrayList<>());
+                }
+                for (int y = groupY; y < Math.min(groupY + PIXEL_GROUP_SIZE, RAY_GRID_HEIGHT); ++y) {
+                    for (int x = groupX; x < Math.min(groupX + PIXEL_GROUP_SIZE, RAY_GRID_WIDTH); ++x) {
+                        if (!sceneGraph.intersect(cameraRays[y * RAY_GRID_WIDTH + x], hit, context)) {
+                            continue;
+                        }
+                        final int cell = lightGrid.findCell(hit._point);
+                        final int end = cell < 0 ? 0 : lightGrid.getCellEnd(cell);
+                        for (int i = cell < 0 ? 0 : lightGrid.getCellStart(cell); i < end; ++i) {
+                            final PositionalLight light = lightGrid.getCellLight(i);
+                            Vector3 direction = light._position.subtract(hit._point);
+                            final double distance = direction.magnitude();
+                            if (distance > light._radius) {
+                                continue;
+                            }
+                            direction.normalise();
+                            final double offset = direction.dotProduct(hit._normal) < 0 ? -1e-3 : 1e-3;
+                            Vector3 origin = new Vector3().set(hit._point).addScaledInPlace(hit._normal, offset);
+                            lightRays.get(lightGrid.getCellLightIndex(i)).add(new Ray().set(origin, direction, x, y));
+                            lightDistances.get(lightGrid.getCellLightIndex(i)).add(distance);
+                        }
+                    }
+                }
+                for (int i = 0; i < lightGrid.getNumLights(); ++i) {
+                    if (!lightRays.get(i).isEmpty()) {
+                        groups.add(lightRays.get(i).toArray(new Ray[0]));
+                        groupDistances.add(lightDistances.get(i).stream().mapToDouble(Double::doubleValue).toArray());
+                        groupLights.add(i);
+                    }
+                }
+            }
+        }
+
+        if (!packets) {
+            return blackhole -> {
+                for (int group = 0; group < groups.size(); ++group) {
+                    final Ray[] rays = groups.get(group);
+                    final double[] distances = groupDistances.get(group);
+                    final int lightIndex = groupLights.get(group);
+                    for (int i = 0; i < rays.length; ++i) {
+                        blackhole.consume(sceneGraph.isOccluded(rays[i], distances[i], lightIndex, context));
+                    }
+                }
+            };
+        }
+        final ShadowPacket packet = new ShadowPacket();
+        return blackhole -> {
+            for (int group = 0; group < groups.size(); ++group) {
+                final Ray[] rays = groups.get(group);
+                final double[] distances = groupDistances.get(group);
+                final int lightIndex = groupLights.get(group);
+                packet.clear(lightGrid.getLight(lightIndex)._position);
+                for (int i = 0; i < rays.length; ++i) {
+                    packet.addRay(distances[i]).set(rays[i].getOrigin(), rays[i].getDirection(), rays[i].getPixelX(),
+                                                    rays[i].getPixelY());
+                }
+                sceneGraph.occludePacket(packet, lightIndex, context);
+                blackhole.consume(packet.getUnoccludedRays());
+            }
+        };
+    }
+
+    // A whole frame, traced on the benchmark's thread so the GC profiler's figures cover all of the work. With shadow
+    // ray packets, the pixels are handed to the sampler a PIXEL_GROUP_SIZE square at a time, as TileRenderer does.
+    private static Workload createFrame(RenderingOptions.AntiAliasing antiAliasing, boolean shadowRayPackets)
+            throws Exception {
+        final RenderingOptions ro = createRenderingOptions();
+        ro._antiAliasing = antiAliasing;
+        ro._shadowRayPackets = shadowRayPackets;
+        final IAntiAliasing sampler = Renderer.createSampler(ro, new RayTracer(ro));
+        final int[] pixels = new int[ro._outputImageWidth * ro._outputImageHeight];
+        if (!shadowRayPackets) {
+            return blackhole -> {
+                for (int y = 0; y < ro._outputImageHeight; ++y) {
+                    for (int x = 0; x < ro._outputImageWidth; ++x) {
+                        pixels[y * ro._outputImageWidth + x] = Utility.Vector3ToColour(sampler.takeSample(x, y));
+                    }
+                }
+                blackhole.consume(Arrays.hashCode(pixels));
+            };
+        }
+        final int[] pixelX = new int[PIXEL_GROUP_SIZE * PIXEL_GROUP_SIZE];
+        final int[] pixelY = new int[PIXEL_GROUP_SIZE * PIXEL_GROUP_SIZE];
+        final Vector3[] samples = new Vector3[PIXEL_GROUP_SIZE * PIXEL_GROUP_SIZE];
+        for (int i = 0; i < samples.length; ++i) {
+            samples[i] = new Vector3();
+        }
+        return blackhole -> {
+            for (int groupY = 0; groupY < ro._outputImageHeight; groupY += PIXEL_GROUP_SIZE) {
+                for (int groupX = 0; groupX < ro._outputImageWidth; groupX += PIXEL_GROUP_SIZE) {
+                    int numPixels = 0;
+                    for (int y = groupY; y < Math.min(groupY + PIXEL_GROUP_SIZE, ro._outputImageHeight); ++y) {
+                        for (int x = groupX; x < Math.min(groupX + PIXEL_GROUP_SIZE, ro._outputImageWidth); ++x) {
+                            pixelX[numPixels] = x;
+                            pixelY[numPixels++] = y;
+                        }
+                    }
+                    sampler.takeSamples(pixelX, pixelY, numPixels, samples);
+                    for (int i = 0; i < numPixels; ++i) {
+                        pixels[pixelY[i] * ro._outputImageWidth + pixelX[i]] = Utility.Vector3ToColour(samples[i]);
+                    }
+                }
+            }
+            blackhole.consume(Arrays.hashCode(pixels));
+        };
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Random;
+
+// Checks that SceneCache.load() turns down a damaged cache rather than failing some other way. The scene is loaded
+// once, so that its cache is written if it isn't up to date. Then copies of the cache are damaged and loaded, over and
+// over. Each one is either truncated, has an extreme int written over it, or has bits flipped, all past the header
+// (which is already compared with the OBJ and MTL files). Each load has to either succeed or return false: anything
+// thrown, including running out of memory, is a failure. Run it from the project folder, where the scene's files are:
+// mvn test-compile exec:exec@check -Dcheck.args="SceneCacheFuzz [iterations] [seed]"
+public class SceneCacheFuzz {
+    private static final String OBJ_FILENAME = "OldWarehouse.obj";
+    private static final int[] EXTREME_INTS = { Integer.MAX_VALUE, Integer.MIN_VALUE, -2, -1, 1 << 28 };
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        Random random = new Random(args.length > 1 ? Long.parseLong(args[1]) : 235);
+
+        RenderingOptions ro = new RenderingOptions();
+        ro.setDevelopment();
+        try (AssetLoader assets = new AssetLoader(ro)) {
+            new SceneGraph(ro, new TextureSampling(ro._textureFiltering, ro._texCoordWrapping), assets);
+        }
+        byte[] cache = Files.readAllBytes(new SceneCache(new File(OBJ_FILENAME), ro._bvhMaxLeafFaces).getFile().toPath());
+        int headerBytes = getHeaderBytes(cache);
+
+        // The damaged caches are written next to a copy of the OBJ file, so the real cache is never touched. The MTL
+        // file's name is relative to the project folder, so it's still found.
+        Path folder = Files.createTempDirectory("SceneCacheFuzz");
+        File objFile = folder.resolve(OBJ_FILENAME).toFile();
+        Files.copy(new File(OBJ_FILENAME).toPath(), objFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        SceneCache sceneCache = new SceneCache(objFile, ro._bvhMaxLeafFaces);
+
+        int numLoaded = 0;
+        int numIgnored = 0;
+        int numFailed = 0;
+        try {
+            Files.write(sceneCache.getFile().toPath(), cache);
+            if (!load(sceneCache, ro)) {
+                System.out.println("The undamaged cache didn't load");
+                System.exit(1);
+            }
+
+            for (int i = 0; i < iterations; ++i) {
+                byte[] damaged = damage(cache, headerBytes, random);
+                Files.write(sceneCache.getFile().toPath(), damaged);
+                try {
+                    if (load(sceneCache, ro)) {
+                        ++numLoaded;
+                    }
+                    else {
+                        ++numIgnored;
+                    }
+                }
+                catch (Throwable e) {
+                    ++numFailed;
+                    System.out.println("Iteration " + i + " threw " + e);
+                }
+            }
+        }
+        finally {
+            Files.deleteIfExists(sceneCache.getFile().toPath());
+            Files.deleteIfExists(objFile.toPath());
+            Files.deleteIfExists(folder);
+        }
+        System.out.println(iterations + " damaged caches: " + numLoaded + " loaded, " + numIgnored + " ignored, " +
+                           numFailed + " failed");
+        System.exit(numFailed == 0 ? 0 : 1);
+    }
+
+    private static boolean load(SceneCache sceneCache, RenderingOptions ro) throws IOException {
+        try (AssetLoader assets = new AssetLoader(ro)) {
+            return sceneCache.load(assets);
+        }
+    }
+
+    // The magic number, version and leaf size, the OBJ file's hash, the MTL file's name and its hash.
+    private static int getHeaderBytes(byte[] cache) {
+        final int mtlFileNameOffset = 3 * Integer.BYTES + 32;
+        int mtlFileNameBytes = ByteBuffer.wrap(cache).getInt(mtlFileNameOffset);
+        return mtlFileNameOffset + Integer.BYTES + mtlFileNameBytes + 32;
+    }
+
+    private static byte[] damage(byte[] cache, int headerBytes, Random random) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return Arrays.copyOf(cache, headerBytes + random.nextInt(cache.length - headerBytes));
+            case 1: {
+                byte[] damaged = cache.clone();
+                int value = random.nextBoolean() ? EXTREME_INTS[random.nextInt(EXTREME_INTS.length)] : random.nextInt();
+                ByteBuffer.wrap(damaged).putInt(headerBytes + random.nextInt(cache.length - headerBytes - 3), value);
+                return damaged;
+            }
+            default: {
+                byte[] damaged = cache.clone();
+                for (int i = 0; i < 8; ++i) {
+                    damaged[headerBytes + random.nextInt(cache.length - headerBytes)] ^= (byte)(1 << random.nextInt(8));
+                }
+                return damaged;
+            }
+        }
+    }
+}
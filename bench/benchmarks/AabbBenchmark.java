@@ -0,0 +1,67 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Measures the cost of testing a ray against a single BVH node box. "planes" is how Aabb.clipLineSegment used to work
+// (clipping the ray's line segment against six Plane objects), "slab" is Aabb.intersectRay and "clipRay" is
+// Aabb.clipRay, which also builds the clipped segment. Each ray/box test is an operation. The work is in AabbWorkloads.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AabbBenchmark {
+    public static final int NUM_BOXES = 1024;
+    public static final int NUM_RAYS = 1024;
+    private static final String WORKLOADS = "AabbWorkloads";
+
+    @State(Scope.Benchmark)
+    public static class Planes {
+        Workload _workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception { _workload = Workload.create(WORKLOADS, "planes"); }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Slab {
+        Workload _workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception { _workload = Workload.create(WORKLOADS, "slab"); }
+    }
+
+    @State(Scope.Benchmark)
+    public static class ClipRay {
+        Workload _workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception { _workload = Workload.create(WORKLOADS, "clipRay"); }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_BOXES * NUM_RAYS)
+    public void planes(Planes state, Blackhole blackhole) { state._workload.run(blackhole); }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_BOXES * NUM_RAYS)
+    public void slab(Slab state, Blackhole blackhole) { state._workload.run(blackhole); }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_BOXES * NUM_RAYS)
+    public void clipRay(ClipRay state, Blackhole blackhole) { state._workload.run(blackhole); }
+}
@@ -0,0 +1,173 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// JMH benchmarks for the ray tracing hot paths, from single ray/triangle tests up to a whole low resolution frame. The
+// work is in RayTracerWorkloads. It loads the scene's files, so run the benchmarks from the project folder (see
+// pom.xml).
+//
+// Benchmarks that loop over many rays or samples count each one as an operation (@OperationsPerInvocation), so the
+// times, and the GC profiler's gc.alloc.rate.norm, are per ray or per sample. Every result goes into a Blackhole.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RayTracerBenchmarks {
+    public static final int RAY_GRID_WIDTH = 160;
+    public static final int RAY_GRID_HEIGHT = 120;
+    public static final int NUM_RAYS = RAY_GRID_WIDTH * RAY_GRID_HEIGHT;
+    public static final int NUM_TEXTURE_SAMPLES = 1 << 16;
+    public static final int NUM_TRIANGLES = 256;
+    private static final String WORKLOADS = "RayTracerWorkloads";
+
+    @State(Scope.Benchmark)
+    public static class Triangles {
+        Workload _workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception { _workload = Workload.create(WORKLOADS, "triangleIntersectRay"); }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Leaves {
+        @Param({ "scalar", "vector" })
+        public String kernel;
+        @Param({ "double", "float" })
+        public String precision;
+        Workload _workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception { _workload = Workload.create(WORKLOADS, "triangleLeaf", kernel, precision); }
+    }
+
+    @State(Scope.Benchmark)
+    public static class HierarchyTrace {
+        @Param({ "scalar", "vector" })
+        public String kernel;
+        @Param({ "double", "float" })
+        public String precision;
+        Workload _workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception { _workload = Workload.create(WORKLOADS, "bvhTraceRay", kernel, precision); }
+    }
+
+    @State(Scope.Benchmark)
+    public static class HierarchyOcclusion {
+        @Param({ "scalar", "vector" })
+        public String kernel;
+        @Param({ "double", "float" })
+        public String precision;
+        Workload _workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception { _workload = Workload.create(WORKLOADS, "bvhIsOccluded", kernel, precision); }
+    }
+
+    @State(Scope.Benchmark)
+    public static class TextureSamples {
+        @Param({ "NEAREST", "BILINEAR", "TRILINEAR" })
+        public String filtering;
+        Workload _workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception { _workload = Workload.create(WORKLOADS, "textureTakeSample", filtering); }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SceneTrace {
+        Workload _workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception { _workload = Workload.create(WORKLOADS, "sceneIntersect"); }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SceneOcclusion {
+        Workload _workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception { _workload = Workload.create(WORKLOADS, "sceneIsOccluded"); }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SceneShadowRays {
+        @Param({ "single", "packet" })
+        public String tracing;
+        Workload _workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception { _workload = Workload.create(WORKLOADS, "sceneShadowRays", tracing); }
+    }
+
+    // Other anti-aliasing can be measured with e.g. -p antiAliasing=SUPER_SAMPLING.
+    @State(Scope.Benchmark)
+    public static class Frame {
+        @Param({ "NONE" })
+        public String antiAliasing;
+        @Param({ "false", "true" })
+        public String shadowRayPackets;
+        Workload _workload;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception { _workload = Workload.create(WORKLOADS, "frame", antiAliasing, shadowRayPackets); }
+    }
+
+    // PolyhedronMesh.intersectFace(), which the kernels replaced, one ray and one triangle at a time.
+    @Benchmark
+    @OperationsPerInvocation(NUM_RAYS * NUM_TRIANGLES)
+    public void triangleIntersectRay(Triangles state, Blackhole blackhole) { state._workload.run(blackhole); }
+
+    // The same number of ray/triangle tests, made a leaf's worth at a time by each kernel.
+    @Benchmark
+    @OperationsPerInvocation(NUM_RAYS * NUM_TRIANGLES)
+    public void triangleLeaf(Leaves state, Blackhole blackhole) { state._workload.run(blackhole); }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_RAYS)
+    public void bvhTraceRay(HierarchyTrace state, Blackhole blackhole) { state._workload.run(blackhole); }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_RAYS)
+    public void bvhIsOccluded(HierarchyOcclusion state, Blackhole blackhole) { state._workload.run(blackhole); }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_TEXTURE_SAMPLES)
+    public void textureTakeSample(TextureSamples state, Blackhole blackhole) { state._workload.run(blackhole); }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_RAYS)
+    public void sceneIntersect(SceneTrace state, Blackhole blackhole) { state._workload.run(blackhole); }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_RAYS)
+    public void sceneIsOccluded(SceneOcclusion state, Blackhole blackhole) { state._workload.run(blackhole); }
+
+    // The shadow rays from a camera ray's hit towards the lights, traced one at a time or in packets. There are a few per
+    // camera ray, and each camera ray counts as one operation.
+    @Benchmark
+    @OperationsPerInvocation(NUM_RAYS)
+    public void sceneShadowRays(SceneShadowRays state, Blackhole blackhole) { state._workload.run(blackhole); }
+
+    // A whole RAY_GRID_WIDTH x RAY_GRID_HEIGHT frame per operation.
+    @Benchmark
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public void frame(Frame state, Blackhole blackhole) { state._workload.run(blackhole); }
+}
@@ -0,0 +1,21 @@
+package benchmarks;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+// The work one JMH benchmark measures. JMH won't generate benchmarks for classes in the default package, where all of
+// the ray tracer's classes are, and a named package can't refer to those. So the benchmark classes here only hold the
+// JMH annotations, and each one gets its work from a Factory in the default package (e.g. RayTracerWorkloads), which
+// is created by name.
+public interface Workload {
+    void run(Blackhole blackhole);
+
+    interface Factory {
+        // name is the benchmark method's, params are its @Param values in the order they're declared.
+        Workload create(String name, String... params) throws Exception;
+    }
+
+    static Workload create(String factoryClassName, String name, String... params) throws Exception {
+        Factory factory = (Factory)Class.forName(factoryClassName).getDeclaredConstructor().newInstance();
+        return factory.create(name, params);
+    }
+}
@@ -1,18 +1,31 @@
 public class Aabb {
     public Vector3 _min;
     public Vector3 _max;
-    public Plane[] _planes;
 
     public Aabb() {
         _min = new Vector3();
         _max = new Vector3();
-        _planes = null;
     }
 
     public Aabb(Vector3 min, Vector3 max) {
         _min = min;
         _max = max;
-        rebuildPlanes();
+    }
+
+    // A box that contains nothing. The first call to adjust() will snap it onto the point or box given.
+    public static Aabb createEmpty() {
+        Aabb box = new Aabb();
+        box._min = new Vector3(Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE);
+        box._max = new Vector3(-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+        return box;
+    }
+
+    public void adjust(Aabb other) {
+        if (other._min._x > other._max._x) {
+            return; // The other box is empty
+        }
+        adjust(other._min);
+        adjust(other._max);
     }
 
     public void adjust(Vector3 v) {
@@ -24,6 +37,23 @@ public class Aabb {
         _max._z = Math.max(_max._z, v._z);
     }
     
+    public Vector3 getCentre() {
+        return new Vector3(
+                (_min._x + _max._x) * 0.5,
+                (_min._y + _max._y) * 0.5,
+                (_min._z + _max._z) * 0.5);
+    }
+
+    public double getSurfaceArea() {
+        double x = _max._x - _min._x;
+        double y = _max._y - _min._y;
+        double z = _max._z - _min._z;
+        if (x < 0.0 || y < 0.0 || z < 0.0) {
+            return 0.0; // Empty
+        }
+        return 2.0 * (x * y + y * z + z * x);
+    }
+
     public boolean contains(Aabb other) {
         return (other._min._x >= _min._x) &&
                (other._min._y >= _min._y) &&
@@ -34,33 +64,82 @@ public class Aabb {
     }
 
     public LineSegment clipRay(Ray ray) {
-        Vector3 lineSegmentEnd = ray.getOrigin().add(ray.getDirection().multiply(ray.getMagnitude()));
-        return clipLineSegment(ray.getOrigin(), lineSegmentEnd);
+        double[] entryExit = new double[2];
+        if (!intersectRay(ray.getOrigin(), ray.getInverseDirection(), ray.getMagnitude(), entryExit)) {
+            return null;
+        }
+        return new LineSegment(
+                ray.getOrigin().add(ray.getDirection().multiply(entryExit[0])),
+                ray.getOrigin().add(ray.getDirection().multiply(entryExit[1])));
     }
 
     public LineSegment clipLineSegment(Vector3 begin, Vector3 end) {
-        LineSegment lineSegment = new LineSegment(begin, end);
-        if (_planes == null) {
-            rebuildPlanes();
-        }
-        for (int i = 0; i < 6; ++i) {
-            LineSegment ls = _planes[i].getPortionBehind(lineSegment);
-            if (ls == null) {
-                return null;
-            }
-            lineSegment = ls;
+        Vector3 direction = end.subtract(begin);
+        Vector3 invDirection = new Vector3(1.0 / direction._x, 1.0 / direction._y, 1.0 / direction._z);
+        double[] entryExit = new double[2];
+        if (!intersectRay(begin, invDirection, 1.0, entryExit)) {
+            return null;
         }
-        return lineSegment;
+        return new LineSegment(
+                begin.add(direction.multiply(entryExit[0])),
+                begin.add(direction.multiply(entryExit[1])));
     }
 
-    public void rebuildPlanes() {
-        _planes = new Plane[6];
-        _planes[0] = new Plane(new Vector3(_min._x, 0.0, 0.0), new Vector3(-1.0, 0.0, 0.0));
-        _planes[1] = new Plane(new Vector3(0.0, _min._y, 0.0), new Vector3(0.0, -1.0, 0.0));
-        _planes[2] = new Plane(new Vector3(0.0, 0.0, _min._z), new Vector3(0.0, 0.0, -1.0));
-        _planes[3] = new Plane(new Vector3(_max._x, 0.0, 0.0), new Vector3(1.0, 0.0, 0.0));
-        _planes[4] = new Plane(new Vector3(0.0, _max._y, 0.0), new Vector3(0.0, 1.0, 0.0));
-        _planes[5] = new Plane(new Vector3(0.0, 0.0, _max._z), new Vector3(0.0, 0.0, 1.0));
+    // Returns true if the ray passes through this box between distance 0 and tMax, and writes the distances at which
+    // it enters and leaves the box into entryExit[0] and entryExit[1]. Nothing is allocated.
+    public boolean intersectRay(Vector3 origin, Vector3 invDirection, double tMax, double[] entryExit) {
+        return intersectSlabs(
+                _min._x, _min._y, _min._z, _max._x, _max._y, _max._z,
+                origin, invDirection, tMax, entryExit);
+    }
+
+    // The same as above for a box stored as 6 consecutive values (min x/y/z, max x/y/z) within an array.
+    public static boolean intersectRay(double[] bounds, int offset, Vector3 origin, Vector3 invDirection, double tMax, double[] entryExit) {
+        return intersectSlabs(
+                bounds[offset], bounds[offset + 1], bounds[offset + 2], bounds[offset + 3], bounds[offset + 4], bounds[offset + 5],
+                origin, invDirection, tMax, entryExit);
+    }
+
+    // The same again for a box stored as floats.
+    public static boolean intersectRay(float[] bounds, int offset, Vector3 origin, Vector3 invDirection, double tMax, double[] entryExit) {
+        return intersectSlabs(
+                bounds[offset], bounds[offset + 1], bounds[offset + 2], bounds[offset + 3], bounds[offset + 4], bounds[offset + 5],
+                origin, invDirection, tMax, entryExit);
+    }
+
+    // https://en.wikipedia.org/wiki/Slab_method
+    // If the ray's direction has a zero component, then the inverse is infinite. Should the origin also lie on that
+    // slab's plane the product is NaN, and because every comparison with NaN is false that slab is simply ignored.
+    private static boolean intersectSlabs(double minX, double minY, double minZ, double maxX, double maxY, double maxZ,
+                                          Vector3 origin, Vector3 invDirection, double tMax, double[] entryExit) {
+        double tEntry = 0.0;
+        double tExit = tMax;
+
+        double t0 = (minX - origin._x) * invDirection._x;
+        double t1 = (maxX - origin._x) * invDirection._x;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tEntry) tEntry = t0;
+        if (t1 < tExit) tExit = t1;
+
+        t0 = (minY - origin._y) * invDirection._y;
+        t1 = (maxY - origin._y) * invDirection._y;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tEntry) tEntry = t0;
+        if (t1 < tExit) tExit = t1;
+
+        t0 = (minZ - origin._z) * invDirection._z;
+        t1 = (maxZ - origin._z) * invDirection._z;
+        if (t0 > t1) { double t = t0; t0 = t1; t1 = t; }
+        if (t0 > tEntry) tEntry = t0;
+        if (t1 < tExit) tExit = t1;
+
+        // The small tolerance stops rays that graze a flat box (e.g. one around a single wall) from missing it.
+        if (tEntry > tExit * (1.0 + 1e-9) + 1e-9) {
+            return false;
+        }
+        entryExit[0] = tEntry;
+        entryExit[1] = tExit;
+        return true;
     }
 
     public String buildDebugString() {
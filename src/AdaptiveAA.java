@@ -0,0 +1,91 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// Adaptive anti-aliasing. Each pixel starts with two samples on its diagonal, and more samples are only taken while
+// the samples so far disagree, i.e. the largest difference between them in any colour channel is above the contrast
+// threshold. Flat areas cost two primary rays per pixel, edges and detailed textures up to the maximum.
+// https://en.wikipedia.org/wiki/Spatial_anti-aliasing#Adaptive_sampling
+//
+// The samples are added in batches that are each centred on the middle of the pixel, so stopping after any batch
+// doesn't shift the pixel. The first two batches are the same 2x2 grid that SuperSamplingAA uses.
+public class AdaptiveAA implements IAntiAliasing {
+    private static final double[][] SAMPLE_BATCHES = {
+            { 0.25, 0.25,   0.75, 0.75 },
+            { 0.75, 0.25,   0.25, 0.75 },
+            { 0.5, 0.125,   0.875, 0.5,   0.5, 0.875,   0.125, 0.5 },
+            { 0.375, 0.375,   0.625, 0.625,   0.625, 0.375,   0.375, 0.625 },
+            { 0.125, 0.125,   0.875, 0.875,   0.875, 0.125,   0.125, 0.875 }
+    };
+    private final Camera _camera;
+    private final RayCaster _rayCaster;
+    private final RayTracer _rayTracer;
+    private final int _numRayBounces;
+    private final int _maxSamples;
+    private final double _contrastThreshold;
+    private final LongAdder _numPixels;
+    private final LongAdder _numSamples;
+
+    public AdaptiveAA(Camera camera, RayCaster rayCaster, RayTracer rayTracer, int numRayBounces, int maxSamples,
+                      double contrastThreshold) {
+        _camera = camera;
+        _rayCaster = rayCaster;
+        _rayTracer = rayTracer;
+        _numRayBounces = numRayBounces;
+        _maxSamples = Math.max(maxSamples, getMinNumSamples());
+        _contrastThreshold = contrastThreshold;
+        _numPixels = new LongAdder();
+        _numSamples = new LongAdder();
+    }
+
+    public static int getMinNumSamples() { return SAMPLE_BATCHES[0].length / 2; }
+
+    public static int getMaxNumSamples() {
+        int numSamples = 0;
+        for (double[] batch : SAMPLE_BATCHES) {
+            numSamples += batch.length / 2;
+        }
+        return numSamples;
+    }
+
+    // The average number of samples taken per pixel since the last call to resetStatistics().
+    public double getAverageSamplesPerPixel() {
+        long numPixels = _numPixels.sum();
+        return numPixels > 0 ? (double)_numSamples.sum() / (double)numPixels : 0.0;
+    }
+
+    public void resetStatistics() {
+        _numPixels.reset();
+        _numSamples.reset();
+    }
+
+    @Override
+    public Vector3 takeSample(double imageX, double imageY) {
+        TraceContext context = _rayTracer.getContext();
+        Vector3 combinedSample = context._pixelColour.set(0.0, 0.0, 0.0);
+        double minR = Double.MAX_VALUE, minG = Double.MAX_VALUE, minB = Double.MAX_VALUE;
+        double maxR = -Double.MAX_VALUE, maxG = -Double.MAX_VALUE, maxB = -Double.MAX_VALUE;
+        int numSamples = 0;
+        for (double[] batch : SAMPLE_BATCHES) {
+            if (numSamples + batch.length / 2 > _maxSamples) {
+                break;
+            }
+            // Stop as soon as the samples agree. There's no contrast to measure until there are some samples.
+            if (numSamples > 0 &&
+                maxR - minR <= _contrastThreshold && maxG - minG <= _contrastThreshold && maxB - minB <= _contrastThreshold) {
+                break;
+            }
+            for (int i = 0; i < batch.length; i += 2) {
+                Ray rayWorldCoords = _rayCaster.castRay(imageX + batch[i], imageY + batch[i + 1], _camera, context._primaryRay);
+                rayWorldCoords.setCone(0.0, rayWorldCoords.getConeSpreadAngle() / 2.0); // As for SuperSamplingAA's 2x2 grid
+                Vector3 sample = _rayTracer.traceRay(rayWorldCoords, _numRayBounces, context, context._sampleColour);
+                combinedSample.addInPlace(sample);
+                minR = Math.min(minR, sample._x); maxR = Math.max(maxR, sample._x);
+                minG = Math.min(minG, sample._y); maxG = Math.max(maxG, sample._y);
+                minB = Math.min(minB, sample._z); maxB = Math.max(maxB, sample._z);
+            }
+            numSamples += batch.length / 2;
+        }
+        _numPixels.increment();
+        _numSamples.add(numSamples);
+        return combinedSample.multiplyInPlace(1.0 / numSamples);
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+// Loads a scene's assets on a pool with a thread per core (or numLoadThreads), so that decoding textures, parsing meshes and building their
+// hierarchies all overlap with each other and with whatever the caller does in the meantime. Everything is handed back
+// as a CompletableFuture, and join() waits for one while turning its failure back into the exception that caused it.
+//
+// Textures are shared. They're keyed by the canonical path of their file, so an image that several materials use is
+// decoded once, however it's named. Their mip pyramids are only built, as they're loaded, for TRILINEAR filtering, the
+// only filtering that reads them.
+public class AssetLoader implements AutoCloseable {
+    private final ForkJoinPool _pool;
+    private final ConcurrentHashMap<String, CompletableFuture<Texture>> _textures;
+    private final ArrayList<CompletableFuture<Void>> _pendingTextures;
+    private final boolean _buildMipLevels;
+
+    public AssetLoader(RenderingOptions ro) {
+        _buildMipLevels = ro._textureFiltering == TextureSampling.Filtering.TRILINEAR;
+        _pool = new ForkJoinPool(ro._numLoadThreads > 0 ? ro._numLoadThreads : Runtime.getRuntime().availableProcessors());
+        _textures = new ConcurrentHashMap<>();
+        _pendingTextures = new ArrayList<>();
+    }
+
+    public CompletableFuture<Texture> loadTexture(File file) throws IOException {
+        return _textures.computeIfAbsent(file.getCanonicalPath(), path -> submit(() -> {
+            Texture texture = Texture.load(file);
+            if (_buildMipLevels) {
+                texture.buildMipLevels();
+            }
+            return texture;
+        }));
+    }
+
+    // Hands the texture to setter once it's been loaded, e.g. to a material. Call awaitTextures() before using whatever
+    // the textures were given to.
+    public void loadTexture(File file, Consumer<Texture> setter) throws IOException {
+        CompletableFuture<Void> pending = loadTexture(file).thenAccept(setter);
+        synchronized (_pendingTextures) {
+            _pendingTextures.add(pending);
+        }
+    }
+
+    // Waits for every texture that's been passed to a setter so far.
+    public void awaitTextures() throws IOException {
+        CompletableFuture<?>[] pending;
+        synchronized (_pendingTextures) {
+            pending = _pendingTextures.toArray(new CompletableFuture<?>[0]);
+        }
+        join(CompletableFuture.allOf(pending));
+    }
+
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.call();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, _pool);
+    }
+
+    public static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        }
+        catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException)cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Override
+    public void close() {
+        _pool.shutdown();
+    }
+}
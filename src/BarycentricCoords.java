@@ -7,23 +7,29 @@ public class BarycentricCoords {
     }
 
     public static BarycentricCoords calculate(Vector3 p, Vector3 v0, Vector3 v1, Vector3 v2) {
-        Vector3 edge0 = v1.subtract(v0);
-        Vector3 edge1 = v2.subtract(v0);
-        Vector3 lineSegment = p.subtract(v0);
+        BarycentricCoords bc = new BarycentricCoords(0.0, 0.0, 0.0);
+        return calculate(p, v0, v1, v2, bc) ? bc : null;
+    }
+
+    // Writes the coordinates to out. Returns false if they can't be calculated.
+    public static boolean calculate(Vector3 p, Vector3 v0, Vector3 v1, Vector3 v2, BarycentricCoords out) {
+        double e0x = v1._x - v0._x, e0y = v1._y - v0._y, e0z = v1._z - v0._z;
+        double e1x = v2._x - v0._x, e1y = v2._y - v0._y, e1z = v2._z - v0._z;
+        double lx = p._x - v0._x, ly = p._y - v0._y, lz = p._z - v0._z;
 
-        double d00 = edge0.dotProduct(edge0);
-        double d01 = edge0.dotProduct(edge1);
-        double d11 = edge1.dotProduct(edge1);
-        double d20 = lineSegment.dotProduct(edge0);
-        double d21 = lineSegment.dotProduct(edge1);
+        double d00 = e0x * e0x + e0y * e0y + e0z * e0z;
+        double d01 = e0x * e1x + e0y * e1y + e0z * e1z;
+        double d11 = e1x * e1x + e1y * e1y + e1z * e1z;
+        double d20 = lx * e0x + ly * e0y + lz * e0z;
+        double d21 = lx * e1x + ly * e1y + lz * e1z;
         double denominator = d00 * d11 - d01 * d01;
         if (denominator == 0.0) { // if 0 then v0, v1, v2 are the same location in 3D space
-            return null;
+            return false;
         }
 
-        double v = (d11 * d20 - d01 * d21) / denominator;
-        double w = (d00 * d21 - d01 * d20) / denominator;
-        double u = 1.0 - v - w;
-        return new BarycentricCoords(u, v, w);
+        out._v = (d11 * d20 - d01 * d21) / denominator;
+        out._w = (d00 * d21 - d01 * d20) / denominator;
+        out._u = 1.0 - out._v - out._w;
+        return true;
     }
 }
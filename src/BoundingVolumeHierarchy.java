@@ -1,72 +1,184 @@
-import java.util.Iterator;
-import java.util.Set;
-import java.util.function.BiConsumer;
+import java.util.Arrays;
 
-public class BoundingVolumeHierarchy {
+// The bottom level of the scene's acceleration structure: a hierarchy over the faces of one PolyhedronMesh, in the
+// mesh's local coordinates.
+public class BoundingVolumeHierarchy extends LinearBoundingVolumeHierarchy<BoundingVolumeHierarchy.TraceResult> {
     private final PolyhedronMesh _polyhedronMesh;
-    private final BoundingVolumeNode _root;
+    private int[] _insertedFaces;
+    private int[] _insertedPieces;
+    private int _numInsertedFaces;
+    private int[] _faces; // The mesh's number for each face in the hierarchy
+    private int[] _facePieces; // The index of each face's piece in the mesh, which has its material
+    private LeafTriangles _leafTriangles;
+    private int[] _faceSlots; // The slot of each face in _leafTriangles
+    private ITriangleKernel _triangleKernel;
 
     public BoundingVolumeHierarchy(PolyhedronMesh polyhedronMesh) {
         _polyhedronMesh = polyhedronMesh;
-        _root = new BoundingVolumeNode(_polyhedronMesh);
+        _insertedFaces = new int[0];
+        _insertedPieces = new int[0];
+        _triangleKernel = new ScalarTriangleKernel();
     }
 
-    public void build(int maxDepth) {
-        _root.buildHierarchy(determineLargestBox(), maxDepth);
-    }
-
-    public void insertFaces(PolyhedronMesh.Face[] faces, Material material) {
+    // Faces are gathered by insertFaces() first, then build() partitions them into the hierarchy. Only the faces' pieces
+    // are kept, not their materials, so the hierarchy can be built before the mesh's materials have been resolved.
+    public void insertFaces(int[] faces, int piece) {
         if (faces == null) {
-            LogFile.Instance.write("There are no flat faces");
+            LogFile.Instance.debug(() -> "There are no faces");
             return;
         }
-        LogFile.Instance.write("There are " + faces.length + " flat faces");
-        for (int i = 0; i < faces.length; ++i) {
-            Aabb faceAabb = faces[i].buildAabb(_polyhedronMesh.getVertices());
-            if (_root._aabb.contains(faceAabb)) {
-                LogFile.Instance.write("The BVH root node contains face " + i + ". " + faceAabb.buildDebugString());
-                _root.insertFace(faces[i], faceAabb, material, 1);
-            }
-            else {
-                LogFile.Instance.write("The BVH root node does not contain face " + i + ". " + faceAabb.buildDebugString());
-            }
+        LogFile.Instance.debug(() -> "There are " + faces.length + " faces");
+        if (_numInsertedFaces + faces.length > _insertedFaces.length) {
+            int capacity = Math.max(_numInsertedFaces + faces.length, _insertedFaces.length * 2);
+            _insertedFaces = Arrays.copyOf(_insertedFaces, capacity);
+            _insertedPieces = Arrays.copyOf(_insertedPieces, capacity);
         }
+        System.arraycopy(faces, 0, _insertedFaces, _numInsertedFaces, faces.length);
+        Arrays.fill(_insertedPieces, _numInsertedFaces, _numInsertedFaces + faces.length, piece);
+        _numInsertedFaces += faces.length;
     }
 
-    public void traceRay(Ray rayLocalCoords, BiConsumer<PolyhedronMesh.Face, Material> faceFoundFn) {
-        LineSegment clip = _root._aabb.clipRay(rayLocalCoords);
-        if (clip != null) {
-            _root.traceRay(clip._begin, clip._end, faceFoundFn);
+    public void build(int maxLeafSize) {
+        _faces = Arrays.copyOf(_insertedFaces, _numInsertedFaces);
+        _facePieces = Arrays.copyOf(_insertedPieces, _numInsertedFaces);
+        _insertedFaces = new int[0];
+        _insertedPieces = new int[0];
+        _numInsertedFaces = 0;
+
+        Aabb[] faceBounds = new Aabb[_faces.length];
+        for (int i = 0; i < _faces.length; ++i) {
+            faceBounds[i] = _polyhedronMesh.buildFaceAabb(_faces[i]);
         }
+        buildHierarchy(faceBounds, maxLeafSize);
+        createLeafTriangles();
     }
 
-    private Aabb determineLargestBox() {
-        Aabb box = new Aabb();
-        for (int piece = 0; piece < _polyhedronMesh.getPieces().length; ++piece) {
-            adjustBox(box, _polyhedronMesh.getPieces()[piece].getFlatShadedFaces());
+    // Used instead of insertFaces() and build() when the hierarchy has been loaded from a SceneCache.
+    public void restore(int[] faces, int[] facePieces,
+                        double[] nodeBounds, int[] nodeData, int[] primitiveIndices, int maxDepth) {
+        if (faces.length != facePieces.length || faces.length != primitiveIndices.length) {
+            throw new IllegalArgumentException("The number of faces doesn't match");
+        }
+        _faces = faces;
+        _facePieces = facePieces;
+        restoreHierarchy(nodeBounds, nodeData, primitiveIndices, maxDepth);
+        createLeafTriangles();
+    }
 
-            Set<Integer> smoothShadedFaceGroups = _polyhedronMesh.getPieces()[piece].getGroupIds();
-            Iterator<Integer> faceGroup = smoothShadedFaceGroups.iterator();
-            while (faceGroup.hasNext()) {
-                adjustBox(box, _polyhedronMesh.getPieces()[piece].getSmoothShadedFaceGroup(faceGroup.next()));
-            }
+    private void createLeafTriangles() {
+        int[] primitiveIndices = getPrimitiveIndices();
+        _leafTriangles = new LeafTriangles(_polyhedronMesh, _faces, primitiveIndices, false);
+        _faceSlots = new int[primitiveIndices.length];
+        for (int slot = 0; slot < primitiveIndices.length; ++slot) {
+            _faceSlots[primitiveIndices[slot]] = slot;
         }
-        return box;
     }
 
-    private void adjustBox(Aabb box, PolyhedronMesh.Face[] faces) {
-        if (faces == null) {
-            return;
+    // The faces are tested in single precision too, so every test of a face, whether a whole leaf's or a single face's
+    // (e.g. isFaceOccluding()), sees the same triangle.
+    @Override
+    public void useSinglePrecision() {
+        super.useSinglePrecision();
+        if (!_leafTriangles.isSinglePrecision()) {
+            _leafTriangles = new LeafTriangles(_polyhedronMesh, _faces, getPrimitiveIndices(), true);
+        }
+    }
+
+    // How rays are tested against the faces.
+    public void setTriangleKernel(ITriangleKernel triangleKernel) { _triangleKernel = triangleKernel; }
+    public ITriangleKernel getTriangleKernel() { return _triangleKernel; }
+
+    public PolyhedronMesh getMesh() { return _polyhedronMesh; }
+    public int getNumFaces() { return _faces.length; }
+    public int getFace(int index) { return _faces[index]; } // The face's number in the mesh
+    public int getFacePiece(int index) { return _facePieces[index]; }
+    public Material getFaceMaterial(int index) { return _polyhedronMesh.getPieces()[_facePieces[index]].getMaterial(); }
+
+    public static class TraceResult {
+        public int _faceIndex = -1;
+        public double _distance;
+        public long _numNodesVisited;
+        public long _numRayTriIntersectionTests;
+        private final double[] _leafDistance = new double[1];
+
+        public void reset() {
+            _faceIndex = -1;
+            _distance = 0.0;
+            _numNodesVisited = 0;
+            _numRayTriIntersectionTests = 0;
+        }
+    }
+
+    // Finds the closest face along the ray that's nearer than tMax.
+    public boolean traceRay(Ray rayLocalCoords, double tMax, TraceResult result, TraversalStack stack) {
+        result._faceIndex = -1;
+        result._distance = traverse(rayLocalCoords, tMax, stack, result);
+        return result._faceIndex >= 0;
+    }
+
+    // Returns true if any face is hit closer than maxDistance.
+    public boolean isOccluded(Ray rayLocalCoords, double maxDistance, TraceResult result, TraversalStack stack) {
+        return traverseAny(rayLocalCoords, maxDistance, stack, result);
+    }
+
+    // Marks each of the packet's rays that a face blocks as occluded. The rays must be in the mesh's coordinates.
+    public void occludePacket(ShadowPacket packet, TraceResult result, TraversalStack stack) {
+        traversePacket(packet, stack, result);
+    }
+
+    @Override
+    protected double intersectPrimitive(int faceIndex, Ray ray, double closest, TraceResult result) {
+        ++result._numRayTriIntersectionTests;
+        if (_triangleKernel.intersect(_leafTriangles, _faceSlots[faceIndex], 1, ray.getOrigin(), ray.getDirection(),
+                                      closest, result._leafDistance) >= 0) {
+            result._faceIndex = faceIndex;
+            return result._leafDistance[0];
+        }
+        return closest;
+    }
+
+    @Override
+    protected double intersectLeaf(int offset, int count, Ray ray, double closest, TraceResult result) {
+        result._numRayTriIntersectionTests += count;
+        int slot = _triangleKernel.intersect(_leafTriangles, offset, count, ray.getOrigin(), ray.getDirection(), closest,
+                result._leafDistance);
+        if (slot >= 0) {
+            result._faceIndex = getPrimitiveIndices()[slot];
+            return result._leafDistance[0];
+        }
+        return closest;
+    }
+
+    // The face that blocks the ray is left in result._faceIndex.
+    @Override
+    protected boolean occludesLeaf(int offset, int count, Ray ray, double tMax, TraceResult result) {
+        result._numRayTriIntersectionTests += count;
+        int slot = _triangleKernel.findOccluder(_leafTriangles, offset, count, ray.getOrigin(), ray.getDirection(), tMax);
+        if (slot >= 0) {
+            result._faceIndex = getPrimitiveIndices()[slot];
+            return true;
         }
-        for (int i = 0; i < faces.length; ++i) {
-            box.adjust(_polyhedronMesh.getVertices()[faces[i]._faceVertices[0]._vertexIndex]);
-            box.adjust(_polyhedronMesh.getVertices()[faces[i]._faceVertices[1]._vertexIndex]);
-            box.adjust(_polyhedronMesh.getVertices()[faces[i]._faceVertices[2]._vertexIndex]);
+        return false;
+    }
+
+    // The face that blocks the ray is left in result._faceIndex.
+    @Override
+    protected boolean occludesPrimitive(int faceIndex, Ray ray, double tMax, TraceResult result) {
+        ++result._numRayTriIntersectionTests;
+        if (isFaceOccluding(faceIndex, ray, tMax)) {
+            result._faceIndex = faceIndex;
+            return true;
         }
-        box.rebuildPlanes();
+        return false;
+    }
+
+    public boolean isFaceOccluding(int faceIndex, Ray rayLocalCoords, double maxDistance) {
+        return _triangleKernel.findOccluder(_leafTriangles, _faceSlots[faceIndex], 1, rayLocalCoords.getOrigin(),
+                                            rayLocalCoords.getDirection(), maxDistance) >= 0;
     }
 
-    public void printDebugInformation() {
-        _root.printDebugInformation(0);
+    @Override
+    protected void nodeVisited(TraceResult result) {
+        ++result._numNodesVisited;
     }
 }
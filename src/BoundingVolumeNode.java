@@ -1,104 +1,169 @@
 import java.util.ArrayList;
-import java.util.function.BiConsumer;
 
+// A node within a binary bounding volume hierarchy. The hierarchy partitions the primitives (faces or whole objects)
+// rather than the space they're in, so every primitive ends up in exactly one leaf and the boxes of sibling nodes may
+// overlap. Primitives are identified by an index that's meaningful to whoever built the hierarchy.
+//
+// Nodes are split with the surface area heuristic (SAH), evaluated at a fixed number of bins along each axis.
+// https://www.pbr-book.org/3ed-2018/Primitives_and_Intersection_Acceleration/Bounding_Volume_Hierarchies
+// https://www.sci.utah.edu/~wald/Publications/2007/ParallelBVHBuild/fastbuild.pdf
 public class BoundingVolumeNode {
-    public static final int NUM_CHILDREN = 8;
-    private final PolyhedronMesh _polyhedronMesh;
+    public static final int NUM_CHILDREN = 2;
+    private static final int NUM_BINS = 12;
+    private static final double TRAVERSAL_COST = 1.0;
+    private static final double INTERSECTION_COST = 1.0;
     public BoundingVolumeNode[] _children;
     public Aabb _aabb; // Axis-aligned bounding box
-    public ArrayList<Pair<PolyhedronMesh.Face, Material>> _facesAndMaterials;
+    public ArrayList<Integer> _primitiveIndices;
 
-    public BoundingVolumeNode(PolyhedronMesh polyhedronMesh) {
-        _polyhedronMesh = polyhedronMesh;
+    public BoundingVolumeNode() {
         _children = null;
         _aabb = null;
-        _facesAndMaterials = new ArrayList<>();
+        _primitiveIndices = new ArrayList<>();
     }
 
-    public void buildHierarchy(Aabb aabb, int depth) {
-        _aabb = aabb;
-        _aabb.rebuildPlanes();
+    public static class Primitive {
+        public final int _index;
+        public final Aabb _aabb;
+        public final Vector3 _centroid;
+        public Primitive(int index, Aabb aabb) {
+            _index = index;
+            _aabb = aabb;
+            _centroid = aabb.getCentre();
+        }
+    }
 
-        if (depth <= 0) {
-            return;
+    private static class Bin {
+        public Aabb _aabb = Aabb.createEmpty();
+        public int _count = 0;
+    }
+
+    // Builds this node from primitives[first, last). The primitives array is reordered in place.
+    public void buildHierarchy(Primitive[] primitives, int first, int last, int maxLeafSize) {
+        _aabb = Aabb.createEmpty();
+        Aabb centroidBounds = Aabb.createEmpty();
+        for (int i = first; i < last; ++i) {
+            _aabb.adjust(primitives[i]._aabb);
+            centroidBounds.adjust(primitives[i]._centroid);
         }
 
-        _children = new BoundingVolumeNode[NUM_CHILDREN];
-        for (int i = 0; i < NUM_CHILDREN; ++i) {
-            _children[i] = new BoundingVolumeNode(_polyhedronMesh);
+        final int count = last - first;
+        if (count <= 1) {
+            makeLeaf(primitives, first, last);
+            return;
         }
 
-        final double halfWidth = (aabb._max._x - aabb._min._x) / 2.0;
-        final double halfHeight = (aabb._max._y - aabb._min._y) / 2.0;
-        final double halfDepth = (aabb._max._z - aabb._min._z) / 2.0;
-
-        final double minX = aabb._min._x;
-        final double centreX = minX + halfWidth;
-        final double maxX = aabb._max._x;
-
-        final double minY = aabb._min._y;
-        final double centreY = minY + halfHeight;
-        final double maxY = aabb._max._y;
-
-        final double minZ = aabb._min._z;
-        final double centreZ = minZ + halfDepth;
-        final double maxZ = aabb._max._z;
-        
-        _children[0].buildHierarchy(new Aabb(new Vector3(minX, centreY, minZ), new Vector3(centreX, maxY, centreZ)), depth - 1);
-        _children[1].buildHierarchy(new Aabb(new Vector3(centreX, centreY, minZ), new Vector3(maxX, maxY, centreZ)), depth - 1);
-        _children[2].buildHierarchy(new Aabb(new Vector3(minX, centreY, centreZ), new Vector3(centreX, maxY, maxZ)), depth - 1);
-        _children[3].buildHierarchy(new Aabb(new Vector3(centreX, centreY, centreZ), new Vector3(maxX, maxY, maxZ)), depth - 1);
-
-        _children[4].buildHierarchy(new Aabb(new Vector3(minX, minY, minZ), new Vector3(centreX, centreY, centreZ)), depth - 1);
-        _children[5].buildHierarchy(new Aabb(new Vector3(centreX, minY, minZ), new Vector3(maxX, centreY, centreZ)), depth - 1);
-        _children[6].buildHierarchy(new Aabb(new Vector3(minX, minY, centreZ), new Vector3(centreX, centreY, maxZ)), depth - 1);
-        _children[7].buildHierarchy(new Aabb(new Vector3(centreX, minY, centreZ), new Vector3(maxX, centreY, maxZ)), depth - 1);
-    }
+        // Find the cheapest bin boundary to split at on any axis.
+        double bestCost = Double.MAX_VALUE;
+        int bestAxis = -1;
+        int bestSplit = -1;
+        for (int axis = 0; axis < 3; ++axis) {
+            double minCentroid = getComponent(centroidBounds._min, axis);
+            double extent = getComponent(centroidBounds._max, axis) - minCentroid;
+            if (extent <= 1e-9) {
+                continue; // All of the centroids are in the same place along this axis
+            }
 
-    public void insertFace(PolyhedronMesh.Face face, Aabb faceAabb, Material material, int depth) {
-        String spaces = " ";
-        if (_children != null) {
-            // Is this face better suited to be inside one of the children?
-            for (int i = 0; i < _children.length; ++i) {
-                if (_children[i]._aabb.contains(faceAabb)) {
-                    LogFile.Instance.write(spaces.repeat(depth * 4) + "Child[" + i + "] can contain the face. This node: " + _children[i]._aabb.buildDebugString());
-                    _children[i].insertFace(face, faceAabb, material, depth + 1);
-                    return;
+            Bin[] bins = new Bin[NUM_BINS];
+            for (int b = 0; b < NUM_BINS; ++b) {
+                bins[b] = new Bin();
+            }
+            for (int i = first; i < last; ++i) {
+                Bin bin = bins[toBinIndex(primitives[i], axis, minCentroid, extent)];
+                bin._aabb.adjust(primitives[i]._aabb);
+                ++bin._count;
+            }
+
+            // Sweep from the right to find the area and count to the right of each boundary, then sweep from the left.
+            double[] rightAreas = new double[NUM_BINS - 1];
+            int[] rightCounts = new int[NUM_BINS - 1];
+            Aabb right = Aabb.createEmpty();
+            int rightCount = 0;
+            for (int b = NUM_BINS - 1; b > 0; --b) {
+                right.adjust(bins[b]._aabb);
+                rightCount += bins[b]._count;
+                rightAreas[b - 1] = right.getSurfaceArea();
+                rightCounts[b - 1] = rightCount;
+            }
+
+            Aabb left = Aabb.createEmpty();
+            int leftCount = 0;
+            for (int b = 0; b < NUM_BINS - 1; ++b) {
+                left.adjust(bins[b]._aabb);
+                leftCount += bins[b]._count;
+                if (leftCount == 0 || rightCounts[b] == 0) {
+                    continue;
+                }
+                double cost = left.getSurfaceArea() * leftCount + rightAreas[b] * rightCounts[b];
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestSplit = b;
                 }
             }
-            LogFile.Instance.write(spaces.repeat(depth * 4) + "None of the children can contain the face. Inserting the face at this depth. This node: " + _aabb.buildDebugString());
-        }
-        else {
-            LogFile.Instance.write(spaces.repeat(depth * 4) + "There are no children. Inserting the face at this depth. This node: " + _aabb.buildDebugString());
         }
-        _facesAndMaterials.add(new Pair<>(face, material));
-        LogFile.Instance.write(spaces.repeat(depth * 4) + "This node contains " + _facesAndMaterials.size() + " faces");
-    }
 
-    public void traceRay(Vector3 begin, Vector3 end, BiConsumer<PolyhedronMesh.Face, Material> faceFoundFn) {
-        for (int i = 0; i < _facesAndMaterials.size(); ++i) {
-            final Pair<PolyhedronMesh.Face, Material> pair = _facesAndMaterials.get(i);
-            faceFoundFn.accept(pair.getFirst(), pair.getSecond());
-        }
-        if (_children == null) {
+        // Nodes with more primitives than the leaf size are always split (if they can be). Smaller nodes are only split
+        // if the SAH says that's cheaper than testing every primitive.
+        double leafCost = INTERSECTION_COST * count;
+        double parentArea = _aabb.getSurfaceArea();
+        double splitCost = bestAxis < 0 ? Double.MAX_VALUE :
+                TRAVERSAL_COST + INTERSECTION_COST * bestCost / Math.max(parentArea, 1e-12);
+        if (bestAxis < 0 || (count <= maxLeafSize && splitCost >= leafCost)) {
+            makeLeaf(primitives, first, last);
             return;
         }
-        for (int i = 0; i < _children.length; ++i) {
-            LineSegment clip = _children[i]._aabb.clipLineSegment(begin, end);
-            if (clip != null) {
-                _children[i].traceRay(clip._begin, clip._end, faceFoundFn);
+
+        // Partition the primitives so that those in bins [0, bestSplit] come first.
+        double minCentroid = getComponent(centroidBounds._min, bestAxis);
+        double extent = getComponent(centroidBounds._max, bestAxis) - minCentroid;
+        int middle = first;
+        for (int i = first; i < last; ++i) {
+            if (toBinIndex(primitives[i], bestAxis, minCentroid, extent) <= bestSplit) {
+                Primitive temp = primitives[i];
+                primitives[i] = primitives[middle];
+                primitives[middle] = temp;
+                ++middle;
             }
         }
+
+        _children = new BoundingVolumeNode[NUM_CHILDREN];
+        _children[0] = new BoundingVolumeNode();
+        _children[1] = new BoundingVolumeNode();
+        _children[0].buildHierarchy(primitives, first, middle, maxLeafSize);
+        _children[1].buildHierarchy(primitives, middle, last, maxLeafSize);
     }
 
-    public void printDebugInformation(int depth) {
-        String spaces = " ";
-        LogFile.Instance.write(spaces.repeat(depth * 4) + "Depth is " + depth + ". " + _aabb.buildDebugString() + ". Num faces is " + _facesAndMaterials.size());
+    private void makeLeaf(Primitive[] primitives, int first, int last) {
+        for (int i = first; i < last; ++i) {
+            _primitiveIndices.add(primitives[i]._index);
+        }
+    }
 
-        if (_children != null) {
-            for (int i = 0; i < _children.length; ++i) {
-                _children[i].printDebugInformation(depth + 1);
-            }
+    private static int toBinIndex(Primitive primitive, int axis, double minCentroid, double extent) {
+        int index = (int)(NUM_BINS * (getComponent(primitive._centroid, axis) - minCentroid) / extent);
+        return Math.max(0, Math.min(NUM_BINS - 1, index));
+    }
+
+    private static double getComponent(Vector3 v, int axis) {
+        switch (axis) {
+            case 0: return v._x;
+            case 1: return v._y;
+            default: return v._z;
+        }
+    }
+
+    public int getMaxDepth() {
+        if (_children == null) {
+            return 0;
+        }
+        return 1 + Math.max(_children[0].getMaxDepth(), _children[1].getMaxDepth());
+    }
+
+    public int countNodes() {
+        if (_children == null) {
+            return 1;
         }
+        return 1 + _children[0].countNodes() + _children[1].countNodes();
     }
 }
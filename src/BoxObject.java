@@ -42,17 +42,37 @@ public class BoxObject extends Object {
                         size._x, size._y, materials, textureSampling));
     }
 
-    public IntersectResult intersect(Ray ray) {
-        IntersectResult result = new IntersectResult();
-        double closetDistance = Double.MAX_VALUE;
-        for (PlaneObject plane : _planes) {
-            Ray lc = plane.toLocalCoords(ray);
-            IntersectResult r = plane.intersect(lc);
-            if (r._intersected && r._distance < closetDistance) {
+    @Override
+    public boolean isOccluding(Ray ray, double maxDistance, TraceContext context) {
+        for (int i = 0; i < _planes.size(); ++i) {
+            PlaneObject plane = _planes.get(i);
+            if (plane.isOccluding(plane.toLocalCoords(ray, context._childRay), maxDistance, context)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Aabb getLocalBounds() {
+        Vector3 halfSize = getScale().multiply(0.5);
+        return new Aabb(halfSize.negate(), halfSize);
+    }
+
+    @Override
+    public boolean intersect(Ray ray, double tMax, IntersectResult result, TraceContext context) {
+        boolean intersected = false;
+        double closetDistance = tMax;
+        for (int i = 0; i < _planes.size(); ++i) {
+            PlaneObject plane = _planes.get(i);
+            Ray lc = plane.toLocalCoords(ray, context._childRay);
+            IntersectResult r = context._childResult;
+            if (plane.intersect(lc, closetDistance, r, context)) {
                 closetDistance = r._distance;
-                result = plane.toWorldCoords(r);
+                result.set(plane.toWorldCoords(r));
+                intersected = true;
             }
         }
-        return result;
+        return intersected;
     }
 }
@@ -1,11 +1,14 @@
 public class Camera {
     private final Vector3 _position;
     private final Vector3 _rotation;
+    private final Matrix3 _rotationMatrix;
     public Camera(Vector3 position, Vector3 rotation) {
         _position = position;
         _rotation = rotation;
+        _rotationMatrix = Matrix3.rotateY(_rotation._y).multiply(Matrix3.rotateX(_rotation._x));
     }
 
     public Vector3 getPosition() { return _position; }
     public Vector3 getRotation() { return _rotation; }
+    public Matrix3 getRotationMatrix() { return _rotationMatrix; }
 }
@@ -1,3 +1,15 @@
 public interface IAntiAliasing {
+    // The colour is the calling thread's TraceContext._pixelColour, so it's only valid until the thread takes its next
+    // sample. Nothing is allocated.
     Vector3 takeSample(double imageX, double imageY);
+
+    // Takes a sample for each of the first numPixels pixels, the i'th being at (pixelX[i], pixelY[i]), and writes it to
+    // samples[i]. TileRenderer hands a tile's pixels over this way, in square groups of neighbours, when shadow ray
+    // packets are on (see RenderingOptions._shadowRayPackets), so that a sampler can trace them together with
+    // RayTracer.traceRays().
+    default void takeSamples(int[] pixelX, int[] pixelY, int numPixels, Vector3[] samples) {
+        for (int i = 0; i < numPixels; ++i) {
+            samples[i].set(takeSample(pixelX[i], pixelY[i]));
+        }
+    }
 }
@@ -0,0 +1,32 @@
+// Tests a ray against the triangles in a range of LeafTriangles' slots, i.e. against a BVH leaf's faces. The ray's
+// direction must be unit length, and a triangle only counts as hit between a small distance (1e-3, as for
+// PolyhedronMesh.intersectFace()) and the distance given. Where several triangles are hit equally near, the first one
+// counts.
+public interface ITriangleKernel {
+    String getName();
+
+    // Returns the slot of the nearest triangle hit closer than closest, or -1 if there isn't one. The distance to it
+    // is written to distance[0].
+    int intersect(LeafTriangles triangles, int offset, int count, Vector3 origin, Vector3 direction, double closest,
+                  double[] distance);
+
+    // Returns the slot of the first triangle hit closer than tMax, or -1 if there isn't one.
+    int findOccluder(LeafTriangles triangles, int offset, int count, Vector3 origin, Vector3 direction, double tMax);
+
+    // The Vector API is an incubator module, so it's only there when the JVM is started with
+    // --add-modules jdk.incubator.vector. Without it the scalar kernel is used. VectorTriangleKernel is in the vector
+    // folder, which is compiled separately with the module added (see the README), so that src builds without it. It's
+    // only loaded if the module is there, because loading it without the module fails, and if it wasn't compiled the
+    // scalar kernel is used too.
+    static ITriangleKernel create(boolean useVectorApi) {
+        if (useVectorApi && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (ITriangleKernel)Class.forName("VectorTriangleKernel").getDeclaredConstructor().newInstance();
+            }
+            catch (ReflectiveOperationException | LinkageError e) {
+                LogFile.Instance.warning(() -> "Unable to use the Vector API: " + e);
+            }
+        }
+        return new ScalarTriangleKernel();
+    }
+}
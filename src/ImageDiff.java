@@ -0,0 +1,74 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import javax.imageio.ImageIO;
+
+// Compares two images of the same size pixel by pixel, e.g. renders of the same scene with different options (see
+// Main's --diff-images). Differences are in 8 bit colour channel steps.
+public class ImageDiff {
+    private final int _numPixels;
+    private int _numPixelsDifferent;
+    private int _maxDifference;
+    private long _totalDifference;
+    private double _sumSquaredDifferences;
+
+    public ImageDiff(BufferedImage a, BufferedImage b) {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) {
+            throw new IllegalArgumentException("The images are different sizes: " + a.getWidth() + "x" + a.getHeight() +
+                    " and " + b.getWidth() + "x" + b.getHeight());
+        }
+        _numPixels = a.getWidth() * a.getHeight();
+        for (int y = 0; y < a.getHeight(); ++y) {
+            for (int x = 0; x < a.getWidth(); ++x) {
+                int rgbA = a.getRGB(x, y);
+                int rgbB = b.getRGB(x, y);
+                if (rgbA == rgbB) {
+                    continue;
+                }
+                ++_numPixelsDifferent;
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int difference = Math.abs(((rgbA >> shift) & 0xFF) - ((rgbB >> shift) & 0xFF));
+                    _maxDifference = Math.max(_maxDifference, difference);
+                    _totalDifference += difference;
+                    _sumSquaredDifferences += (double)difference * difference;
+                }
+            }
+        }
+    }
+
+    public static ImageDiff compare(File a, File b) throws IOException {
+        return new ImageDiff(read(a), read(b));
+    }
+
+    private static BufferedImage read(File file) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Unable to read the image " + file.getPath());
+        }
+        return image;
+    }
+
+    public boolean isIdentical() { return _numPixelsDifferent == 0; }
+    public int getNumPixelsDifferent() { return _numPixelsDifferent; }
+    public int getMaxDifference() { return _maxDifference; }
+
+    public double getMeanDifference() {
+        return (double)_totalDifference / (3.0 * _numPixels);
+    }
+
+    // The peak signal to noise ratio in decibels, which is infinite for identical images.
+    // https://en.wikipedia.org/wiki/Peak_signal-to-noise_ratio
+    public double getPsnr() {
+        double meanSquaredError = _sumSquaredDifferences / (3.0 * _numPixels);
+        return 10.0 * Math.log10(255.0 * 255.0 / meanSquaredError);
+    }
+
+    public String buildSummary() {
+        if (isIdentical()) {
+            return "The images are identical";
+        }
+        return String.format("%d of %d pixels differ (%.3f%%). The largest difference in a channel is %d, the mean is %.4f, PSNR %.1f dB",
+                _numPixelsDifferent, _numPixels, 100.0 * _numPixelsDifferent / _numPixels, _maxDifference,
+                getMeanDifference(), getPsnr());
+    }
+}
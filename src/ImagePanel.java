@@ -2,6 +2,8 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 
+// Paints an image in the middle of the panel. The image may still be being rendered: TileRenderer writes to the image's
+// raster directly, which stops Java2D from caching a copy of it, so each repaint shows the pixels as they are now.
 public class ImagePanel extends JPanel {
     private final BufferedImage _bufferedImage;
     public ImagePanel(BufferedImage bufferedImage) {
@@ -1,11 +1,25 @@
+// The vectors belong to the result and are written in place, so a result can be reused for many rays.
 public class IntersectResult {
     public boolean _intersected;
     public double _distance;
-    public Vector3 _point;
-    public Vector3 _normal;
+    public final Vector3 _point;
+    public final Vector3 _normal;
     public Material _material;
-    public Vector3 _diffuseTextureColour;
+    public final Vector3 _diffuseTextureColour;
     public IntersectResult() {
         _intersected = false;
+        _point = new Vector3();
+        _normal = new Vector3();
+        _diffuseTextureColour = new Vector3();
+    }
+
+    public IntersectResult set(IntersectResult other) {
+        _intersected = other._intersected;
+        _distance = other._distance;
+        _point.set(other._point);
+        _normal.set(other._normal);
+        _material = other._material;
+        _diffuseTextureColour.set(other._diffuseTextureColour);
+        return this;
     }
 }
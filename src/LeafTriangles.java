@@ -0,0 +1,62 @@
+// The triangles of a BoundingVolumeHierarchy's leaves, stored as a structure of arrays so that an ITriangleKernel can
+// load the same component of several neighbouring triangles at once. Slot i holds the face at position i of the
+// hierarchy's primitive index array, so each leaf's triangles are the consecutive slots from its offset to its offset
+// plus its count. Each triangle is kept as its first vertex and the two edges from it, as
+// PolyhedronMesh.intersectFace() computes them, so in double precision the kernels' results are exactly the same as
+// that gives.
+//
+// The components are kept one after another in a single array: component c of slot i is at c * _stride + i. Each
+// component is padded by GROUP_SIZE_FLOAT - 1 empty slots, which lets a kernel load a whole group of up to that many
+// slots starting at any leaf's offset. Empty slots have zero edges, so they're parallel to every ray and never hit.
+//
+// Single precision triangles (see the constructor) are kept as their three vertices instead, each rounded to the
+// nearest float, and the kernels compute the edges and test them in float arithmetic. Rounding the vertices rather
+// than the edges means triangles that share a vertex still share it exactly, so no cracks open up between them.
+public class LeafTriangles {
+    public static final int GROUP_SIZE = 4; // Double precision triangles a kernel tests at once
+    public static final int GROUP_SIZE_FLOAT = 8; // Single precision triangles a kernel tests at once
+    public static final int V0X = 0, V0Y = 1, V0Z = 2, E0X = 3, E0Y = 4, E0Z = 5, E1X = 6, E1Y = 7, E1Z = 8;
+    public static final int V1X = 3, V1Y = 4, V1Z = 5, V2X = 6, V2Y = 7, V2Z = 8; // For single precision
+    private static final int NUM_COMPONENTS = 9;
+    public final int _stride;
+    private final double[] _components; // Null if the triangles are single precision
+    private final float[] _componentsFloat; // Null unless they are
+
+    // faces holds the mesh's number for each of the hierarchy's faces, which primitiveIndices refers to.
+    public LeafTriangles(PolyhedronMesh mesh, int[] faces, int[] primitiveIndices, boolean singlePrecision) {
+        _stride = primitiveIndices.length + GROUP_SIZE_FLOAT - 1;
+        _components = singlePrecision ? null : new double[NUM_COMPONENTS * _stride];
+        _componentsFloat = singlePrecision ? new float[NUM_COMPONENTS * _stride] : null;
+        final double[] v = mesh.getVertices();
+        for (int slot = 0; slot < primitiveIndices.length; ++slot) {
+            final int face = faces[primitiveIndices[slot]];
+            final int i0 = mesh.getVertexIndex(face, 0) * 3;
+            final int i1 = mesh.getVertexIndex(face, 1) * 3;
+            final int i2 = mesh.getVertexIndex(face, 2) * 3;
+            if (singlePrecision) {
+                setFloat(V0X, slot, v[i0]); setFloat(V0Y, slot, v[i0 + 1]); setFloat(V0Z, slot, v[i0 + 2]);
+                setFloat(V1X, slot, v[i1]); setFloat(V1Y, slot, v[i1 + 1]); setFloat(V1Z, slot, v[i1 + 2]);
+                setFloat(V2X, slot, v[i2]); setFloat(V2Y, slot, v[i2 + 1]); setFloat(V2Z, slot, v[i2 + 2]);
+            }
+            else {
+                set(V0X, slot, v[i0]); set(V0Y, slot, v[i0 + 1]); set(V0Z, slot, v[i0 + 2]);
+                set(E0X, slot, v[i1] - v[i0]); set(E0Y, slot, v[i1 + 1] - v[i0 + 1]); set(E0Z, slot, v[i1 + 2] - v[i0 + 2]);
+                set(E1X, slot, v[i2] - v[i0]); set(E1Y, slot, v[i2 + 1] - v[i0 + 1]); set(E1Z, slot, v[i2 + 2] - v[i0 + 2]);
+            }
+        }
+    }
+
+    private void set(int component, int slot, double value) {
+        _components[component * _stride + slot] = value;
+    }
+
+    private void setFloat(int component, int slot, double value) {
+        _componentsFloat[component * _stride + slot] = (float)value;
+    }
+
+    public boolean isSinglePrecision() { return _componentsFloat != null; }
+
+    // The arrays themselves. Only one of them is there, depending on isSinglePrecision().
+    public double[] getComponents() { return _components; }
+    public float[] getComponentsFloat() { return _componentsFloat; }
+}
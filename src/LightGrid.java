@@ -0,0 +1,131 @@
+// A uniform grid over the positional lights' spheres of influence. Each cell lists the lights whose sphere overlaps
+// it, so shading a point only has to look at the lights in the point's cell rather than at every light in the scene.
+// Lights reach no further than their radius, so a point outside the grid isn't lit by any of them.
+//
+// The cells are about as big as the average light, which keeps the number of cells each light is listed in small. The
+// lists are flattened into one array, with _cellStarts[cell] to _cellStarts[cell + 1] being the cell's part of it.
+// Within a cell the lights keep the order they were given in.
+public class LightGrid {
+    private static final int MAX_NUM_CELLS = 1 << 18;
+    private final PositionalLight[] _lights;
+    private final double _minX, _minY, _minZ;
+    private final double _inverseCellSize;
+    private final int _numCellsX, _numCellsY, _numCellsZ;
+    private final int[] _cellStarts;
+    private final int[] _cellLights;
+
+    public LightGrid(PositionalLight[] lights) {
+        _lights = lights;
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, minZ = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE, maxZ = -Double.MAX_VALUE;
+        double totalRadius = 0.0;
+        for (PositionalLight light : lights) {
+            minX = Math.min(minX, light._position._x - light._radius);
+            minY = Math.min(minY, light._position._y - light._radius);
+            minZ = Math.min(minZ, light._position._z - light._radius);
+            maxX = Math.max(maxX, light._position._x + light._radius);
+            maxY = Math.max(maxY, light._position._y + light._radius);
+            maxZ = Math.max(maxZ, light._position._z + light._radius);
+            totalRadius += light._radius;
+        }
+        if (lights.length == 0) {
+            minX = minY = minZ = maxX = maxY = maxZ = 0.0;
+            totalRadius = 1.0;
+        }
+
+        double cellSize = totalRadius / Math.max(1, lights.length);
+        double numCells = cellsAlong(maxX - minX, cellSize) * cellsAlong(maxY - minY, cellSize) * cellsAlong(maxZ - minZ, cellSize);
+        if (numCells > MAX_NUM_CELLS) {
+            cellSize *= Math.cbrt(numCells / MAX_NUM_CELLS) * 1.01;
+        }
+        _minX = minX;
+        _minY = minY;
+        _minZ = minZ;
+        _inverseCellSize = 1.0 / cellSize;
+        _numCellsX = (int)cellsAlong(maxX - minX, cellSize);
+        _numCellsY = (int)cellsAlong(maxY - minY, cellSize);
+        _numCellsZ = (int)cellsAlong(maxZ - minZ, cellSize);
+
+        // Count the lights in each cell, turn the counts into starts, then fill the cells in
+        _cellStarts = new int[_numCellsX * _numCellsY * _numCellsZ + 1];
+        for (int i = 0; i < lights.length; ++i) {
+            forEachCell(lights[i], cell -> ++_cellStarts[cell + 1]);
+        }
+        for (int cell = 0; cell < _cellStarts.length - 1; ++cell) {
+            _cellStarts[cell + 1] += _cellStarts[cell];
+        }
+        _cellLights = new int[_cellStarts[_cellStarts.length - 1]];
+        int[] cellEnds = _cellStarts.clone();
+        for (int i = 0; i < lights.length; ++i) {
+            final int light = i;
+            forEachCell(lights[i], cell -> _cellLights[cellEnds[cell]++] = light);
+        }
+    }
+
+    private static double cellsAlong(double extent, double cellSize) {
+        return Math.max(1.0, Math.ceil(extent / cellSize));
+    }
+
+    private interface CellVisitor {
+        void visit(int cell);
+    }
+
+    // Visits the cells that the light's sphere overlaps.
+    private void forEachCell(PositionalLight light, CellVisitor visitor) {
+        final Vector3 p = light._position;
+        final double r = light._radius;
+        final int x0 = clamp((int)Math.floor((p._x - r - _minX) * _inverseCellSize), _numCellsX);
+        final int y0 = clamp((int)Math.floor((p._y - r - _minY) * _inverseCellSize), _numCellsY);
+        final int z0 = clamp((int)Math.floor((p._z - r - _minZ) * _inverseCellSize), _numCellsZ);
+        final int x1 = clamp((int)Math.floor((p._x + r - _minX) * _inverseCellSize), _numCellsX);
+        final int y1 = clamp((int)Math.floor((p._y + r - _minY) * _inverseCellSize), _numCellsY);
+        final int z1 = clamp((int)Math.floor((p._z + r - _minZ) * _inverseCellSize), _numCellsZ);
+        final double cellSize = 1.0 / _inverseCellSize;
+        for (int z = z0; z <= z1; ++z) {
+            for (int y = y0; y <= y1; ++y) {
+                for (int x = x0; x <= x1; ++x) {
+                    // The distance from the light to the nearest point of the cell
+                    double dx = distanceToRange(p._x, _minX + x * cellSize, cellSize);
+                    double dy = distanceToRange(p._y, _minY + y * cellSize, cellSize);
+                    double dz = distanceToRange(p._z, _minZ + z * cellSize, cellSize);
+                    if (dx * dx + dy * dy + dz * dz <= r * r * (1.0 + 1e-9)) { // Rounding mustn't leave a light out
+                        visitor.visit(getCell(x, y, z));
+                    }
+                }
+            }
+        }
+    }
+
+    private static double distanceToRange(double value, double min, double size) {
+        return Math.max(0.0, Math.max(min - value, value - (min + size)));
+    }
+
+    private static int clamp(int value, int numCells) {
+        return Math.max(0, Math.min(value, numCells - 1));
+    }
+
+    private int getCell(int x, int y, int z) {
+        return (z * _numCellsY + y) * _numCellsX + x;
+    }
+
+    public int getNumLights() { return _lights.length; }
+    public PositionalLight getLight(int lightIndex) { return _lights[lightIndex]; }
+
+    // The cell that holds the point, or -1 if the point is outside the grid and so out of every light's reach.
+    public int findCell(Vector3 point) {
+        final double x = Math.floor((point._x - _minX) * _inverseCellSize);
+        final double y = Math.floor((point._y - _minY) * _inverseCellSize);
+        final double z = Math.floor((point._z - _minZ) * _inverseCellSize);
+        if (x < 0.0 || y < 0.0 || z < 0.0 || x >= _numCellsX || y >= _numCellsY || z >= _numCellsZ) {
+            return -1;
+        }
+        return getCell((int)x, (int)y, (int)z);
+    }
+
+    // The cell's lights are getCellLight(getCellStart(cell)) up to, but not including, getCellLight(getCellEnd(cell)).
+    // They may still be out of reach of a particular point in the cell.
+    public int getCellStart(int cell) { return _cellStarts[cell]; }
+    public int getCellEnd(int cell) { return _cellStarts[cell + 1]; }
+    public PositionalLight getCellLight(int index) { return _lights[_cellLights[index]]; }
+    public int getCellLightIndex(int index) { return _cellLights[index]; } // The index in the lights the grid was built from
+}
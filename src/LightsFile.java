@@ -0,0 +1,44 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+// Reads the positional lights of a scene. Each light is one line:
+//     light <red> <green> <blue> <x> <y> <z> <power> <radius>
+// Blank lines and lines starting with '#' are ignored.
+public class LightsFile {
+    private final ArrayList<PositionalLight> _lights;
+
+    public LightsFile(File file) throws IOException {
+        _lights = new ArrayList<>();
+        try (BufferedReader bufferedReader = new BufferedReader(new FileReader(file))) {
+            int lineNumber = 0;
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                ++lineNumber;
+                line = line.trim();
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                String[] words = line.split("\\s+");
+                if (!words[0].equals("light") || words.length != 9) {
+                    throw new IOException(file.getPath() + ", line " + lineNumber + ": expected \"light r g b x y z power radius\"");
+                }
+                try {
+                    _lights.add(new PositionalLight(
+                            new Vector3(Double.parseDouble(words[1]), Double.parseDouble(words[2]), Double.parseDouble(words[3])),
+                            new Vector3(Double.parseDouble(words[4]), Double.parseDouble(words[5]), Double.parseDouble(words[6])),
+                            Double.parseDouble(words[7]),
+                            Double.parseDouble(words[8])));
+                }
+                catch (Exception e) {
+                    throw new IOException(file.getPath() + ", line " + lineNumber + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public int getLightCount() { return _lights.size(); }
+    public PositionalLight getLight(int index) { return _lights.get(index); }
+}
@@ -0,0 +1,389 @@
+import java.io.PrintWriter;
+
+// A bounding volume hierarchy that's been flattened into arrays after it was built from BoundingVolumeNodes. Nodes
+// are stored depth first, so a node's first child always immediately follows it. Each node has 6 bounds (min x/y/z,
+// max x/y/z) and 2 ints: for an interior node these are the index of the second child and 0, for a leaf they're the
+// offset and count of its primitives within the primitive index array.
+//
+// Subclasses decide what the primitives are (mesh faces, scene objects) by implementing intersectPrimitive(). The
+// context is whatever per-query state the subclass needs, so that queries can be made from many threads at once.
+//
+// The bounds can be converted to floats after the hierarchy is built (see useSinglePrecision()), which halves the
+// memory they take and that traversals read. Each bound is rounded outwards, so a box only ever grows, and the rays are
+// still tested against it in double precision. A ray can only visit more nodes than it would have, never miss one.
+public abstract class LinearBoundingVolumeHierarchy<T> {
+    private static final int MAX_STACK_SIZE = 64;
+    private double[] _nodeBounds; // Null once the hierarchy is single precision
+    private float[] _nodeBoundsFloat; // Null until then
+    private int[] _nodeData;
+    private int _numNodes;
+    private int[] _primitiveIndices;
+    private int _numPrimitives;
+    private int _maxDepth;
+
+    // The scratch space a traversal needs. Each thread keeps its own (see TraceContext) so traversals don't allocate.
+    public static class TraversalStack {
+        private final int[] _nodes = new int[MAX_STACK_SIZE];
+        private final double[] _entries = new double[MAX_STACK_SIZE];
+        private final double[] _entryExit = new double[2];
+    }
+
+    // primitiveBounds[i] is the box around the primitive with index i.
+    protected void buildHierarchy(Aabb[] primitiveBounds, int maxLeafSize) {
+        BoundingVolumeNode.Primitive[] primitives = new BoundingVolumeNode.Primitive[primitiveBounds.length];
+        for (int i = 0; i < primitiveBounds.length; ++i) {
+            primitives[i] = new BoundingVolumeNode.Primitive(i, primitiveBounds[i]);
+        }
+        BoundingVolumeNode root = new BoundingVolumeNode();
+        root.buildHierarchy(primitives, 0, primitives.length, Math.max(1, maxLeafSize));
+
+        if (root.getMaxDepth() + 1 > MAX_STACK_SIZE) {
+            throw new IllegalStateException("The BVH is too deep to traverse");
+        }
+
+        int numNodes = root.countNodes();
+        _nodeBounds = new double[numNodes * 6];
+        _nodeBoundsFloat = null;
+        _nodeData = new int[numNodes * 2];
+        _numNodes = 0;
+        _primitiveIndices = new int[primitives.length];
+        _numPrimitives = 0;
+        _maxDepth = root.getMaxDepth();
+        flatten(root);
+    }
+
+    // Takes the arrays of a hierarchy that was built earlier (see SceneCache) rather than building it again. The
+    // arrays are used as they are, not copied.
+    protected void restoreHierarchy(double[] nodeBounds, int[] nodeData, int[] primitiveIndices, int maxDepth) {
+        if (nodeBounds.length != nodeData.length * 3 || nodeBounds.length == 0 || nodeData.length % 2 != 0) {
+            throw new IllegalArgumentException("The node arrays don't match");
+        }
+        if (maxDepth + 1 > MAX_STACK_SIZE) {
+            throw new IllegalStateException("The BVH is too deep to traverse");
+        }
+        checkNodes(nodeData, primitiveIndices.length, maxDepth);
+        _nodeBounds = nodeBounds;
+        _nodeBoundsFloat = null;
+        _nodeData = nodeData;
+        _numNodes = nodeData.length / 2;
+        _primitiveIndices = primitiveIndices;
+        _numPrimitives = primitiveIndices.length;
+        _maxDepth = maxDepth;
+    }
+
+    // The arrays may have come from a file, so check that traversing them can't go outside of them or be deeper than
+    // maxDepth. Interior nodes are followed by their first child, and their second child always comes after that, so
+    // the nodes' depths can be worked out in one pass.
+    private static void checkNodes(int[] nodeData, int numPrimitives, int maxDepth) {
+        final int numNodes = nodeData.length / 2;
+        int[] depths = new int[numNodes];
+        for (int node = 0; node < numNodes; ++node) {
+            final int count = nodeData[node * 2 + 1];
+            final int offset = nodeData[node * 2];
+            if (count > 0) {
+                if (offset < 0 || offset > numPrimitives - count) {
+                    throw new IllegalArgumentException("Node " + node + "'s primitives are out of range");
+                }
+            }
+            else if (count == 0 && offset > node + 1 && offset < numNodes && depths[node] < maxDepth) {
+                depths[node + 1] = Math.max(depths[node + 1], depths[node] + 1);
+                depths[offset] = Math.max(depths[offset], depths[node] + 1);
+            }
+            else {
+                throw new IllegalArgumentException("Node " + node + " isn't a valid leaf or interior node");
+            }
+        }
+    }
+
+    private int flatten(BoundingVolumeNode node) {
+        final int index = _numNodes++;
+        _nodeBounds[index * 6    ] = node._aabb._min._x;
+        _nodeBounds[index * 6 + 1] = node._aabb._min._y;
+        _nodeBounds[index * 6 + 2] = node._aabb._min._z;
+        _nodeBounds[index * 6 + 3] = node._aabb._max._x;
+        _nodeBounds[index * 6 + 4] = node._aabb._max._y;
+        _nodeBounds[index * 6 + 5] = node._aabb._max._z;
+
+        if (node._children == null) {
+            _nodeData[index * 2] = _numPrimitives;
+            _nodeData[index * 2 + 1] = node._primitiveIndices.size();
+            for (Integer primitiveIndex : node._primitiveIndices) {
+                _primitiveIndices[_numPrimitives++] = primitiveIndex;
+            }
+            return index;
+        }
+
+        flatten(node._children[0]);
+        _nodeData[index * 2] = flatten(node._children[1]);
+        _nodeData[index * 2 + 1] = 0;
+        return index;
+    }
+
+    public int getNumNodes() { return _numNodes; }
+    public int getMaxDepth() { return _maxDepth; }
+
+    // The flattened hierarchy, for saving it. These are the arrays themselves, not copies. The bounds are only there
+    // while the hierarchy is double precision.
+    public double[] getNodeBounds() {
+        if (_nodeBounds == null) {
+            throw new IllegalStateException("The BVH's bounds have been converted to single precision");
+        }
+        return _nodeBounds;
+    }
+    public int[] getNodeData() { return _nodeData; }
+    public int[] getPrimitiveIndices() { return _primitiveIndices; }
+
+    public Aabb getBounds() {
+        return getNodeAabb(0);
+    }
+
+    public boolean isSinglePrecision() { return _nodeBoundsFloat != null; }
+
+    // Converts the node bounds to floats, rounding the minimums down and the maximums up.
+    public void useSinglePrecision() {
+        if (_nodeBoundsFloat != null) {
+            return;
+        }
+        float[] bounds = new float[_nodeBounds.length];
+        for (int i = 0; i < bounds.length; i += 6) {
+            for (int axis = 0; axis < 3; ++axis) {
+                bounds[i + axis] = roundDown(_nodeBounds[i + axis]);
+                bounds[i + axis + 3] = roundUp(_nodeBounds[i + axis + 3]);
+            }
+        }
+        _nodeBoundsFloat = bounds;
+        _nodeBounds = null;
+    }
+
+    // The nearest float that's no greater than the value, and the nearest that's no less.
+    public static float roundDown(double value) {
+        float f = (float)value;
+        return f > value ? Math.nextDown(f) : f;
+    }
+
+    public static float roundUp(double value) {
+        float f = (float)value;
+        return f < value ? Math.nextUp(f) : f;
+    }
+
+    // The i'th of the node bounds, whichever precision they're kept in. For where speed doesn't matter.
+    private double getNodeBound(int i) {
+        return _nodeBounds != null ? _nodeBounds[i] : _nodeBoundsFloat[i];
+    }
+
+    // Returns the distance to the closest primitive hit, or a value >= tMax if nothing was hit. Only primitives that
+    // report a distance less than the one passed to them count as a hit.
+    protected abstract double intersectPrimitive(int primitiveIndex, Ray ray, double closest, T context);
+
+    // Returns true if the primitive is hit closer than tMax. Used by occlusion queries, which stop at the first hit.
+    protected abstract boolean occludesPrimitive(int primitiveIndex, Ray ray, double tMax, T context);
+
+    // Tests the ray against all of a leaf's primitives, which are at positions offset to offset + count - 1 of the
+    // primitive index array, and returns the closest hit as intersectPrimitive() does. Subclasses can override this to
+    // test the primitives together.
+    protected double intersectLeaf(int offset, int count, Ray ray, double closest, T context) {
+        for (int i = offset; i < offset + count; ++i) {
+            closest = intersectPrimitive(_primitiveIndices[i], ray, closest, context);
+        }
+        return closest;
+    }
+
+    // Returns true if any of the leaf's primitives is hit closer than tMax.
+    protected boolean occludesLeaf(int offset, int count, Ray ray, double tMax, T context) {
+        for (int i = offset; i < offset + count; ++i) {
+            if (occludesPrimitive(_primitiveIndices[i], ray, tMax, context)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Called once for every node the traversal enters. Subclasses can override this to gather statistics.
+    protected void nodeVisited(T context) {
+    }
+
+    // Finds the closest primitive along the ray. Interior nodes push their farther child and visit the nearer one
+    // first, and any node that starts beyond the closest hit found so far is skipped.
+    protected double traverse(Ray ray, double tMax, TraversalStack traversalStack, T context) {
+        final Vector3 origin = ray.getOrigin();
+        final Vector3 invDirection = ray.getInverseDirection();
+        double closest = tMax;
+
+        final int[] stack = traversalStack._nodes;
+        final double[] stackEntries = traversalStack._entries;
+        final double[] entryExit = traversalStack._entryExit;
+        int stackSize = 0;
+        if (_numPrimitives == 0 || intersectNode(0, origin, invDirection, closest, entryExit) == Double.MAX_VALUE) {
+            return closest;
+        }
+        int node = 0;
+        while (true) {
+            nodeVisited(context);
+            final int count = _nodeData[node * 2 + 1];
+            if (count > 0) {
+                final int offset = _nodeData[node * 2];
+                closest = intersectLeaf(offset, count, ray, closest, context);
+            }
+            else {
+                final int first = node + 1;
+                final int second = _nodeData[node * 2];
+                double firstEntry = intersectNode(first, origin, invDirection, closest, entryExit);
+                double secondEntry = intersectNode(second, origin, invDirection, closest, entryExit);
+                if (firstEntry != Double.MAX_VALUE && secondEntry != Double.MAX_VALUE) {
+                    if (secondEntry < firstEntry) {
+                        stackEntries[stackSize] = firstEntry;
+                        stack[stackSize++] = first;
+                        node = second;
+                    }
+                    else {
+                        stackEntries[stackSize] = secondEntry;
+                        stack[stackSize++] = second;
+                        node = first;
+                    }
+                    continue;
+                }
+                if (firstEntry != Double.MAX_VALUE) {
+                    node = first;
+                    continue;
+                }
+                if (secondEntry != Double.MAX_VALUE) {
+                    node = second;
+                    continue;
+                }
+            }
+
+            // Pop the next node, skipping any that now start beyond the closest hit.
+            node = -1;
+            while (stackSize > 0) {
+                --stackSize;
+                if (stackEntries[stackSize] < closest) {
+                    node = stack[stackSize];
+                    break;
+                }
+            }
+            if (node < 0) {
+                break;
+            }
+        }
+        return closest;
+    }
+
+    // Returns true as soon as any primitive is found closer than tMax. The order nodes are visited in doesn't matter,
+    // and nothing about the hit is recorded.
+    protected boolean traverseAny(Ray ray, double tMax, TraversalStack traversalStack, T context) {
+        final Vector3 origin = ray.getOrigin();
+        final Vector3 invDirection = ray.getInverseDirection();
+
+        final int[] stack = traversalStack._nodes;
+        final double[] entryExit = traversalStack._entryExit;
+        int stackSize = 0;
+        if (_numPrimitives == 0 || intersectNode(0, origin, invDirection, tMax, entryExit) == Double.MAX_VALUE) {
+            return false;
+        }
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            final int node = stack[--stackSize];
+            nodeVisited(context);
+            final int count = _nodeData[node * 2 + 1];
+            if (count > 0) {
+                final int offset = _nodeData[node * 2];
+                if (occludesLeaf(offset, count, ray, tMax, context)) {
+                    return true;
+                }
+            }
+            else {
+                final int first = node + 1;
+                final int second = _nodeData[node * 2];
+                if (intersectNode(second, origin, invDirection, tMax, entryExit) != Double.MAX_VALUE) {
+                    stack[stackSize++] = second;
+                }
+                if (intersectNode(first, origin, invDirection, tMax, entryExit) != Double.MAX_VALUE) {
+                    stack[stackSize++] = first;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Marks each of the packet's rays that a primitive blocks as occluded. Every node is tested against the whole packet
+    // at once (see ShadowPacket.mayReach()), rather than against each ray, and the traversal stops as soon as all of the
+    // rays are occluded.
+    protected void traversePacket(ShadowPacket packet, TraversalStack traversalStack, T context) {
+        final int[] stack = traversalStack._nodes;
+        int stackSize = 0;
+        if (_numPrimitives == 0 || !packetMayReachNode(packet, 0)) {
+            return;
+        }
+        stack[stackSize++] = 0;
+        while (stackSize > 0 && packet.getUnoccludedRays() != 0) {
+            final int node = stack[--stackSize];
+            nodeVisited(context);
+            final int count = _nodeData[node * 2 + 1];
+            if (count > 0) {
+                occludePacketLeaf(node, _nodeData[node * 2], count, packet, traversalStack, context);
+            }
+            else {
+                final int first = node + 1;
+                final int second = _nodeData[node * 2];
+                if (packetMayReachNode(packet, second)) {
+                    stack[stackSize++] = second;
+                }
+                if (packetMayReachNode(packet, first)) {
+                    stack[stackSize++] = first;
+                }
+            }
+        }
+    }
+
+    // Tests each of the packet's unoccluded rays that passes through the leaf's box against its primitives, one ray at a
+    // time. Subclasses can override this to hand the whole packet on to the primitives.
+    protected void occludePacketLeaf(int node, int offset, int count, ShadowPacket packet, TraversalStack traversalStack,
+                                     T context) {
+        for (long rays = packet.getUnoccludedRays(); rays != 0; rays &= rays - 1) {
+            final int i = Long.numberOfTrailingZeros(rays);
+            final Ray ray = packet.getRay(i);
+            final double tMax = packet.getMaxDistance(i);
+            if (intersectNode(node, ray.getOrigin(), ray.getInverseDirection(), tMax, traversalStack._entryExit) != Double.MAX_VALUE &&
+                occludesLeaf(offset, count, ray, tMax, context)) {
+                packet.setOccluded(i);
+            }
+        }
+    }
+
+    private boolean packetMayReachNode(ShadowPacket packet, int node) {
+        return _nodeBounds != null ? packet.mayReach(_nodeBounds, node * 6) : packet.mayReach(_nodeBoundsFloat, node * 6);
+    }
+
+    // Returns the distance at which the ray enters the node's box, or Double.MAX_VALUE if it misses the box or only
+    // reaches it beyond tMax.
+    private double intersectNode(int node, Vector3 origin, Vector3 invDirection, double tMax, double[] entryExit) {
+        final boolean hit = _nodeBounds != null
+                ? Aabb.intersectRay(_nodeBounds, node * 6, origin, invDirection, tMax, entryExit)
+                : Aabb.intersectRay(_nodeBoundsFloat, node * 6, origin, invDirection, tMax, entryExit);
+        return hit ? entryExit[0] : Double.MAX_VALUE;
+    }
+
+    // Writes every node of the hierarchy, indented by depth. This is for debugging only: see Main's --dump-bvh.
+    public void printDebugInformation(PrintWriter out) {
+        out.println("The BVH has " + _numNodes + " nodes and a maximum depth of " + _maxDepth);
+        printDebugInformation(out, 0, 0);
+    }
+
+    private void printDebugInformation(PrintWriter out, int node, int depth) {
+        final int count = _nodeData[node * 2 + 1];
+        final boolean isLeaf = count > 0 || _numPrimitives == 0;
+        String spaces = " ";
+        out.println(spaces.repeat(depth * 4) + "Depth is " + depth + ". " + getNodeAabb(node).buildDebugString() +
+                ". Num primitives is " + (isLeaf ? count : 0));
+        if (!isLeaf) {
+            printDebugInformation(out, node + 1, depth + 1);
+            printDebugInformation(out, _nodeData[node * 2], depth + 1);
+        }
+    }
+
+    private Aabb getNodeAabb(int node) {
+        return new Aabb(
+                new Vector3(getNodeBound(node * 6), getNodeBound(node * 6 + 1), getNodeBound(node * 6 + 2)),
+                new Vector3(getNodeBound(node * 6 + 3), getNodeBound(node * 6 + 4), getNodeBound(node * 6 + 5)));
+    }
+}
@@ -1,29 +1,96 @@
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
 
+// A leveled log, written to Log.txt. Messages below the log's level are dropped before they're built: they're passed
+// as suppliers, which are only called for messages that will be written. So a disabled level costs a comparison.
+//
+// The file is written by a background thread, in the order the messages were logged, so logging never waits for the
+// disk. The file isn't created until the first message is written, and it's flushed when the process exits.
 public class LogFile {
-    public static LogFile Instance;
+    public enum Level { DEBUG, INFO, WARNING, ERROR, OFF }
 
-    static {
+    public static final LogFile Instance = new LogFile("Log.txt");
+
+    private final String _fileName;
+    private volatile Level _level;
+    private ExecutorService _writerThread;
+    private Writer _writer; // Only used on the writer thread
+
+    public LogFile(String fileName) {
+        _fileName = fileName;
+        _level = Level.WARNING;
+    }
+
+    public Level getLevel() { return _level; }
+    public void setLevel(Level level) { _level = level; }
+
+    public boolean isEnabled(Level level) {
+        return level != Level.OFF && level.compareTo(_level) >= 0;
+    }
+
+    public void debug(Supplier<String> message) { write(Level.DEBUG, message); }
+    public void info(Supplier<String> message) { write(Level.INFO, message); }
+    public void warning(Supplier<String> message) { write(Level.WARNING, message); }
+    public void error(Supplier<String> message) { write(Level.ERROR, message); }
+
+    public void write(Level level, Supplier<String> message) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        String line = level + " " + message.get() + System.lineSeparator();
+        getWriterThread().execute(() -> {
+            try {
+                if (_writer == null) {
+                    _writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_fileName), StandardCharsets.UTF_8));
+                }
+                _writer.write(line);
+            }
+            catch (IOException e) {
+                System.out.println("Unable to write to " + _fileName + ": " + e.getMessage());
+                _level = Level.OFF;
+            }
+        });
+    }
+
+    // Blocks until everything logged so far has been written to the file.
+    public void flush() {
+        ExecutorService writerThread;
+        synchronized (this) {
+            writerThread = _writerThread;
+        }
+        if (writerThread == null) {
+            return;
+        }
         try {
-            Instance = new LogFile();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (UnsupportedEncodingException e) {
+            writerThread.submit(() -> {
+                if (_writer != null) {
+                    _writer.flush();
+                }
+                return null;
+            }).get();
+        }
+        catch (InterruptedException | ExecutionException e) {
             e.printStackTrace();
         }
     }
 
-    private final PrintWriter _logFile;
-    public LogFile() throws FileNotFoundException, UnsupportedEncodingException {
-        _logFile = new PrintWriter("Log.txt", "UTF-8");
-    }
-    public void write(String text) {
-        _logFile.println(text);
-    }
-    public void close() {
-        _logFile.flush();
-        _logFile.close();
+    private synchronized ExecutorService getWriterThread() {
+        if (_writerThread == null) {
+            _writerThread = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "LogFile");
+                thread.setDaemon(true);
+                return thread;
+            });
+            Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+        }
+        return _writerThread;
     }
 }
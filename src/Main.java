@@ -1,8 +1,105 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+// Usage: java Main [--headless] [--dump-bvh=<file>] [--development] [--properties=<file>] [<option>=<value> ...]
+//        java Main --diff-images=<file>,<file>
+//
+// Without --headless the scene is rendered within a MainWindow. With --headless no AWT/Swing windows are created,
+// the image is written to _outputImageFilename and the process exits. --dump-bvh loads the scene, writes every node of
+// its bounding volume hierarchies to the file and exits without rendering. --diff-images compares two rendered images,
+// e.g. to check that an option doesn't change the image, and exits with 0 only if they're identical.
 public class Main {
     public static void main(String[] args) {
-        MainWindow mainWindow = new MainWindow();
+        boolean headless = false;
+        String bvhDumpFilename = null;
+        String[] diffFilenames = null;
+        RenderingOptions ro = new RenderingOptions();
+        try {
+            String[] optionArgs = new String[args.length];
+            int numOptionArgs = 0;
+            for (String arg : args) {
+                if (arg.equals("--headless")) {
+                    headless = true;
+                }
+                else if (arg.startsWith("--dump-bvh=")) {
+                    bvhDumpFilename = arg.substring("--dump-bvh=".length());
+                }
+                else if (arg.startsWith("--diff-images=")) {
+                    diffFilenames = arg.substring("--diff-images=".length()).split(",");
+                    if (diffFilenames.length != 2) {
+                        throw new IllegalArgumentException("--diff-images needs two file names, separated by a comma");
+                    }
+                }
+                else {
+                    optionArgs[numOptionArgs++] = arg;
+                }
+            }
+            ro.parseCommandLine(Arrays.copyOf(optionArgs, numOptionArgs));
+        }
+        catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        LogFile.Instance.setLevel(ro._logLevel);
+
+        if (diffFilenames != null) {
+            System.exit(diffImages(diffFilenames[0], diffFilenames[1]) ? 0 : 1);
+        }
+        if (bvhDumpFilename != null) {
+            System.exit(dumpBoundingVolumeHierarchies(ro, bvhDumpFilename) ? 0 : 1);
+        }
+        if (headless) {
+            System.exit(renderHeadless(ro) ? 0 : 1);
+        }
+
+        MainWindow mainWindow = new MainWindow(ro);
         mainWindow.pack();
         mainWindow.setLocationRelativeTo(null);
         mainWindow.setVisible(true);
     }
+
+    private static boolean dumpBoundingVolumeHierarchies(RenderingOptions ro, String fileName) {
+        System.setProperty("java.awt.headless", "true");
+        try (AssetLoader assets = new AssetLoader(ro);
+             PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(fileName)))) {
+            SceneGraph sceneGraph = new SceneGraph(ro, new TextureSampling(ro._textureFiltering, ro._texCoordWrapping), assets);
+            sceneGraph.printBoundingVolumeHierarchies(out);
+            System.out.println("Wrote " + fileName);
+            return true;
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static boolean diffImages(String fileNameA, String fileNameB) {
+        System.setProperty("java.awt.headless", "true");
+        try {
+            ImageDiff diff = ImageDiff.compare(new File(fileNameA), new File(fileNameB));
+            System.out.println(diff.buildSummary());
+            return diff.isIdentical();
+        }
+        catch (Exception e) {
+            System.out.println(e.getMessage());
+            return false;
+        }
+    }
+
+    private static boolean renderHeadless(RenderingOptions ro) {
+        System.setProperty("java.awt.headless", "true");
+        try {
+            Renderer renderer = new Renderer(ro);
+            renderer.saveToFile(renderer.render());
+            System.out.println("Wrote " + ro._outputImageFilename);
+            return true;
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
 }
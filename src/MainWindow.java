@@ -1,9 +1,7 @@
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
-import java.io.File;
 
 /*
  * Assignment Requirements:
@@ -21,6 +19,7 @@ import java.io.File;
  *    What I've added that is 'more to the above':
  *          Texture mapped boxes
  *          Anti-aliasing (Super-sampling)
+ *          Adaptive anti-aliasing
  *          Reflection (mirrored spheres)
  *          Refraction (a 'glass' sphere)
  *          Shadows
@@ -31,19 +30,27 @@ import java.io.File;
  *              Texture mapping via Barycentric coordinates
  *              Bounding volume hierarchies
  *          Bilinear texture filtering
+ *          Mipmapped trilinear texture filtering
  *          Texture coordinate wrapping
  *          Spherical environment mapping
+ *          Multi-threaded tile rendering
+ *          Progressive rendering with a live preview
  */
 
 public class MainWindow extends JFrame {
     private static final int WINDOW_WIDTH = 1024;
     private static final int WINDOW_HEIGHT = 768;
+    private static final int PREVIEW_INTERVAL_MS = 250;
     private BufferedImage _outputImage;
     private final RenderingOptions _ro;
+    private Renderer _renderer;
 
     public MainWindow() {
-        _ro = new RenderingOptions();
-        //_ro.setDevelopment();
+        this(new RenderingOptions());
+    }
+
+    public MainWindow(RenderingOptions ro) {
+        _ro = ro;
 
         setTitle("159.235 Assignment 3");
         setPreferredSize(new Dimension(WINDOW_WIDTH, WINDOW_HEIGHT));
@@ -55,24 +62,13 @@ public class MainWindow extends JFrame {
         displayMessageToUser();
 
         try {
-            Camera camera = new Camera(_ro._cameraPosition, _ro._cameraEulersDegrees);
-            RayCaster rayCaster = new RayCaster(_ro);
-            RayTracer rayTracer = new RayTracer(_ro);
+            _renderer = new Renderer(_ro);
 
             // Put a JSwing timer in the window message queue now, then yield this thread. When the timer
             // fires in 100ms time we will perform the render. This allows a window paint message to get
             // through and show the user the JLabel text above.
 
-            callOnce(e -> {
-                IAntiAliasing sampler;
-                if (_ro._antiAliasing == RenderingOptions.AntiAliasing.SUPER_SAMPLING) {
-                    sampler = new SuperSamplingAA(camera, rayCaster, rayTracer, _ro._numberRayBounces);
-                }
-                else {
-                    sampler = new NoAntiAliasing(camera, rayCaster, rayTracer, _ro._numberRayBounces);
-                }
-                rayTraceImage(sampler);
-            });
+            callOnce(e -> rayTraceImage());
         }
         catch (Exception ex) {
             ex.printStackTrace();
@@ -138,6 +134,16 @@ public class MainWindow extends JFrame {
         label.setFont(font);
         panel.add(label);
 
+        if (_ro._antiAliasing == RenderingOptions.AntiAliasing.ADAPTIVE) {
+            label = new JLabel("_adaptiveAAMaxSamples: " + _ro._adaptiveAAMaxSamples);
+            label.setFont(font);
+            panel.add(label);
+
+            label = new JLabel("_adaptiveAAContrastThreshold: " + _ro._adaptiveAAContrastThreshold);
+            label.setFont(font);
+            panel.add(label);
+        }
+
         label = new JLabel("_texCoordWrapping: " + _ro._texCoordWrapping);
         label.setFont(font);
         panel.add(label);
@@ -150,57 +156,62 @@ public class MainWindow extends JFrame {
         label.setFont(font);
         panel.add(label);
 
-        parentPanel.add(panel, BorderLayout.CENTER);
-    }
+        label = new JLabel("_numRenderThreads: " + _ro._numRenderThreads);
+        label.setFont(font);
+        panel.add(label);
 
-    private void rayTraceImage(IAntiAliasing sampler) {
-        _outputImage = new BufferedImage(_ro._outputImageWidth, _ro._outputImageHeight, BufferedImage.TYPE_INT_RGB);
-
-        System.out.println("Starting render...");
-        long w = _ro._outputImageWidth;
-        long h = _ro._outputImageHeight;
-        long totalPixels = w * h;
-
-        long startTimeMs = System.currentTimeMillis();
-        long oldMs = startTimeMs;
-        for (long y = 0; y < h; ++y) {
-            for (long x = 0; x < w; ++x) {
-                _outputImage.setRGB((int)x, (int)y, Utility.Vector3ToColour(sampler.takeSample(x, y)));
-
-                long nowMs = System.currentTimeMillis();
-                if (nowMs - oldMs >= 3000) {
-                    oldMs = nowMs;
-                    long numCompletedPixels = y * w + x;
-                    System.out.println("Completed " + numCompletedPixels + "/" + totalPixels + " pixels (" +
-                            (numCompletedPixels * 100 / totalPixels) + "%)");
-                }
-            }
-        }
+        label = new JLabel("_numLoadThreads: " + _ro._numLoadThreads);
+        label.setFont(font);
+        panel.add(label);
 
-        System.out.println("Render complete. " + (System.currentTimeMillis() - startTimeMs) + "ms elapsed.");
+        label = new JLabel("_bvhMaxLeafFaces: " + _ro._bvhMaxLeafFaces);
+        label.setFont(font);
+        panel.add(label);
 
-        saveToFile(_outputImage);
+        label = new JLabel("_progressiveRendering: " + _ro._progressiveRendering);
+        label.setFont(font);
+        panel.add(label);
+
+        label = new JLabel("_shadowRayPackets: " + _ro._shadowRayPackets);
+        label.setFont(font);
+        panel.add(label);
 
-        callOnce(e -> drawImage());
+        parentPanel.add(panel, BorderLayout.CENTER);
     }
 
-    private void saveToFile(BufferedImage bufferedImage) {
-        try {
-            File outputFile = new File(_ro._outputImageFilename);
-            ImageIO.write(bufferedImage, _ro._outputImageFileFormat, outputFile);
-        }
-        catch (Exception e) {
-            e.printStackTrace();
-        }
+    // The image is shown straight away and rendered on a thread of its own, so the window can keep painting it as the
+    // render fills it in. It's repainted at most every PREVIEW_INTERVAL_MS, rather than whenever a pixel changes.
+    private void rayTraceImage() {
+        _outputImage = _renderer.createOutputImage();
+        ImagePanel panel = drawImage();
+        Timer previewTimer = new Timer(PREVIEW_INTERVAL_MS, e -> panel.repaint());
+        previewTimer.start();
+
+        Thread renderThread = new Thread(() -> {
+            try {
+                _renderer.render(_outputImage);
+                _renderer.saveToFile(_outputImage);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+            SwingUtilities.invokeLater(() -> {
+                previewTimer.stop();
+                panel.repaint();
+            });
+        }, "Render");
+        renderThread.setDaemon(true);
+        renderThread.start();
     }
 
-    private void drawImage() {
+    private ImagePanel drawImage() {
         ImagePanel panel = new ImagePanel(_outputImage);
         panel.setPreferredSize(new Dimension(_ro._outputImageWidth, _ro._outputImageHeight));
         getContentPane().removeAll();
         getContentPane().add(panel, BorderLayout.CENTER);
         getContentPane().validate();
         getContentPane().repaint();
+        return panel;
     }
 
     private void callOnce(ActionListener actionListener) {
@@ -210,9 +221,6 @@ public class MainWindow extends JFrame {
     }
 
     public static void main(String[] args) {
-        MainWindow mainWindow = new MainWindow();
-        mainWindow.pack();
-        mainWindow.setLocationRelativeTo(null);
-        mainWindow.setVisible(true);
+        Main.main(args);
     }
 }
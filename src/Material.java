@@ -1,5 +1,3 @@
-import java.awt.image.BufferedImage;
-
 public class Material {
     private final String _name;
     private IlluminationModel _illuminationModel;
@@ -12,15 +10,15 @@ public class Material {
     private double _dissolved;
     private double _transparency;
     private Vector3 _transmissionFilterColour;
-    private BufferedImage _ambientTexture;
-    private BufferedImage _diffuseTexture;
-    private BufferedImage _specularTexture;
-    private BufferedImage _emissiveTexture;
-    private BufferedImage _specularExponentTexture;
-    private BufferedImage _indexOfRefractionTexture;
-    private BufferedImage _dissolvedTexture;
-    private BufferedImage _transparencyTexture;
-    private BufferedImage _transmissionFilterTexture;
+    private Texture _ambientTexture;
+    private Texture _diffuseTexture;
+    private Texture _specularTexture;
+    private Texture _emissiveTexture;
+    private Texture _specularExponentTexture;
+    private Texture _indexOfRefractionTexture;
+    private Texture _dissolvedTexture;
+    private Texture _transparencyTexture;
+    private Texture _transmissionFilterTexture;
     private double[] _albedo;
 
     public Material(String name) {
@@ -74,32 +72,32 @@ public class Material {
     public Vector3 getTransmissionFilterColour() { return _transmissionFilterColour; }
     public void setTransmissionFilterColour(Vector3 transmissionFilterColour) { _transmissionFilterColour = transmissionFilterColour; }
 
-    public BufferedImage getAmbientTexture() { return _ambientTexture; }
-    public void setAmbientTexture(BufferedImage ambientTexture) { _ambientTexture = ambientTexture; }
+    public Texture getAmbientTexture() { return _ambientTexture; }
+    public void setAmbientTexture(Texture ambientTexture) { _ambientTexture = ambientTexture; }
 
-    public BufferedImage getDiffuseTexture() { return _diffuseTexture; }
-    public void setDiffuseTexture(BufferedImage diffuseTexture) { _diffuseTexture = diffuseTexture; }
+    public Texture getDiffuseTexture() { return _diffuseTexture; }
+    public void setDiffuseTexture(Texture diffuseTexture) { _diffuseTexture = diffuseTexture; }
 
-    public BufferedImage getSpecularTexture() { return _specularTexture; }
-    public void setSpecularTexture(BufferedImage specularTexture) { _specularTexture = specularTexture; }
+    public Texture getSpecularTexture() { return _specularTexture; }
+    public void setSpecularTexture(Texture specularTexture) { _specularTexture = specularTexture; }
 
-    public BufferedImage getEmissiveTexture() { return _emissiveTexture; }
-    public void setEmissiveTexture(BufferedImage emissiveTexture) { _emissiveTexture = emissiveTexture; }
+    public Texture getEmissiveTexture() { return _emissiveTexture; }
+    public void setEmissiveTexture(Texture emissiveTexture) { _emissiveTexture = emissiveTexture; }
 
-    public BufferedImage getSpecularExponentTexture() { return _specularExponentTexture; }
-    public void setSpecularExponentTexture(BufferedImage specularExponentTexture) { _specularExponentTexture = specularExponentTexture; }
+    public Texture getSpecularExponentTexture() { return _specularExponentTexture; }
+    public void setSpecularExponentTexture(Texture specularExponentTexture) { _specularExponentTexture = specularExponentTexture; }
 
-    public BufferedImage getIndexOfRefractionTexture() { return _indexOfRefractionTexture; }
-    public void setIndexOfRefractionTexture(BufferedImage indexOfRefractionTexture) { _indexOfRefractionTexture = indexOfRefractionTexture; }
+    public Texture getIndexOfRefractionTexture() { return _indexOfRefractionTexture; }
+    public void setIndexOfRefractionTexture(Texture indexOfRefractionTexture) { _indexOfRefractionTexture = indexOfRefractionTexture; }
 
-    public BufferedImage getDissolvedTexture() { return _dissolvedTexture; }
-    public void setDissolvedTexture(BufferedImage dissolvedTexture) { _dissolvedTexture = dissolvedTexture; }
+    public Texture getDissolvedTexture() { return _dissolvedTexture; }
+    public void setDissolvedTexture(Texture dissolvedTexture) { _dissolvedTexture = dissolvedTexture; }
 
-    public BufferedImage getTransparencyTexture() { return _transparencyTexture; }
-    public void setTransparencyTexture(BufferedImage transparencyTexture) { _transparencyTexture = transparencyTexture; }
+    public Texture getTransparencyTexture() { return _transparencyTexture; }
+    public void setTransparencyTexture(Texture transparencyTexture) { _transparencyTexture = transparencyTexture; }
 
-    public BufferedImage getTransmissionFilterTexture() { return _transmissionFilterTexture; }
-    public void setTransmissionFilterTexture(BufferedImage transmissionFilterTexture) { _transmissionFilterTexture = transmissionFilterTexture; }
+    public Texture getTransmissionFilterTexture() { return _transmissionFilterTexture; }
+    public void setTransmissionFilterTexture(Texture transmissionFilterTexture) { _transmissionFilterTexture = transmissionFilterTexture; }
 
     public double getAlbedo(int index) { if (index < 0 || index > 3) return 0.0; return _albedo[index]; }
     public void setAlbedo(int index, double albedo) { if (index >= 0 && index < 4) _albedo[index] = albedo; }
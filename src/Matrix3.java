@@ -53,6 +53,15 @@ public class Matrix3 {
         );
     }
 
+    // The result is written to out, which may be the same object as v.
+    public Vector3 multiply(Vector3 v, Vector3 out) {
+        return out.set(
+                (_m[0][0] * v._x) + (_m[0][1] * v._y) + (_m[0][2] * v._z),
+                (_m[1][0] * v._x) + (_m[1][1] * v._y) + (_m[1][2] * v._z),
+                (_m[2][0] * v._x) + (_m[2][1] * v._y) + (_m[2][2] * v._z)
+        );
+    }
+
     public static Matrix3 rotateX(double angleXDegrees)
     {
         double angleXRadians = Math.toRadians(angleXDegrees);
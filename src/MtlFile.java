@@ -1,4 +1,3 @@
-import javax.imageio.ImageIO;
 import java.io.*;
 import java.util.ArrayList;
 
@@ -19,7 +18,8 @@ public class MtlFile {
     /* index 10 */ Material.IlluminationModel.CASTS_SHADOWS_ONTO_INVISIBLE_SURFACES
             };
 
-    public MtlFile(File file) throws IOException {
+    // Textures are loaded by assets in the background. Call assets.awaitTextures() before using the materials.
+    public MtlFile(File file, AssetLoader assets) throws IOException {
         BufferedReader bufferedReader = new BufferedReader(new FileReader(file));
         _materials = new ArrayList<>();
         Material m = null;
@@ -103,47 +103,47 @@ public class MtlFile {
             } else if (words[0].equals("map_Ka")) {   // ambient texture
                 var result = parseString(words);
                 if (result.getFirst()) {
-                    m.setAmbientTexture(ImageIO.read(new File(result.getSecond())));
+                    assets.loadTexture(new File(result.getSecond()), m::setAmbientTexture);
                 }
             } else if (words[0].equals("map_Kd")) {   // diffuse texture
                 var result = parseString(words);
                 if (result.getFirst()) {
-                    m.setDiffuseTexture(ImageIO.read(new File(result.getSecond())));
+                    assets.loadTexture(new File(result.getSecond()), m::setDiffuseTexture);
                 }
             } else if (words[0].equals("map_Ks")) {   // specular texture
                 var result = parseString(words);
                 if (result.getFirst()) {
-                    m.setSpecularTexture(ImageIO.read(new File(result.getSecond())));
+                    assets.loadTexture(new File(result.getSecond()), m::setSpecularTexture);
                 }
             } else if (words[0].equals("map_Ke")) {   // emissive texture
                 var result = parseString(words);
                 if (result.getFirst()) {
-                    m.setEmissiveTexture(ImageIO.read(new File(result.getSecond())));
+                    assets.loadTexture(new File(result.getSecond()), m::setEmissiveTexture);
                 }
             } else if (words[0].equals("map_Ns")) {   // specular exponent texture
                 var result = parseString(words);
                 if (result.getFirst()) {
-                    m.setSpecularExponentTexture(ImageIO.read(new File(result.getSecond())));
+                    assets.loadTexture(new File(result.getSecond()), m::setSpecularExponentTexture);
                 }
             } else if (words[0].equals("map_Ni")) {   // index of refraction texture
                 var result = parseString(words);
                 if (result.getFirst()) {
-                    m.setIndexOfRefractionTexture(ImageIO.read(new File(result.getSecond())));
+                    assets.loadTexture(new File(result.getSecond()), m::setIndexOfRefractionTexture);
                 }
             } else if (words[0].equals("map_d")) {   // dissolved texture
                 var result = parseString(words);
                 if (result.getFirst()) {
-                    m.setDissolvedTexture(ImageIO.read(new File(result.getSecond())));
+                    assets.loadTexture(new File(result.getSecond()), m::setDissolvedTexture);
                 }
             } else if (words[0].equals("map_Tr")) {   // transparency texture
                 var result = parseString(words);
                 if (result.getFirst()) {
-                    m.setTransparencyTexture(ImageIO.read(new File(result.getSecond())));
+                    assets.loadTexture(new File(result.getSecond()), m::setTransparencyTexture);
                 }
             } else if (words[0].equals("map_Tf")) {   // transmission filter texture
                 var result = parseString(words);
                 if (result.getFirst()) {
-                    m.setTransmissionFilterTexture(ImageIO.read(new File(result.getSecond())));
+                    assets.loadTexture(new File(result.getSecond()), m::setTransmissionFilterTexture);
                 }
             }
             line = bufferedReader.readLine();
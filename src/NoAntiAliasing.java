@@ -1,5 +1,3 @@
-import java.util.function.BiFunction;
-
 public class NoAntiAliasing implements IAntiAliasing {
     private final Camera _camera;
     private final RayCaster _rayCaster;
@@ -15,14 +13,29 @@ public class NoAntiAliasing implements IAntiAliasing {
 
     public static int getNumSamples() { return 1; }
 
-    public static BiFunction<Double, Double, Integer> createToSampleIndexFn() {
-        return (x, y) -> { return 0; };
-    }
-
     @Override
     public Vector3 takeSample(double imageX, double imageY) {
         // The 0.5 causes the sample to be taken from the centre of the pixel.
-        Ray rayWorldCoords = _rayCaster.castRay(imageX + 0.5, imageY + 0.5, _camera);
-        return _rayTracer.traceRay(rayWorldCoords, _numRayBounces);
+        TraceContext context = _rayTracer.getContext();
+        Ray rayWorldCoords = _rayCaster.castRay(imageX + 0.5, imageY + 0.5, _camera, context._primaryRay);
+        return _rayTracer.traceRay(rayWorldCoords, _numRayBounces, context, context._pixelColour);
+    }
+
+    // The pixels' rays are traced ShadowPacket.MAX_RAYS at a time.
+    @Override
+    public void takeSamples(int[] pixelX, int[] pixelY, int numPixels, Vector3[] samples) {
+        TraceContext context = _rayTracer.getContext();
+        Ray[] rays = context._batch._rays;
+        Vector3[] colours = context._batch._colours;
+        for (int first = 0; first < numPixels; first += ShadowPacket.MAX_RAYS) {
+            final int count = Math.min(ShadowPacket.MAX_RAYS, numPixels - first);
+            for (int i = 0; i < count; ++i) {
+                _rayCaster.castRay(pixelX[first + i] + 0.5, pixelY[first + i] + 0.5, _camera, rays[i]);
+            }
+            _rayTracer.traceRays(rays, count, _numRayBounces, context, colours);
+            for (int i = 0; i < count; ++i) {
+                samples[first + i].set(colours[i]);
+            }
+        }
     }
 }
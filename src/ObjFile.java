@@ -1,209 +1,702 @@
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
+// Loads the meshes within a Wavefront OBJ file. Each "o" statement starts a new mesh, each "usemtl" statement starts
+// a new piece of that mesh, and "s" statements choose between flat and smooth shaded face groups.
+// http://paulbourke.net/dataformats/obj/
+//
+// The file is memory mapped and parsed a byte at a time, without splitting lines into Strings. It's cut into chunks of
+// about the same size at line boundaries, so even a file with a single object is parsed in parallel. Each chunk
+// gathers its vertex data into primitive arrays and its faces into an int array, and notes where its "o", "usemtl" and
+// "s" statements were. As soon as a chunk and every chunk before it have been parsed, their statements are followed in
+// order to find each mesh's and each piece's range of vertices and faces. Each mesh that ends there has its parts copied
+// out of its chunks in parallel, and is passed to the Listener, while later chunks are still being parsed. The meshes keep the same flat arrays of doubles and ints (see PolyhedronMesh), so nothing is allocated per
+// vertex or face. Indices within the file count from the start of the file, but each mesh has its own vertex arrays, so
+// they're made relative to the mesh. Faces with more than three vertices are split into a fan of triangles. Vertex
+// indices that a face leaves out (e.g. "f 1//1 2//2 3//3") are -1.
 public class ObjFile {
+    // Called by the threads parsing the file, so that loading what comes next needn't wait until the whole file has been
+    // parsed. Meshes may be passed on by several threads at once, so not necessarily in the order they're in the file.
+    public interface Listener {
+        void materialFileFound(String fileName);
+        void meshParsed(PolyhedronMesh mesh);
+    }
+
+    private static final Listener NO_LISTENER = new Listener() {
+        public void materialFileFound(String fileName) {}
+        public void meshParsed(PolyhedronMesh mesh) {}
+    };
+    private static final int MIN_CHUNK_BYTES = 1 << 20;
+    private static final int MAX_CHUNK_BYTES = 4 << 20; // So the first meshes are passed on well before the end of the file
+    private static final int MAX_CHUNKS_PER_THREAD = 4; // A few each, so a chunk that's slow to parse doesn't hold the rest up
+    private final Listener _listener;
+    private final Chunk[] _chunks;
+    private final ArrayList<MeshData> _meshData; // In the order they're in the file
     private final ArrayList<PolyhedronMesh> _meshes;
+    // The chunks that have been gathered so far, and what they added up to. Guarded by this.
+    private int _numChunksGathered;
+    private int _numVertices, _numTexCoords, _numNormals, _numFaces;
+    private MeshData _mesh;
     private String _materialFileName;
 
     public ObjFile(File file) throws IOException {
-        BufferedReader bufferedReader = new BufferedReader(new FileReader(file));
-        
-        int totalVertices = 0, totalTexCoords = 0, totalNormals = 0;
-        int numVertices = 0, numTexCoords = 0, numNormals = 0;
+        this(file, NO_LISTENER);
+    }
+
+    public ObjFile(File file, Listener listener) throws IOException {
+        _listener = listener;
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file.getPath() + " is too large to be mapped");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        int[] chunkStarts = findChunkStarts(buffer);
+        _chunks = new Chunk[chunkStarts.length];
+        for (int i = 0; i < _chunks.length; ++i) {
+            int end = i + 1 < _chunks.length ? chunkStarts[i + 1] : buffer.limit();
+            // Only the first chunk passes on its "mtllib" statement as soon as it's parsed, as no earlier one can have one
+            _chunks[i] = new Chunk(buffer, chunkStarts[i], end, i == 0 ? listener : null);
+        }
+        _meshData = new ArrayList<>();
+        _mesh = new MeshData(file.getName(), false, 0, 0, 0, 0, 0);
+        // The chunks are handed out in the order they're in the file, whichever thread asks, so that the meshes are
+        // passed on in about that order, and as early as they can be
+        AtomicInteger nextChunk = new AtomicInteger();
+        forEachInParallel(_chunks, unused -> parseChunk(_chunks[nextChunk.getAndIncrement()]));
+
         _meshes = new ArrayList<>();
-        _materialFileName = null;
+        for (MeshData data : _meshData) {
+            _meshes.add(data._mesh);
+        }
+    }
 
-        ArrayList<Vector3> vertices = new ArrayList<>();
-        ArrayList<Vector3> normals = new ArrayList<>();
-        ArrayList<TexCoord> texCoords = new ArrayList<>();
-        ArrayList<PolyhedronMesh.Piece> pieces = new ArrayList<>();
-        ArrayList<PolyhedronMesh.Face> faces = new ArrayList<>();
-        int smoothingGroupId = -1;
+    // The first "mtllib" statement's, since only one MTL file is used.
+    public String getMaterialFileName() { return _materialFileName; }
 
-        PolyhedronMesh m = null;
-        PolyhedronMesh.Piece p = null;
+    public int getMeshCount() { return _meshes.size(); }
+    public PolyhedronMesh getMesh(int index) {
+        if (index < 0 || index >= _meshes.size()) {
+            return null;
+        }
+        return _meshes.get(index);
+    }
 
-        String line = bufferedReader.readLine();
-        while (line != null) {
-            line = line.trim();
-            if (line.isEmpty() || line.charAt(0) == '#') {
-                line = bufferedReader.readLine();
-                continue;
+    private interface ChunkTask {
+        void run(Chunk chunk) throws IOException;
+    }
+
+    private static void forEachInParallel(Chunk[] chunks, ChunkTask task) throws IOException {
+        try {
+            IntStream.range(0, chunks.length).parallel().forEach(i -> {
+                try {
+                    task.run(chunks[i]);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Once a chunk has been parsed, every chunk that's ready is gathered in order, and the meshes that have ended within
+    // them are filled in and passed on.
+    private void parseChunk(Chunk chunk) throws IOException {
+        chunk.parse();
+        ArrayList<MeshData> ended = new ArrayList<>();
+        synchronized (this) {
+            chunk._isParsed = true;
+            while (_numChunksGathered < _chunks.length && _chunks[_numChunksGathered]._isParsed) {
+                gatherChunk(_numChunksGathered++, ended);
             }
-            String[] words = line.split("\\s");
-            if (words.length < 2) {
-                line = bufferedReader.readLine();
-                continue;
+            _meshData.addAll(ended);
+        }
+        for (MeshData mesh : ended) {
+            forEachInParallel(Arrays.copyOfRange(_chunks, mesh._firstChunk, mesh._endChunk), part -> part.fillMesh(mesh));
+            mesh._mesh = mesh.createMesh();
+            _listener.meshParsed(mesh._mesh);
+        }
+    }
+
+    // Returns 0 followed by the start of each chunk after the first. The file is cut into equal parts, with no part
+    // smaller than MIN_CHUNK_BYTES or larger than MAX_CHUNK_BYTES unless it has to be, and each cut is moved on to the start of the next line. The parts are shared between
+    // the threads of the pool the file is parsed in, which is the AssetLoader's when the scene is loaded.
+    private static int[] findChunkStarts(ByteBuffer buffer) {
+        final int limit = buffer.limit();
+        final ForkJoinPool pool = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool() : ForkJoinPool.commonPool();
+        final int maxChunks = pool.getParallelism() * MAX_CHUNKS_PER_THREAD;
+        final int numParts = Math.max(1, Math.max(Math.min(maxChunks, limit / MIN_CHUNK_BYTES), limit / MAX_CHUNK_BYTES));
+        int[] starts = new int[numParts];
+        int numStarts = 1;
+        for (int i = 1; i < numParts; ++i) {
+            int pos = Math.max((int)((long)limit * i / numParts), starts[numStarts - 1] + 1);
+            while (pos < limit && buffer.get(pos - 1) != '\n') {
+                ++pos;
             }
-            if (words[0].equals("mtllib")) {
-                _materialFileName = words[1];
-                line = bufferedReader.readLine();
-                continue;
+            if (pos < limit) {
+                starts[numStarts++] = pos;
             }
-            if (words[0].equals("o")) {
-                if (p != null) {
-                    addPolyhedronFaces(p, smoothingGroupId, faces, pieces);
-                    p = null;
-                }
-                if (m != null) {
-                    addPolyhedronMesh(m, vertices, normals, texCoords, pieces);
-                }
+        }
+        return Arrays.copyOf(starts, numStarts);
+    }
+
+    // Follows a chunk's "o", "usemtl" and "s" statements on from the chunks before it, giving the chunk the number of
+    // vertices, tex coords, normals and faces before it, and each mesh and piece its range of them. Meshes that end are
+    // added to ended. Everything before the first "o" statement is only a mesh if it has faces, which is the case for
+    // files that don't use "o" statements at all.
+    private void gatherChunk(int index, ArrayList<MeshData> ended) {
+        Chunk chunk = _chunks[index];
+        chunk._vertexOffset = _numVertices;
+        chunk._texCoordOffset = _numTexCoords;
+        chunk._normalOffset = _numNormals;
+        chunk._faceOffset = _numFaces;
+        for (Statement statement : chunk._statements) {
+            final int face = _numFaces + statement._numFaces;
+            switch (statement._type) {
+                case Statement.OBJECT:
+                    _mesh.end(_numVertices + statement._numVertices, _numTexCoords + statement._numTexCoords,
+                              _numNormals + statement._numNormals, face, index + 1, ended);
+                    _mesh = new MeshData(statement._name, true, _numVertices + statement._numVertices,
+                                         _numTexCoords + statement._numTexCoords, _numNormals + statement._numNormals, face,
+                                         index);
+                    break;
+                case Statement.MATERIAL:
+                    _mesh.useMaterial(statement._name, face);
+                    break;
+                case Statement.SMOOTHING:
+                    _mesh._smoothingGroupId = statement._smoothingGroupId;
+                    break;
+            }
+        }
+        _numVertices += chunk._vertices._size / 3;
+        _numTexCoords += chunk._texCoords._size / 2;
+        _numNormals += chunk._normals._size / 3;
+        _numFaces += chunk.getNumFaces();
+        if (_materialFileName == null && chunk._materialFileName != null) {
+            _materialFileName = chunk._materialFileName;
+            if (index > 0) {
+                _listener.materialFileFound(_materialFileName);
+            }
+        }
+        if (index == _chunks.length - 1) {
+            _mesh.end(_numVertices, _numTexCoords, _numNormals, _numFaces, _chunks.length, ended);
+        }
+    }
+
+    private static boolean isEndOfLine(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f';
+    }
+
+    // An "o", "usemtl" or "s" statement, and how many vertices, tex coords, normals and faces its chunk had before it.
+    private static class Statement {
+        static final int OBJECT = 0, MATERIAL = 1, SMOOTHING = 2;
+        final int _type;
+        final String _name; // The object's or the material's
+        final int _smoothingGroupId;
+        final int _numVertices, _numTexCoords, _numNormals, _numFaces;
+        Statement(int type, String name, int smoothingGroupId, Chunk chunk) {
+            _type = type;
+            _name = name;
+            _smoothingGroupId = smoothingGroupId;
+            _numVertices = chunk._vertices._size / 3;
+            _numTexCoords = chunk._texCoords._size / 2;
+            _numNormals = chunk._normals._size / 3;
+            _numFaces = chunk.getNumFaces();
+        }
+    }
 
-                totalVertices += numVertices;
-                totalTexCoords += numTexCoords;
-                totalNormals += numNormals;
-                numVertices = 0;
-                numTexCoords = 0;
-                numNormals = 0;
+    // The faces between two "usemtl" statements (or the start or end of an object), numbered from the start of the
+    // file. They're all flat shaded, or all in the same smooth shading group, depending on the last "s" statement before
+    // the piece ends.
+    private static class PieceFaces {
+        final String _materialName;
+        final int _smoothingGroupId;
+        final int _firstFace;
+        final int _endFace;
+        PieceFaces(String materialName, int smoothingGroupId, int firstFace, int endFace) {
+            _materialName = materialName;
+            _smoothingGroupId = smoothingGroupId;
+            _firstFace = firstFace;
+            _endFace = endFace;
+        }
+    }
+
+    // One object's range of the file's vertices, tex coords and normals, its pieces, and the arrays the chunks fill in.
+    private static class MeshData {
+        final String _name;
+        final boolean _isObject; // False for everything before the first "o" statement
+        final int _firstVertex, _firstTexCoord, _firstNormal, _firstFace;
+        final int _firstChunk;
+        int _endChunk;
+        final ArrayList<PieceFaces> _pieces = new ArrayList<>();
+        String _materialName;
+        boolean _hasPiece;
+        int _smoothingGroupId = -1;
+        int _pieceFirstFace;
+        double[] _vertices;
+        double[] _texCoords;
+        double[] _normals;
+        int[] _faces;
+        PolyhedronMesh _mesh;
+
+        MeshData(String name, boolean isObject, int firstVertex, int firstTexCoord, int firstNormal, int firstFace,
+                 int firstChunk) {
+            _name = name;
+            _isObject = isObject;
+            _firstVertex = firstVertex;
+            _firstTexCoord = firstTexCoord;
+            _firstNormal = firstNormal;
+            _firstFace = firstFace;
+            _firstChunk = firstChunk;
+            _pieceFirstFace = firstFace;
+        }
 
-                m = new PolyhedronMesh(words[1]);
-                line = bufferedReader.readLine();
-                continue;
+        void useMaterial(String materialName, int face) {
+            // Faces seen before the first "usemtl" belong to the first piece
+            if (_hasPiece) {
+                _pieces.add(new PieceFaces(_materialName, _smoothingGroupId, _pieceFirstFace, face));
+                _pieceFirstFace = face;
             }
-            if (m == null) { // don't accept any data until we've found an "o" statement.
-                line = bufferedReader.readLine();
-                continue;
+            _hasPiece = true;
+            _materialName = materialName;
+            _smoothingGroupId = -1;
+        }
+
+        void end(int endVertex, int endTexCoord, int endNormal, int endFace, int endChunk, ArrayList<MeshData> ended) {
+            if (_hasPiece || _pieceFirstFace < endFace) {
+                _pieces.add(new PieceFaces(_materialName, _smoothingGroupId, _pieceFirstFace, endFace));
             }
-            if (words[0].equals("v")) { // vertex
-                ++numVertices;
-                var result = parseVector3(words);
-                if (result.getFirst()) {
-                    vertices.add(result.getSecond());
-                }
+            if (!_isObject && endFace == _firstFace) {
+                return;
             }
-            else if (words[0].equals("vt")) { // vertex tex coord
-                ++numTexCoords;
-                var result = parseTexCoord(words);
-                if (result.getFirst()) {
-                    texCoords.add(result.getSecond());
+            _vertices = new double[(endVertex - _firstVertex) * 3];
+            _texCoords = new double[(endTexCoord - _firstTexCoord) * 2];
+            _normals = new double[(endNormal - _firstNormal) * 3];
+            _faces = new int[(endFace - _firstFace) * PolyhedronMesh.FACE_INTS];
+            _endChunk = endChunk;
+            ended.add(this);
+        }
+
+        PolyhedronMesh createMesh() {
+            PolyhedronMesh mesh = new PolyhedronMesh(_name);
+            mesh.setVertices(_vertices);
+            mesh.setNormals(_normals);
+            mesh.setTexCoords(_texCoords);
+            mesh.setFaces(_faces);
+            PolyhedronMesh.Piece[] pieces = new PolyhedronMesh.Piece[_pieces.size()];
+            for (int i = 0; i < pieces.length; ++i) {
+                PieceFaces pieceFaces = _pieces.get(i);
+                pieces[i] = new PolyhedronMesh.Piece(pieceFaces._materialName);
+                int[] faces = new int[pieceFaces._endFace - pieceFaces._firstFace];
+                for (int face = 0; face < faces.length; ++face) {
+                    faces[face] = pieceFaces._firstFace - _firstFace + face;
                 }
-            }
-            else if (words[0].equals("vn")) { // vertex normal
-                ++numNormals;
-                var result = parseVector3(words);
-                if (result.getFirst()) {
-                    normals.add(result.getSecond());
+                if (pieceFaces._smoothingGroupId == -1) {
+                    pieces[i].setFlatShadedFaces(faces);
                 }
-            }
-            else if (words[0].equals("usemtl")) { // material assignment
-                if (p != null) {
-                    addPolyhedronFaces(p, smoothingGroupId, faces, pieces);
+                else {
+                    pieces[i].addSmoothShadedFaceGroup(pieceFaces._smoothingGroupId, faces);
                 }
-                smoothingGroupId = -1;
-                p = new PolyhedronMesh.Piece(words[1]);
             }
-            else if (words[0].equals("s")) { // smooth shading
-                if (words[1].equals("off")) {
-                    smoothingGroupId = -1;
+            mesh.setPieces(pieces);
+            return mesh;
+        }
+    }
+
+    // A range of whole lines of the file. Vertex data is gathered into primitive arrays, and faces into an array of 9
+    // ints per triangle (vertex, tex coord and normal index for each corner).
+    //
+    // Until the offsets are known, face indices are kept as they were in the file (0 based) if they counted from the
+    // start of the file. Negative indices count back from the last vertex so far, which may be in an earlier chunk, so
+    // those are stored as RELATIVE plus the position within the chunk, which is negative for an earlier chunk. -1 means
+    // no index was given.
+    private static class Chunk {
+        private static final int NO_INDEX = -1;
+        private static final int RELATIVE = Integer.MIN_VALUE / 2;
+        private static final double[] POWERS_OF_TEN = {
+                1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+                1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+        private final ByteBuffer _buffer;
+        private final int _end;
+        private final Listener _listener;
+        private int _pos;
+        private boolean _isParsed; // Guarded by the ObjFile
+        private String _materialFileName;
+        private final DoubleArray _vertices = new DoubleArray();
+        private final DoubleArray _texCoords = new DoubleArray();
+        private final DoubleArray _normals = new DoubleArray();
+        private final IntArray _faces = new IntArray();
+        private final IntArray _polygon = new IntArray();
+        private final ArrayList<Statement> _statements = new ArrayList<>();
+        private int _vertexOffset, _texCoordOffset, _normalOffset, _faceOffset;
+
+        Chunk(ByteBuffer buffer, int start, int end, Listener listener) {
+            _buffer = buffer;
+            _pos = start;
+            _end = end;
+            _listener = listener;
+        }
+
+        void parse() throws IOException {
+            while (_pos < _end) {
+                skipSpaces();
+                if (_pos >= _end) {
+                    break;
                 }
-                else {
-                    var result = parseInteger(words);
-                    if (result.getFirst()) {
-                        smoothingGroupId = result.getSecond();
+                final int keywordStart = _pos;
+                skipToken();
+                final int keywordLength = _pos - keywordStart;
+                if (keywordLength == 0 || _buffer.get(keywordStart) == '#') {
+                    skipLine();
+                    continue;
+                }
+
+                if (isKeyword(keywordStart, keywordLength, "v")) {
+                    _vertices.add(parseDouble());
+                    _vertices.add(parseDouble());
+                    _vertices.add(parseDouble());
+                }
+                else if (isKeyword(keywordStart, keywordLength, "vt")) {
+                    _texCoords.add(parseDouble());
+                    _texCoords.add(parseDouble());
+                }
+                else if (isKeyword(keywordStart, keywordLength, "vn")) {
+                    _normals.add(parseDouble());
+                    _normals.add(parseDouble());
+                    _normals.add(parseDouble());
+                }
+                else if (isKeyword(keywordStart, keywordLength, "f")) {
+                    parseFace();
+                }
+                else if (isKeyword(keywordStart, keywordLength, "usemtl")) {
+                    String name = parseName();
+                    if (name != null) {
+                        _statements.add(new Statement(Statement.MATERIAL, name, -1, this));
                     }
                 }
-            }
-            else if (words[0].equals("f")) { // polyhedron face
-                if (words.length != 4) {
-                    throw new IOException("Only triangles supported");
+                else if (isKeyword(keywordStart, keywordLength, "s")) {
+                    String group = parseName();
+                    if (group != null) {
+                        int smoothingGroupId = group.equals("off") ? -1 : parseSmoothingGroup(group);
+                        _statements.add(new Statement(Statement.SMOOTHING, null, smoothingGroupId, this));
+                    }
                 }
-                var faceVertices = new PolyhedronMesh.FaceVertex[words.length - 1];
-                for (int i = 1; i < words.length; ++i) {
-                    String[] indices = words[i].split("/");
-                    if (indices.length == 3) {
-                        // Note that indices within the file are 1 based, NOT 0 based.
-                        faceVertices[i - 1] = new PolyhedronMesh.FaceVertex(
-                                Integer.parseInt(indices[0]) - totalVertices - 1,
-                                Integer.parseInt(indices[1]) - totalTexCoords - 1,
-                                Integer.parseInt(indices[2]) - totalNormals - 1);
+                else if (isKeyword(keywordStart, keywordLength, "o")) {
+                    String name = parseName();
+                    if (name != null) {
+                        _statements.add(new Statement(Statement.OBJECT, name, -1, this));
                     }
                 }
-                faces.add(new PolyhedronMesh.Face(faceVertices));
+                else if (isKeyword(keywordStart, keywordLength, "mtllib")) {
+                    String name = parseName();
+                    if (name != null && _materialFileName == null) {
+                        _materialFileName = name;
+                        if (_listener != null) {
+                            _listener.materialFileFound(name);
+                        }
+                    }
+                }
+                skipLine();
             }
-            line = bufferedReader.readLine();
         }
-        if (p != null) {
-            addPolyhedronFaces(p, smoothingGroupId, faces, pieces);
+
+        // Called once the offsets are known. Copies the vertices, tex coords, normals and faces that are in both this chunk
+        // and the mesh into the mesh's arrays.
+        void fillMesh(MeshData mesh) throws IOException {
+            copyRange(_vertices, _vertexOffset, mesh._vertices, mesh._firstVertex, 3);
+            copyRange(_texCoords, _texCoordOffset, mesh._texCoords, mesh._firstTexCoord, 2);
+            copyRange(_normals, _normalOffset, mesh._normals, mesh._firstNormal, 3);
+            final int endFace = _faceOffset + getNumFaces();
+            final int meshEndFace = mesh._firstFace + mesh._faces.length / PolyhedronMesh.FACE_INTS;
+            for (int face = Math.max(mesh._firstFace, _faceOffset); face < Math.min(meshEndFace, endFace); ++face) {
+                resolveFace(face - _faceOffset, mesh, (face - mesh._firstFace) * PolyhedronMesh.FACE_INTS);
+            }
         }
-        if (m != null) {
-            addPolyhedronMesh(m, vertices, normals, texCoords, pieces);
+
+        // Copies the elements that are both in this chunk, which starts at chunkFirst, and in the mesh's array, which
+        // starts at meshFirst. Each element is size doubles.
+        private static void copyRange(DoubleArray chunkValues, int chunkFirst, double[] meshValues, int meshFirst, int size) {
+            final int first = Math.max(chunkFirst, meshFirst);
+            final int end = Math.min(chunkFirst + chunkValues._size / size, meshFirst + meshValues.length / size);
+            if (first < end) {
+                System.arraycopy(chunkValues._values, (first - chunkFirst) * size, meshValues, (first - meshFirst) * size,
+                                 (end - first) * size);
+            }
         }
-    }
 
-    public String getMaterialFileName() { return _materialFileName; }
+        private int getNumFaces() {
+            return _faces._size / 9;
+        }
 
-    public int getMeshCount() { return _meshes.size(); }
-    public PolyhedronMesh getMesh(int index) {
-        if (index < 0 || index >= _meshes.size()) {
-            return null;
+        private void resolveFace(int face, MeshData mesh, int meshOffset) throws IOException {
+            final int[] indices = _faces._values;
+            final int numVertices = mesh._vertices.length / 3;
+            final int numTexCoords = mesh._texCoords.length / 2;
+            final int numNormals = mesh._normals.length / 3;
+            for (int corner = 0; corner < 3; ++corner) {
+                int i = face * 9 + corner * 3;
+                int j = meshOffset + corner * 3;
+                mesh._faces[j] = resolveIndex(indices[i], _vertexOffset, mesh._firstVertex, numVertices);
+                mesh._faces[j + 1] = resolveIndex(indices[i + 1], _texCoordOffset, mesh._firstTexCoord, numTexCoords);
+                mesh._faces[j + 2] = resolveIndex(indices[i + 2], _normalOffset, mesh._firstNormal, numNormals);
+            }
         }
-        return _meshes.get(index);
-    }
 
-    private void addPolyhedronFaces(PolyhedronMesh.Piece p, int smoothingGroupId, ArrayList<PolyhedronMesh.Face> faces,
-                                    ArrayList<PolyhedronMesh.Piece> pieces) {
-        var faceArray = new PolyhedronMesh.Face[faces.size()];
-        faceArray = faces.toArray(faceArray);
-        if (smoothingGroupId == -1) {
-            p.setFlatShadedFaces(faceArray);
+        // Makes an index relative to the first of the mesh's vertices (or tex coords or normals).
+        private static int resolveIndex(int index, int chunkOffset, int meshFirst, int meshCount) throws IOException {
+            if (index == NO_INDEX) {
+                return NO_INDEX;
+            }
+            int resolved = (index >= 0 ? index : chunkOffset + (index - RELATIVE)) - meshFirst;
+            if (resolved < 0 || resolved >= meshCount) {
+                throw new IOException("A face refers to a vertex outside of its object");
+            }
+            return resolved;
         }
-        else {
-            p.addSmoothShadedFaceGroup(smoothingGroupId, faceArray);
+
+        // "f v/vt/vn v/vt/vn v/vt/vn ..." where vt and vn are optional.
+        private void parseFace() throws IOException {
+            _polygon._size = 0;
+            skipSpaces();
+            while (_pos < _end && !isEndOfLine(_buffer.get(_pos))) {
+                _polygon.add(parseIndex(_vertices._size / 3));
+                int texCoord = NO_INDEX;
+                int normal = NO_INDEX;
+                if (_pos < _end && _buffer.get(_pos) == '/') {
+                    ++_pos;
+                    if (_pos < _end && _buffer.get(_pos) != '/') {
+                        texCoord = parseIndex(_texCoords._size / 2);
+                    }
+                    if (_pos < _end && _buffer.get(_pos) == '/') {
+                        ++_pos;
+                        normal = parseIndex(_normals._size / 3);
+                    }
+                }
+                _polygon.add(texCoord);
+                _polygon.add(normal);
+                skipSpaces();
+            }
+
+            final int numCorners = _polygon._size / 3;
+            if (numCorners < 3) {
+                throw new IOException("A face has fewer than 3 vertices");
+            }
+            for (int corner = 1; corner + 1 < numCorners; ++corner) {
+                addCorner(0);
+                addCorner(corner);
+                addCorner(corner + 1);
+            }
         }
-        faces.clear();
-        pieces.add(p);
-    }
 
-    private void addPolyhedronMesh(PolyhedronMesh m, ArrayList<Vector3> vertices, ArrayList<Vector3> normals,
-                                   ArrayList<TexCoord> texCoords, ArrayList<PolyhedronMesh.Piece> pieces) {
-        var vertexArray = new Vector3[vertices.size()];
-        vertexArray = vertices.toArray(vertexArray);
-        m.setVertices(vertexArray);
-        vertices.clear();
+        private void addCorner(int corner) {
+            _faces.add(_polygon._values[corner * 3]);
+            _faces.add(_polygon._values[corner * 3 + 1]);
+            _faces.add(_polygon._values[corner * 3 + 2]);
+        }
 
-        var normalArray = new Vector3[normals.size()];
-        normalArray = normals.toArray(normalArray);
-        m.setNormals(normalArray);
-        normals.clear();
+        private int parseIndex(int countSoFar) throws IOException {
+            int index = parseInt();
+            if (index > 0) {
+                return index - 1;
+            }
+            if (index < 0 && countSoFar + index > RELATIVE) {
+                return RELATIVE + countSoFar + index;
+            }
+            throw new IOException("Invalid face index " + index);
+        }
 
-        var texCoordArray = new TexCoord[texCoords.size()];
-        texCoordArray = texCoords.toArray(texCoordArray);
-        m.setTexCoords(texCoordArray);
-        texCoords.clear();
+        private int parseInt() throws IOException {
+            boolean negative = false;
+            if (_pos < _end && (_buffer.get(_pos) == '-' || _buffer.get(_pos) == '+')) {
+                negative = _buffer.get(_pos) == '-';
+                ++_pos;
+            }
+            final int start = _pos;
+            long value = 0;
+            while (_pos < _end) {
+                int digit = _buffer.get(_pos) - '0';
+                if (digit < 0 || digit > 9) {
+                    break;
+                }
+                value = value * 10 + digit;
+                if (value > Integer.MAX_VALUE) {
+                    throw new IOException("An index is too large");
+                }
+                ++_pos;
+            }
+            if (_pos == start) {
+                throw new IOException("Expected a number but found " + describeToken(start));
+            }
+            return negative ? -(int)value : (int)value;
+        }
 
-        var pieceArray = new PolyhedronMesh.Piece[pieces.size()];
-        pieceArray = pieces.toArray(pieceArray);
-        m.setPieces(pieceArray);
-        pieces.clear();
+        // Numbers with up to 15 significant digits and a small exponent are converted exactly: both the digits and the
+        // power of ten are exact as doubles, so one multiply or divide gives the correctly rounded result, the same as
+        // Double.parseDouble(). Anything else (more digits, big exponents, "nan" etc.) is given to Double.parseDouble().
+        // https://www.exploringbinary.com/fast-path-decimal-to-floating-point-conversion/
+        private double parseDouble() throws IOException {
+            skipSpaces();
+            final int start = _pos;
+            boolean negative = false;
+            if (_pos < _end && (_buffer.get(_pos) == '-' || _buffer.get(_pos) == '+')) {
+                negative = _buffer.get(_pos) == '-';
+                ++_pos;
+            }
+            long digits = 0;
+            int numDigits = 0;
+            int exponent = 0;
+            boolean seenDigit = false;
+            boolean seenPoint = false;
+            while (_pos < _end) {
+                byte b = _buffer.get(_pos);
+                if (b >= '0' && b <= '9') {
+                    seenDigit = true;
+                    if (numDigits > 0 || b != '0') { // Leading zeros aren't significant
+                        if (numDigits < 18) { // Any more won't take the fast path, so they needn't fit in digits
+                            digits = digits * 10 + (b - '0');
+                        }
+                        ++numDigits;
+                    }
+                    if (seenPoint) {
+                        --exponent;
+                    }
+                }
+                else if (b == '.' && !seenPoint) {
+                    seenPoint = true;
+                }
+                else {
+                    break;
+                }
+                ++_pos;
+            }
+            if (_pos < _end && (_buffer.get(_pos) == 'e' || _buffer.get(_pos) == 'E') && seenDigit) {
+                ++_pos;
+                exponent += parseInt();
+            }
+            if (!seenDigit || (_pos < _end && !isSpace(_buffer.get(_pos)) && !isEndOfLine(_buffer.get(_pos)))) {
+                return parseDoubleSlowly(start);
+            }
+            if (numDigits > 15 || exponent < -22 || exponent > 22) {
+                return parseDoubleSlowly(start);
+            }
+            double value = exponent >= 0 ? digits * POWERS_OF_TEN[exponent] : digits / POWERS_OF_TEN[-exponent];
+            return negative ? -value : value;
+        }
 
-        _meshes.add(m);
-    }
+        private double parseDoubleSlowly(int start) throws IOException {
+            _pos = start;
+            skipToken();
+            String token = getString(start, _pos);
+            try {
+                return Double.parseDouble(token);
+            }
+            catch (NumberFormatException e) {
+                throw new IOException("Expected a number but found " + describeToken(start), e);
+            }
+        }
+
+        // The first word after a keyword, or null if there isn't one.
+        private String parseName() {
+            skipSpaces();
+            final int start = _pos;
+            skipToken();
+            return _pos > start ? getString(start, _pos) : null;
+        }
+
+        private static int parseSmoothingGroup(String group) throws IOException {
+            try {
+                return Integer.parseInt(group);
+            }
+            catch (NumberFormatException e) {
+                throw new IOException("Invalid smoothing group " + group, e);
+            }
+        }
 
-    private Pair<Boolean, Integer> parseInteger(String[] words) {
-        if (words.length == 2) {
-            return new Pair<>(true, Integer.parseInt(words[1]));
+        private boolean isKeyword(int start, int length, String keyword) {
+            if (length != keyword.length()) {
+                return false;
+            }
+            for (int i = 0; i < length; ++i) {
+                if (_buffer.get(start + i) != keyword.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private String describeToken(int start) {
+            int end = start;
+            while (end < _end && !isSpace(_buffer.get(end)) && !isEndOfLine(_buffer.get(end))) {
+                ++end;
+            }
+            return end > start ? "\"" + getString(start, end) + "\"" : "the end of the line";
+        }
+
+        private String getString(int start, int end) {
+            byte[] bytes = new byte[end - start];
+            _buffer.get(start, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private void skipSpaces() {
+            while (_pos < _end && isSpace(_buffer.get(_pos))) {
+                ++_pos;
+            }
+        }
+
+        private void skipToken() {
+            while (_pos < _end && !isSpace(_buffer.get(_pos)) && !isEndOfLine(_buffer.get(_pos))) {
+                ++_pos;
+            }
+        }
+
+        private void skipLine() {
+            while (_pos < _end && _buffer.get(_pos) != '\n') {
+                ++_pos;
+            }
+            ++_pos;
         }
-        return new Pair<>(false, null);
     }
 
-    private Pair<Boolean, TexCoord> parseTexCoord(String[] words) {
-        if (words.length == 3) {
-            return new Pair<>(true, new TexCoord(
-                    Double.parseDouble(words[1]),
-                    Double.parseDouble(words[2])
-            ));
+    private static class DoubleArray {
+        double[] _values = new double[64];
+        int _size;
+        void add(double value) {
+            if (_size == _values.length) {
+                _values = Arrays.copyOf(_values, _values.length * 2);
+            }
+            _values[_size++] = value;
         }
-        return new Pair<>(false, null);
     }
 
-    private Pair<Boolean, Vector3> parseVector3(String[] words) {
-        if (words.length == 4) {
-            return new Pair<>(true, new Vector3(
-                    Double.parseDouble(words[1]),
-                    Double.parseDouble(words[2]),
-                    Double.parseDouble(words[3])
-            ));
+    private static class IntArray {
+        int[] _values = new int[64];
+        int _size;
+        void add(int value) {
+            if (_size == _values.length) {
+                _values = Arrays.copyOf(_values, _values.length * 2);
+            }
+            _values[_size++] = value;
         }
-        return new Pair<>(false, null);
     }
 }
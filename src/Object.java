@@ -5,16 +5,36 @@ public abstract class Object {
     private final Material[] _materials;
     protected TextureSampling _textureSampling;
 
+    // The transforms are worked out once rather than for every ray. Scale isn't part of them (it's used by the
+    // subclasses as the object's size), so they're rigid: the inverse rotation is the transpose of the rotation, and
+    // the rotation is also the matrix that normals are transformed with.
+    private final Matrix3 _rotationMatrix;
+    private final Matrix3 _inverseRotationMatrix;
+    private final boolean _isIdentityTransform;
+
     public Object(Vector3 position, Vector3 rotation, Vector3 scale, Material[] materials, TextureSampling textureSampling) {
         _position = position;
         _rotation = rotation;
         _scale = scale;
         _materials = materials;
         _textureSampling = textureSampling;
+
+        _rotationMatrix = Matrix3.rotateX(_rotation._x)
+                .multiply(Matrix3.rotateY(_rotation._y))
+                .multiply(Matrix3.rotateZ(_rotation._z));
+        _inverseRotationMatrix = Matrix3.rotateZ(-_rotation._z)
+                .multiply(Matrix3.rotateY(-_rotation._y))
+                .multiply(Matrix3.rotateX(-_rotation._x));
+        _isIdentityTransform =
+                _position._x == 0.0 && _position._y == 0.0 && _position._z == 0.0 &&
+                _rotation._x == 0.0 && _rotation._y == 0.0 && _rotation._z == 0.0;
     }
 
     public Vector3 getScale() { return _scale; }
 
+    // True if the object's local coordinates are world coordinates.
+    protected boolean isIdentityTransform() { return _isIdentityTransform; }
+
     public Material[] getMaterials() { return _materials; }
 
     public Matrix4 getModelMatrix() {
@@ -33,39 +53,88 @@ public abstract class Object {
         return rotZ.multiply(rotY).multiply(rotX).multiply(translate);
     }
 
-    public Ray toLocalCoords(Ray ray) {
-        Matrix4 rotZ = Matrix4.rotateZ(-_rotation._z);
-        Matrix4 rotY = Matrix4.rotateY(-_rotation._y);
-        Matrix4 rotX = Matrix4.rotateX(-_rotation._x);
-        Matrix3 rotZ3 = new Matrix3(rotZ);
-        Matrix3 rotY3 = new Matrix3(rotY);
-        Matrix3 rotX3 = new Matrix3(rotX);
-        Matrix3 m3 = rotZ3.multiply(rotY3).multiply(rotX3);
-
-        Matrix4 m4 = getInverseModelMatrix();
-        return new Ray(
-                m4.multiply(new Vector4(ray.getOrigin(), 1.0)).toVector3(),
-                m3.multiply(ray.getDirection()), ray.getPixelX(), ray.getPixelY()
-        );
+    // Returns the ray in this object's local coordinates. That's written to out, unless the object isn't transformed
+    // at all in which case the ray itself is returned.
+    public Ray toLocalCoords(Ray ray, Ray out) {
+        if (_isIdentityTransform) {
+            return ray;
+        }
+        double[][] m = _inverseRotationMatrix._m;
+        Vector3 origin = ray.getOrigin();
+        Vector3 direction = ray.getDirection();
+        double x = origin._x - _position._x;
+        double y = origin._y - _position._y;
+        double z = origin._z - _position._z;
+        return out.set(
+                (m[0][0] * x) + (m[0][1] * y) + (m[0][2] * z),
+                (m[1][0] * x) + (m[1][1] * y) + (m[1][2] * z),
+                (m[2][0] * x) + (m[2][1] * y) + (m[2][2] * z),
+                (m[0][0] * direction._x) + (m[0][1] * direction._y) + (m[0][2] * direction._z),
+                (m[1][0] * direction._x) + (m[1][1] * direction._y) + (m[1][2] * direction._z),
+                (m[2][0] * direction._x) + (m[2][1] * direction._y) + (m[2][2] * direction._z),
+                ray.getMagnitude(), ray.getPixelX(), ray.getPixelY())
+                .setCone(ray.getConeWidth(), ray.getConeSpreadAngle());
     }
 
+    // Transforms the result from local to world coordinates in place.
     public IntersectResult toWorldCoords(IntersectResult result) {
-        Matrix4 m4 = getModelMatrix();
+        if (_isIdentityTransform) {
+            return result;
+        }
+        _rotationMatrix.multiply(result._point, result._point).addInPlace(_position);
+        _rotationMatrix.multiply(result._normal, result._normal);
+        return result;
+    }
+
+    // Returns true if the ray hits this object closer than tMax, in which case the hit is written to result in local
+    // coordinates. The context provides scratch space so that nothing needs to be allocated.
+    public abstract boolean intersect(Ray rayLocalCoords, double tMax, IntersectResult result, TraceContext context);
 
-        Matrix3 rotZ3 = Matrix3.rotateZ(_rotation._z);
-        Matrix3 rotY3 = Matrix3.rotateY(_rotation._y);
-        Matrix3 rotX3 = Matrix3.rotateX(_rotation._x);
-        Matrix3 m3 = rotX3.multiply(rotY3).multiply(rotZ3);
-
-        IntersectResult r = new IntersectResult();
-        r._intersected = result._intersected;
-        r._distance = result._distance;
-        r._point = m4.multiply(new Vector4(result._point, 1.0)).toVector3();
-        r._normal = m3.multiply(result._normal);
-        r._material = result._material;
-        r._diffuseTextureColour = result._diffuseTextureColour;
-        return r;
+    // Returns true if the ray hits this object closer than maxDistance. This is for shadow rays, so implementations
+    // should stop at the first hit they find and skip working out normals, texture colours etc.
+    // If the object is made of parts, an implementation that returns true should also leave the index of the part that
+    // was hit in context._occluderPrimitive, so it can be tested on its own by isOccludingPrimitive().
+    public abstract boolean isOccluding(Ray rayLocalCoords, double maxDistance, TraceContext context);
+
+    // Tests just the part of the object that blocked an earlier shadow ray. Objects that aren't made of parts (they
+    // leave context._occluderPrimitive at -1) are tested as a whole.
+    public boolean isOccludingPrimitive(Ray rayLocalCoords, double maxDistance, int primitive, TraceContext context) {
+        return isOccluding(rayLocalCoords, maxDistance, context);
+    }
+
+    // Marks each of the packet's unoccluded rays that hits this object closer than its maximum distance as occluded. The
+    // rays are in world coordinates, and they're tested one at a time unless a subclass can do better.
+    public void occludePacket(ShadowPacket packet, TraceContext context) {
+        for (long rays = packet.getUnoccludedRays(); rays != 0; rays &= rays - 1) {
+            final int i = Long.numberOfTrailingZeros(rays);
+            if (isOccluding(toLocalCoords(packet.getRay(i), context._localRay), packet.getMaxDistance(i), context)) {
+                packet.setOccluded(i);
+            }
+        }
+    }
+
+    // The box around the object in its own coordinate system.
+    public abstract Aabb getLocalBounds();
+
+    // How wide the ray's cone is where it hit, in texture coordinates, for TextureSampling. texCoordsPerUnit is how far
+    // the texture coordinates move for each unit of distance across the surface. The more glancing the hit, the more
+    // the cone is stretched across the surface.
+    protected static double calculateTexCoordFootprint(Ray rayLocalCoords, IntersectResult result, double texCoordsPerUnit) {
+        double cosine = Math.abs(rayLocalCoords.getDirection().dotProduct(result._normal));
+        return rayLocalCoords.getConeWidth(result._distance) / Math.max(cosine, 1e-6) * texCoordsPerUnit;
     }
 
-    public abstract IntersectResult intersect(Ray rayLocalCoords);
+    public Aabb getWorldBounds() {
+        Aabb local = getLocalBounds();
+        Matrix4 m4 = getModelMatrix();
+        Aabb world = Aabb.createEmpty();
+        for (int corner = 0; corner < 8; ++corner) {
+            Vector3 v = new Vector3(
+                    (corner & 1) == 0 ? local._min._x : local._max._x,
+                    (corner & 2) == 0 ? local._min._y : local._max._y,
+                    (corner & 4) == 0 ? local._min._z : local._max._z);
+            world.adjust(m4.multiply(v));
+        }
+        return world;
+    }
 }
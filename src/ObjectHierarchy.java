@@ -0,0 +1,110 @@
+import java.util.ArrayList;
+
+// The top level of the scene's acceleration structure: a hierarchy over the world space bounds of every object. A ray
+// is only transformed into an object's local coordinates and tested against it (which for a PolyhedronObject means
+// walking the mesh's own BoundingVolumeHierarchy) if it crosses the object's bounds.
+public class ObjectHierarchy extends LinearBoundingVolumeHierarchy<ObjectHierarchy.Query> {
+    private static final int MAX_LEAF_OBJECTS = 1;
+    private final Object[] _objects;
+
+    public ObjectHierarchy(ArrayList<Object> objects) {
+        _objects = new Object[objects.size()];
+        objects.toArray(_objects);
+
+        Aabb[] objectBounds = new Aabb[_objects.length];
+        for (int i = 0; i < _objects.length; ++i) {
+            objectBounds[i] = _objects[i].getWorldBounds();
+        }
+        buildHierarchy(objectBounds, MAX_LEAF_OBJECTS);
+    }
+
+    public int getNumObjects() { return _objects.length; }
+
+    // The state of one query. Each thread's TraceContext has one that's reused for every ray the thread traces.
+    public static class Query {
+        private final IntersectResult _candidate = new IntersectResult();
+        private TraceContext _context;
+        private IntersectResult _result;
+        private int _objectIndex;
+    }
+
+    // Finds the closest hit that's nearer than tMax and writes it to result in world coordinates. Each query shrinks
+    // its own tMax as closer hits are found, so nothing is shared between rays or threads.
+    public boolean intersect(Ray ray, double tMax, IntersectResult result, TraceContext context) {
+        Query query = context._objectQuery;
+        query._context = context;
+        query._result = result;
+        query._objectIndex = -1;
+        traverse(ray, tMax, context._objectStack, query);
+        if (query._objectIndex < 0) {
+            result._intersected = false;
+            return false;
+        }
+        _objects[query._objectIndex].toWorldCoords(result);
+        return true;
+    }
+
+    // Returns true if any object is hit closer than maxDistance. Used for shadow rays.
+    public boolean isOccluded(Ray ray, double maxDistance, TraceContext context) {
+        return findOccluder(ray, maxDistance, context) >= 0;
+    }
+
+    // Returns the index of an object that's hit closer than maxDistance, or -1 if there isn't one. If the object is made
+    // of parts, the part that was hit is left in context._occluderPrimitive, otherwise that's -1.
+    public int findOccluder(Ray ray, double maxDistance, TraceContext context) {
+        Query query = context._objectQuery;
+        query._context = context;
+        query._objectIndex = -1;
+        context._occluderPrimitive = -1;
+        traverseAny(ray, maxDistance, context._objectStack, query);
+        return query._objectIndex;
+    }
+
+    // Marks each of the packet's rays that an object blocks as occluded. The packet goes through this hierarchy and each
+    // object's own hierarchy as a whole.
+    public void occludePacket(ShadowPacket packet, TraceContext context) {
+        Query query = context._objectQuery;
+        query._context = context;
+        traversePacket(packet, context._objectStack, query);
+    }
+
+    // Tests one object, or one part of it, as returned by findOccluder().
+    public boolean isOccludedBy(int objectIndex, int primitive, Ray ray, double maxDistance, TraceContext context) {
+        Object object = _objects[objectIndex];
+        return object.isOccludingPrimitive(object.toLocalCoords(ray, context._localRay), maxDistance, primitive, context);
+    }
+
+    // The hit is kept in the object's local coordinates until the traversal has finished, so only the closest one is
+    // transformed into world coordinates.
+    @Override
+    protected double intersectPrimitive(int objectIndex, Ray ray, double closest, Query query) {
+        Object object = _objects[objectIndex];
+        TraceContext context = query._context;
+        if (object.intersect(object.toLocalCoords(ray, context._localRay), closest, query._candidate, context)) {
+            query._result.set(query._candidate);
+            query._objectIndex = objectIndex;
+            return query._candidate._distance;
+        }
+        return closest;
+    }
+
+    @Override
+    protected boolean occludesPrimitive(int objectIndex, Ray ray, double tMax, Query query) {
+        Object object = _objects[objectIndex];
+        TraceContext context = query._context;
+        if (object.isOccluding(object.toLocalCoords(ray, context._localRay), tMax, context)) {
+            query._objectIndex = objectIndex;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    protected void occludePacketLeaf(int node, int offset, int count, ShadowPacket packet, TraversalStack traversalStack,
+                                     Query query) {
+        final int[] primitiveIndices = getPrimitiveIndices();
+        for (int i = offset; i < offset + count && packet.getUnoccludedRays() != 0; ++i) {
+            _objects[primitiveIndices[i]].occludePacket(packet, query._context);
+        }
+    }
+}
@@ -8,49 +8,79 @@ public class PlaneObject extends Object {
     
     // https://en.wikipedia.org/wiki/Line%E2%80%93plane_intersection
     @Override
-    public IntersectResult intersect(Ray rayLocalCoords) {
-        IntersectResult result = new IntersectResult();
-        if (determineIntersectionPoint(rayLocalCoords, result)) {
-            determineDiffuseTextureColour(result);
-            result._intersected = true;
-            result._normal = _normal;
-            result._material = getMaterials()[0];
+    public boolean intersect(Ray rayLocalCoords, double tMax, IntersectResult result, TraceContext context) {
+        double percent = determineIntersectionPercent(rayLocalCoords);
+        if (percent < 0.0) {
+            return false;
+        }
+        // The intersection is the given percentage of the way along the line segment
+        Vector3 origin = rayLocalCoords.getOrigin();
+        Vector3 direction = rayLocalCoords.getDirection();
+        double length = rayLocalCoords.getMagnitude();
+        double x = direction._x * length * percent;
+        double y = direction._y * length * percent;
+        double z = direction._z * length * percent;
+        double distance = Math.sqrt(x * x + y * y + z * z);
+        if (distance >= tMax) {
+            return false;
         }
-        return result;
+        result._point.set(origin._x + x, origin._y + y, origin._z + z);
+        result._distance = distance;
+        result._normal.set(_normal);
+        determineDiffuseTextureColour(rayLocalCoords, result, context);
+        result._intersected = true;
+        result._material = getMaterials()[0];
+        return true;
     }
 
-    private boolean determineIntersectionPoint(Ray rayLocalCoords, IntersectResult result) {
-        Vector3 lineSegment = rayLocalCoords.getDirection().multiply(rayLocalCoords.getMagnitude());
-        double denominator = _normal.dotProduct(lineSegment);
+    @Override
+    public boolean isOccluding(Ray rayLocalCoords, double maxDistance, TraceContext context) {
+        double percent = determineIntersectionPercent(rayLocalCoords);
+        return percent >= 0.0 && percent * rayLocalCoords.getMagnitude() < maxDistance;
+    }
+
+    @Override
+    public Aabb getLocalBounds() {
+        double halfWidth = getScale()._x / 2.0;
+        double halfHeight = getScale()._z / 2.0;
+        return new Aabb(new Vector3(-halfWidth, 0.0, -halfHeight), new Vector3(halfWidth, 0.0, halfHeight));
+    }
+
+    // Returns how far along the ray's line segment it crosses the plane, from 0 to 1, or -1 if it doesn't.
+    private double determineIntersectionPercent(Ray rayLocalCoords) {
+        Vector3 origin = rayLocalCoords.getOrigin();
+        Vector3 direction = rayLocalCoords.getDirection();
+        double length = rayLocalCoords.getMagnitude();
+        double denominator = _normal.dotProduct(direction) * length;
         if (Math.abs(denominator) <= 1e-3) { // It's parallel to the plane
-            return false;
+            return -1.0;
         }
 
         // Work out how far along the line segment the intersection is in terms of a percentage
-        double percent = -_normal.dotProduct(rayLocalCoords.getOrigin()) / denominator;
+        double percent = -_normal.dotProduct(origin) / denominator;
         if (percent < 0.0 || percent > 1.0) { // Either before the line segment starts, or after it ends
-            return false;
+            return -1.0;
         }
 
-        Vector3 intersectionLineSeg = lineSegment.multiply(percent);
-        Vector3 intersection = rayLocalCoords.getOrigin().add(intersectionLineSeg);
-        if (Math.abs(intersection._x) >= (getScale()._x / 2.0) ||
-            Math.abs(intersection._z) >= (getScale()._z / 2.0)) {
-            return false;
+        double x = origin._x + direction._x * length * percent;
+        double z = origin._z + direction._z * length * percent;
+        if (Math.abs(x) >= (getScale()._x / 2.0) ||
+            Math.abs(z) >= (getScale()._z / 2.0)) {
+            return -1.0;
         }
-
-        result._point = intersection;
-        result._distance = intersectionLineSeg.magnitude();
-        return true;
+        return percent;
     }
 
-    private void determineDiffuseTextureColour(IntersectResult result) {
+    private void determineDiffuseTextureColour(Ray rayLocalCoords, IntersectResult result, TraceContext context) {
         if (getMaterials()[0].getDiffuseTexture() == null) {
-            result._diffuseTextureColour = new Vector3(1.0, 1.0, 1.0);
+            result._diffuseTextureColour.set(1.0, 1.0, 1.0);
             return;
         }
         double u = (result._point._x / getScale()._x) + 0.5;
         double v = (result._point._z / getScale()._z) + 0.5;
-        result._diffuseTextureColour = _textureSampling.takeSample(u, v, getMaterials()[0].getDiffuseTexture());
+        double footprint = calculateTexCoordFootprint(rayLocalCoords, result,
+                1.0 / Math.sqrt(getScale()._x * getScale()._z));
+        ++context._metrics._numTextureSamples;
+        _textureSampling.takeSample(u, v, footprint, getMaterials()[0].getDiffuseTexture(), result._diffuseTextureColour);
     }
 }
@@ -1,11 +1,21 @@
 import java.util.HashMap;
 import java.util.Set;
 
+// A mesh's vertices, normals and tex coords are kept in flat arrays of doubles, one after another (x, y and z for each
+// vertex or normal, u and v for each tex coord), and its faces, which are all triangles, in a flat array of ints. Each
+// face is FACE_INTS of them: a vertex, tex coord and normal index for each corner, where -1 means the tex coord or normal
+// was left out. Faces are numbered by their position in that array, and pieces hold the numbers of their faces.
+//
+// The arrays are kept as they're given rather than copied, since they're usually the ones ObjFile or SceneCache has just
+// filled in, and they're the mesh's from then on.
 public class PolyhedronMesh {
+    public static final int FACE_INTS = 9;
+    private static final int CORNER_INTS = 3;
     private final String _name;
-    private Vector3[] _vertices;
-    private Vector3[] _normals;
-    private TexCoord[] _texCoords;
+    private double[] _vertices;
+    private double[] _normals;
+    private double[] _texCoords;
+    private int[] _faces;
     private Piece[] _pieces;
 
     public PolyhedronMesh(String name) {
@@ -13,19 +23,27 @@ public class PolyhedronMesh {
         _vertices = null;
         _normals = null;
         _texCoords = null;
+        _faces = null;
         _pieces = null;
     }
 
     public String getName() { return _name; }
 
-    public Vector3[] getVertices() { return _vertices; }
-    public void setVertices(Vector3[] vertices) { _vertices = vertices.clone(); }
+    public double[] getVertices() { return _vertices; }
+    public void setVertices(double[] vertices) { _vertices = vertices; }
+    public int getNumVertices() { return _vertices.length / 3; }
 
-    public Vector3[] getNormals() { return _normals; }
-    public void setNormals(Vector3[] normals) { _normals = normals.clone(); }
+    public double[] getNormals() { return _normals; }
+    public void setNormals(double[] normals) { _normals = normals; }
+    public int getNumNormals() { return _normals.length / 3; }
 
-    public TexCoord[] getTexCoords() { return _texCoords; }
-    public void setTexCoords(TexCoord[] texCoords) { _texCoords = texCoords.clone(); }
+    public double[] getTexCoords() { return _texCoords; }
+    public void setTexCoords(double[] texCoords) { _texCoords = texCoords; }
+    public int getNumTexCoords() { return _texCoords.length / 2; }
+
+    public int[] getFaces() { return _faces; }
+    public void setFaces(int[] faces) { _faces = faces; }
+    public int getNumFaces() { return _faces.length / FACE_INTS; }
 
     public Piece[] getPieces() { return _pieces; }
     public void setPieces(Piece[] pieces) { _pieces = pieces.clone(); }
@@ -36,36 +54,84 @@ public class PolyhedronMesh {
         }
     }
 
-    public static class FaceVertex {
-        public int _vertexIndex;
-        public int _texCoordIndex;
-        public int _normalIndex;
-        public FaceVertex(int v, int vt, int vn) {
-            _vertexIndex = v;
-            _texCoordIndex = vt;
-            _normalIndex = vn;
+    // Corners are 0, 1 and 2.
+    public int getVertexIndex(int face, int corner) { return _faces[face * FACE_INTS + corner * CORNER_INTS]; }
+    public int getTexCoordIndex(int face, int corner) { return _faces[face * FACE_INTS + corner * CORNER_INTS + 1]; }
+    public int getNormalIndex(int face, int corner) { return _faces[face * FACE_INTS + corner * CORNER_INTS + 2]; }
+
+    public Vector3 getVertex(int index, Vector3 out) {
+        return out.set(_vertices[index * 3], _vertices[index * 3 + 1], _vertices[index * 3 + 2]);
+    }
+
+    public TexCoord getTexCoord(int index, TexCoord out) {
+        out._u = _texCoords[index * 2];
+        out._v = _texCoords[index * 2 + 1];
+        return out;
+    }
+
+    public Aabb buildFaceAabb(int face) {
+        Aabb box = Aabb.createEmpty();
+        Vector3 vertex = new Vector3();
+        for (int corner = 0; corner < 3; ++corner) {
+            box.adjust(getVertex(getVertexIndex(face, corner), vertex));
         }
+        return box;
     }
 
-    public static class Face {
-        public FaceVertex[] _faceVertices;
-        public Face(FaceVertex[] faceVertices) {
-            _faceVertices = faceVertices;
+    // Returns the distance along the ray to the intersection, or a negative value if there isn't one. The ray's
+    // direction must be unit length. Only primitive arithmetic is used because this is called for every face in
+    // every BVH leaf that a ray visits.
+    // https://en.wikipedia.org/wiki/M%C3%B6ller%E2%80%93Trumbore_intersection_algorithm
+    public double intersectFace(int face, Vector3 origin, Vector3 direction) {
+        final int i0 = getVertexIndex(face, 0) * 3, i1 = getVertexIndex(face, 1) * 3, i2 = getVertexIndex(face, 2) * 3;
+        final double[] v = _vertices;
+        double e0x = v[i1] - v[i0], e0y = v[i1 + 1] - v[i0 + 1], e0z = v[i1 + 2] - v[i0 + 2];
+        double e1x = v[i2] - v[i0], e1y = v[i2 + 1] - v[i0 + 1], e1z = v[i2 + 2] - v[i0 + 2];
+
+        double hx = direction._y * e1z - direction._z * e1y;
+        double hy = direction._z * e1x - direction._x * e1z;
+        double hz = direction._x * e1y - direction._y * e1x;
+        double dot = e0x * hx + e0y * hy + e0z * hz;
+        if (Math.abs(dot) < 1e-3) {
+            return -1.0; // line is parallel
         }
-        public Aabb buildAabb(Vector3[] vertices) {
-            Aabb box = new Aabb();
-            for (int i = 0; i < _faceVertices.length; ++i) {
-                box.adjust(vertices[_faceVertices[i]._vertexIndex]);
-            }
-            box.rebuildPlanes();
-            return box;
+
+        double f = 1.0 / dot;
+
+        double sx = origin._x - v[i0], sy = origin._y - v[i0 + 1], sz = origin._z - v[i0 + 2];
+        double u = f * (sx * hx + sy * hy + sz * hz);
+        if (u < 0.0 || u > 1.0) {
+            return -1.0;
+        }
+
+        double qx = sy * e0z - sz * e0y;
+        double qy = sz * e0x - sx * e0z;
+        double qz = sx * e0y - sy * e0x;
+        double w = f * (direction._x * qx + direction._y * qy + direction._z * qz);
+        if (w < 0.0 || u + w > 1.0) {
+            return -1.0;
         }
+
+        double t = f * (e1x * qx + e1y * qy + e1z * qz);
+        return t > 1e-3 ? t : -1.0;
+    }
+
+    public Vector3 calculateFaceNormal(int face, Vector3 out) {
+        final int i0 = getVertexIndex(face, 0) * 3, i1 = getVertexIndex(face, 1) * 3, i2 = getVertexIndex(face, 2) * 3;
+        final double[] v = _vertices;
+        double e1x = v[i1] - v[i0], e1y = v[i1 + 1] - v[i0 + 1], e1z = v[i1 + 2] - v[i0 + 2];
+        double e2x = v[i2] - v[i0], e2y = v[i2 + 1] - v[i0 + 1], e2z = v[i2 + 2] - v[i0 + 2];
+        return out.set(
+                e1y * e2z - e1z * e2y,
+                e1z * e2x - e1x * e2z,
+                e1x * e2y - e1y * e2x).makeNormalised(out);
     }
 
+    // A piece's faces are the numbers of faces in its mesh.
     public static class Piece {
         private final String _materialName;
-        private final HashMap<Integer, Face[]> _smoothShadedFaceGroups;
-        private Face[] _flatShadedFaces;
+        private final HashMap<Integer, int[]> _smoothShadedFaceGroups;
+        private int[] _flatShadedFaces;
         private Material _material;
 
         public Piece(String materialName) {
@@ -75,6 +141,7 @@ public class PolyhedronMesh {
             _material = null;
         }
 
+        public String getMaterialName() { return _materialName; }
         public Material getMaterial() { return _material; }
 
         public void resolveMaterial(Material[] materials) {
@@ -86,20 +153,20 @@ public class PolyhedronMesh {
             }
         }
 
-        public Face[] getFlatShadedFaces() { return _flatShadedFaces; }
-        public void setFlatShadedFaces(Face[] flatShadedFaces) { _flatShadedFaces = flatShadedFaces; }
+        public int[] getFlatShadedFaces() { return _flatShadedFaces; }
+        public void setFlatShadedFaces(int[] flatShadedFaces) { _flatShadedFaces = flatShadedFaces; }
 
         public Set<Integer> getGroupIds() {
             return _smoothShadedFaceGroups.keySet();
         }
 
-        public Face[] getSmoothShadedFaceGroup(int groupId) {
+        public int[] getSmoothShadedFaceGroup(int groupId) {
             if (_smoothShadedFaceGroups.containsKey(groupId)) {
                 return _smoothShadedFaceGroups.get(groupId);
             }
             return null;
         }
-        public void addSmoothShadedFaceGroup(int groupId, Face[] faces) {
+        public void addSmoothShadedFaceGroup(int groupId, int[] faces) {
             _smoothShadedFaceGroups.put(groupId, faces);
         }
     }
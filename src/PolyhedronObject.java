@@ -1,28 +1,14 @@
-import java.text.DecimalFormat;
-import java.util.Iterator;
 import java.util.Set;
 
 public class PolyhedronObject extends Object {
-    private static final int MAX_BVH_TRACE_TIMES = 25000;
-    private int _bvhTraceTimeIndex;
-    private final long[] _bvhTraceTimes;
-    private final long[] _bvhNumRayTriIntersectionTests;
     private final PolyhedronMesh _polyhedronMesh;
     private final BoundingVolumeHierarchy _bvh;
-    private double _closestDistance;
-    private final DecimalFormat _decimalFormat;
-    private long _cachedNumFaces;
 
     public PolyhedronObject(Vector3 position, Vector3 rotation, Vector3 scale, Material[] materials,
                             TextureSampling textureSampling, PolyhedronMesh polyhedronMesh, BoundingVolumeHierarchy bvh) {
         super(position, rotation, scale, materials, textureSampling);
         _polyhedronMesh = polyhedronMesh;
         _bvh = bvh;
-        _bvhTraceTimeIndex = 0;
-        _bvhTraceTimes = new long[MAX_BVH_TRACE_TIMES];
-        _bvhNumRayTriIntersectionTests = new long[MAX_BVH_TRACE_TIMES];
-        _decimalFormat = new DecimalFormat("0.000");
-        _cachedNumFaces = 0;
     }
 
     public long getNumFaces() {
@@ -36,128 +22,115 @@ public class PolyhedronObject extends Object {
                 numFaces += _polyhedronMesh.getPieces()[j].getSmoothShadedFaceGroup(smoothShadedFaceGroup).length;
             }
         }
-        _cachedNumFaces = numFaces;
         return numFaces;
     }
     
+    // This method is called concurrently by the render threads, so everything about the trace lives in the thread's
+    // context, and the statistics are counted in the context's metrics.
     @Override
-    public IntersectResult intersect(Ray ray) {
-        IntersectResult result = new IntersectResult();
-        _closestDistance = Double.MAX_VALUE;
-
-        _bvhNumRayTriIntersectionTests[_bvhTraceTimeIndex] = 0;
-        long startTimeMs = System.currentTimeMillis();
-
-        _bvh.traceRay(ray, (face, material) -> {
-            ++_bvhNumRayTriIntersectionTests[_bvhTraceTimeIndex];
-            RayTriResult r = rayTriangleIntersect(ray, _polyhedronMesh, face);
-            if (r != null) {
-                double distance = ray.getOrigin().subtract(r._point).magnitude();
-                if (distance < _closestDistance) {
-                    _closestDistance = distance;
-                    result._material = material;
-                    result._point = r._point;
-                    result._normal = r._normal;
-                    result._distance = distance;
-                    result._diffuseTextureColour = determineDiffuseTextureColour(r, result._material, _polyhedronMesh, face);
-                }
-            }
-        });
-
-        _bvhTraceTimes[_bvhTraceTimeIndex++] = System.currentTimeMillis() - startTimeMs;
-        if (_bvhTraceTimeIndex >= MAX_BVH_TRACE_TIMES) {
-            _bvhTraceTimeIndex = 0;
-
-            double traceTimeMs = calculateAverageTraceTime();
-            long numRayTriIntersections = calculateAverageNumRayTriIntersectionTests();
-            long rayTriPercent = numRayTriIntersections * 100 / _cachedNumFaces;
-
-            System.out.println("After " + MAX_BVH_TRACE_TIMES + " traces, the average:");
-            System.out.println("    BVH trace time is " + _decimalFormat.format(traceTimeMs) + "ms");
-            System.out.println("    Num of ray/tri tests is " + numRayTriIntersections + " out of " + _cachedNumFaces + " faces (" + rayTriPercent + "%).");
+    public boolean intersect(Ray ray, double tMax, IntersectResult result, TraceContext context) {
+        BoundingVolumeHierarchy.TraceResult trace = context._meshTrace;
+        trace.reset();
+        RenderMetrics.Counters metrics = context._metrics;
+        final boolean timed = metrics.shouldTimeMeshTrace();
+        final long startTimeNs = timed ? System.nanoTime() : 0;
+
+        boolean intersected = _bvh.traceRay(ray, tMax, trace, context._meshStack);
+        if (intersected) {
+            final int face = _bvh.getFace(trace._faceIndex);
+            result._intersected = true;
+            result._material = _bvh.getFaceMaterial(trace._faceIndex);
+            result._point.set(ray.getOrigin()).addScaledInPlace(ray.getDirection(), trace._distance);
+            _polyhedronMesh.calculateFaceNormal(face, result._normal);
+            result._distance = trace._distance;
+            determineDiffuseTextureColour(ray, result, _polyhedronMesh, face, context);
         }
 
-        result._intersected = _closestDistance < Double.MAX_VALUE;
-        return result;
-    }
-
-    private double calculateAverageTraceTime() {
-        long totalMs = 0;
-        for (int i = 0; i < MAX_BVH_TRACE_TIMES; ++i) {
-            totalMs += _bvhTraceTimes[i];
+        if (timed) {
+            metrics._meshTraceLatency.record(System.nanoTime() - startTimeNs);
         }
-        return (double)totalMs / (double)MAX_BVH_TRACE_TIMES;
+        metrics._numRayTriangleTests += trace._numRayTriIntersectionTests;
+        metrics._numBvhNodesVisited += trace._numNodesVisited;
+        return intersected;
     }
 
-    private long calculateAverageNumRayTriIntersectionTests() {
-        long total = 0;
-        for (int i = 0; i < MAX_BVH_TRACE_TIMES; ++i) {
-            total += _bvhNumRayTriIntersectionTests[i];
+    @Override
+    public boolean isOccluding(Ray ray, double maxDistance, TraceContext context) {
+        BoundingVolumeHierarchy.TraceResult trace = context._meshTrace;
+        trace.reset();
+        boolean occluded = _bvh.isOccluded(ray, maxDistance, trace, context._meshStack);
+        context._metrics._numRayTriangleTests += trace._numRayTriIntersectionTests;
+        context._metrics._numBvhNodesVisited += trace._numNodesVisited;
+        if (occluded) {
+            context._occluderPrimitive = trace._faceIndex;
         }
-        return total / MAX_BVH_TRACE_TIMES;
+        return occluded;
     }
 
-    private static class RayTriResult {
-        public Vector3 _point;
-        public Vector3 _normal;
-        public RayTriResult(Vector3 point, Vector3 normal) {
-            _point = point;
-            _normal = normal;
+    // The packet's frustum is in world coordinates, so it can only be traced through the mesh's BVH as a whole if the
+    // mesh isn't transformed.
+    @Override
+    public void occludePacket(ShadowPacket packet, TraceContext context) {
+        if (!isIdentityTransform()) {
+            super.occludePacket(packet, context);
+            return;
         }
+        BoundingVolumeHierarchy.TraceResult trace = context._meshTrace;
+        trace.reset();
+        _bvh.occludePacket(packet, trace, context._meshStack);
+        context._metrics._numRayTriangleTests += trace._numRayTriIntersectionTests;
+        context._metrics._numBvhNodesVisited += trace._numNodesVisited;
     }
 
-    // https://en.wikipedia.org/wiki/M%C3%B6ller%E2%80%93Trumbore_intersection_algorithm
-    private RayTriResult rayTriangleIntersect(Ray ray, PolyhedronMesh mesh, PolyhedronMesh.Face face) {
-        Vector3 v0 = mesh.getVertices()[face._faceVertices[0]._vertexIndex];
-        Vector3 v1 = mesh.getVertices()[face._faceVertices[1]._vertexIndex];
-        Vector3 v2 = mesh.getVertices()[face._faceVertices[2]._vertexIndex];
-        Vector3 edge0 = v1.subtract(v0);
-        Vector3 edge1 = v2.subtract(v0);
-
-        Vector3 h = ray.getDirection().crossProduct(edge1);
-        double dot = edge0.dotProduct(h);
-        if (Math.abs(dot) < 1e-3) {
-            return null; // line is parallel
-        }
-
-        double f = 1.0 / dot;
-
-        Vector3 s = ray.getOrigin().subtract(v0);
-        double u = f * s.dotProduct(h);
-        if (u < 0.0 || u > 1.0) {
-            return null;
-        }
-
-        Vector3 q = s.crossProduct(edge0);
-        double v = f * ray.getDirection().dotProduct(q);
-        if (v < 0.0 || u + v > 1.0) {
-            return null;
-        }
-
-        double t = f * edge1.dotProduct(q);
-        if (t > 1e-3) {
-            return new RayTriResult(
-                    ray.getOrigin().add(ray.getDirection().multiply(t)),
-                    edge0.crossProduct(edge1).makeNormalised());
+    // The primitive is the index of a face in the BVH.
+    @Override
+    public boolean isOccludingPrimitive(Ray ray, double maxDistance, int primitive, TraceContext context) {
+        if (primitive < 0) {
+            return isOccluding(ray, maxDistance, context);
         }
+        ++context._metrics._numRayTriangleTests;
+        return _bvh.isFaceOccluding(primitive, ray, maxDistance);
+    }
 
-        return null; // The line intersects, but not the line segment.
+    @Override
+    public Aabb getLocalBounds() {
+        return _bvh.getBounds();
     }
 
-    private Vector3 determineDiffuseTextureColour(RayTriResult r, Material material, PolyhedronMesh mesh, PolyhedronMesh.Face face) {
-        Vector3 v0 = mesh.getVertices()[face._faceVertices[0]._vertexIndex];
-        Vector3 v1 = mesh.getVertices()[face._faceVertices[1]._vertexIndex];
-        Vector3 v2 = mesh.getVertices()[face._faceVertices[2]._vertexIndex];
-        BarycentricCoords bc = BarycentricCoords.calculate(r._point, v0, v1, v2);
-        if (bc == null) {
-            return new Vector3();
+    private void determineDiffuseTextureColour(Ray ray, IntersectResult result, PolyhedronMesh mesh, int face,
+                                               TraceContext context) {
+        // Faces without tex coords (their index is -1) are untextured, like materials without a texture
+        if (result._material.getDiffuseTexture() == null || mesh.getTexCoordIndex(face, 0) < 0 ||
+            mesh.getTexCoordIndex(face, 1) < 0 || mesh.getTexCoordIndex(face, 2) < 0) {
+            result._diffuseTextureColour.set(1.0, 1.0, 1.0);
+            return;
+        }
+        Vector3 v0 = mesh.getVertex(mesh.getVertexIndex(face, 0), context._faceVertices[0]);
+        Vector3 v1 = mesh.getVertex(mesh.getVertexIndex(face, 1), context._faceVertices[1]);
+        Vector3 v2 = mesh.getVertex(mesh.getVertexIndex(face, 2), context._faceVertices[2]);
+        BarycentricCoords bc = context._barycentricCoords;
+        if (!BarycentricCoords.calculate(result._point, v0, v1, v2, bc)) {
+            result._diffuseTextureColour.set(0.0, 0.0, 0.0);
+            return;
         }
 
-        TexCoord tc0 = mesh.getTexCoords()[face._faceVertices[0]._texCoordIndex];
-        TexCoord tc1 = mesh.getTexCoords()[face._faceVertices[1]._texCoordIndex];
-        TexCoord tc2 = mesh.getTexCoords()[face._faceVertices[2]._texCoordIndex];
+        TexCoord tc0 = mesh.getTexCoord(mesh.getTexCoordIndex(face, 0), context._faceTexCoords[0]);
+        TexCoord tc1 = mesh.getTexCoord(mesh.getTexCoordIndex(face, 1), context._faceTexCoords[1]);
+        TexCoord tc2 = mesh.getTexCoord(mesh.getTexCoordIndex(face, 2), context._faceTexCoords[2]);
         double u = (tc0._u * bc._u) + (tc1._u * bc._v) + (tc2._u * bc._w);
         double v = (tc0._v * bc._u) + (tc1._v * bc._v) + (tc2._v * bc._w);
-        return _textureSampling.takeSample(u, 1.0 - v, material.getDiffuseTexture());
+        double footprint = calculateTexCoordFootprint(ray, result, calculateTexCoordsPerUnit(v0, v1, v2, tc0, tc1, tc2));
+        ++context._metrics._numTextureSamples;
+        _textureSampling.takeSample(u, 1.0 - v, footprint, result._material.getDiffuseTexture(), result._diffuseTextureColour);
+    }
+
+    // The square root of the ratio between the face's area in texture coordinates and its area in the mesh.
+    private static double calculateTexCoordsPerUnit(Vector3 v0, Vector3 v1, Vector3 v2, TexCoord tc0, TexCoord tc1, TexCoord tc2) {
+        double ax = v1._x - v0._x, ay = v1._y - v0._y, az = v1._z - v0._z;
+        double bx = v2._x - v0._x, by = v2._y - v0._y, bz = v2._z - v0._z;
+        double cx = ay * bz - az * by, cy = az * bx - ax * bz, cz = ax * by - ay * bx;
+        double area = Math.sqrt(cx * cx + cy * cy + cz * cz);
+        double texCoordArea = Math.abs((tc1._u - tc0._u) * (tc2._v - tc0._v) - (tc2._u - tc0._u) * (tc1._v - tc0._v));
+        return area > 0.0 ? Math.sqrt(texCoordArea / area) : 0.0;
     }
 }
@@ -2,25 +2,74 @@ public class Ray {
     public static final double DEFAULT_LINE_SEGMENT_LENGTH = 1000.0;
     private final Vector3 _origin;
     private final Vector3 _direction;
-    private final double _lineSegmentLength;
-    private final double _pixelX;
-    private final double _pixelY;
+    private final Vector3 _inverseDirection;
+    private double _lineSegmentLength;
+    private double _pixelX;
+    private double _pixelY;
+    private double _coneWidth;
+    private double _coneSpreadAngle;
+
+    // A ray to be filled in later by set(). Used as scratch space by the tracing hot path.
+    public Ray() {
+        _origin = new Vector3();
+        _direction = new Vector3();
+        _inverseDirection = new Vector3();
+    }
 
     public Ray(Vector3 origin, Vector3 direction, double pixelX, double pixelY) {
         this(origin, direction, DEFAULT_LINE_SEGMENT_LENGTH, pixelX, pixelY);
     }
 
     public Ray(Vector3 origin, Vector3 direction, double lineSegmentLength, double pixelX, double pixelY) {
-        _origin = origin;
-        _direction = direction.makeNormalised();
+        this();
+        set(origin, direction, lineSegmentLength, pixelX, pixelY);
+    }
+
+    // The ray keeps its own copies of origin and direction, so the arguments can be scratch vectors.
+    public Ray set(Vector3 origin, Vector3 direction, double pixelX, double pixelY) {
+        return set(origin, direction, DEFAULT_LINE_SEGMENT_LENGTH, pixelX, pixelY);
+    }
+
+    public Ray set(Vector3 origin, Vector3 direction, double lineSegmentLength, double pixelX, double pixelY) {
+        return set(origin._x, origin._y, origin._z, direction._x, direction._y, direction._z,
+                lineSegmentLength, pixelX, pixelY);
+    }
+
+    // Setting the ray resets its cone to a line. Call setCone() afterwards to give it a footprint.
+    public Ray set(double originX, double originY, double originZ,
+                   double directionX, double directionY, double directionZ,
+                   double lineSegmentLength, double pixelX, double pixelY) {
+        _origin.set(originX, originY, originZ);
+        _direction.set(directionX, directionY, directionZ).makeNormalised(_direction);
+        _inverseDirection.set(1.0 / _direction._x, 1.0 / _direction._y, 1.0 / _direction._z);
         _lineSegmentLength = lineSegmentLength;
         _pixelX = pixelX;
         _pixelY = pixelY;
+        _coneWidth = 0.0;
+        _coneSpreadAngle = 0.0;
+        return this;
+    }
+
+    // The ray stands for a cone that's width wide at its origin and widens by spreadAngle (in radians) per unit of
+    // distance. It's used to work out how much of a texture a sample covers.
+    // Ray Tracing Gems, chapter 20: https://link.springer.com/chapter/10.1007/978-1-4842-4427-2_20
+    public Ray setCone(double width, double spreadAngle) {
+        _coneWidth = width;
+        _coneSpreadAngle = spreadAngle;
+        return this;
     }
 
     public Vector3 getOrigin() { return _origin; }
     public Vector3 getDirection() { return _direction; }
+    public Vector3 getInverseDirection() { return _inverseDirection; } // For slab tests. Components may be infinite.
     public double getMagnitude() { return _lineSegmentLength; }
     public double getPixelX() { return _pixelX; }
     public double getPixelY() { return _pixelY; }
+    public double getConeWidth() { return _coneWidth; }
+    public double getConeSpreadAngle() { return _coneSpreadAngle; }
+
+    // The width of the ray's cone at the given distance along it.
+    public double getConeWidth(double distance) {
+        return _coneWidth + _coneSpreadAngle * distance;
+    }
 }
@@ -2,6 +2,7 @@ public class RayCaster {
     private final RenderingOptions _ro;
     private final double _vfovRadians;
     private final double _aspectRatio;
+    private final double _pixelSpreadAngle;
 
     public RayCaster(RenderingOptions ro) throws Exception {
         if (ro._outputImageWidth <= 0 || ro._outputImageHeight <= 0) {
@@ -10,19 +11,28 @@ public class RayCaster {
         _ro = ro;
         _aspectRatio = (double)ro._outputImageWidth / (double)ro._outputImageHeight;
         _vfovRadians = Math.tan(Math.toRadians(ro._cameraVfovDegrees) / 2.0);
+        _pixelSpreadAngle = 2.0 * _vfovRadians / (double)(ro._outputImageHeight - 1);
     }
 
     public Ray castRay(double x, double y, Camera camera) {
-        Vector3 direction = new Vector3(
-                (2.0 * x / (double)(_ro._outputImageWidth - 1) - 1.0) * _vfovRadians * _aspectRatio,
-                -(2.0 * y / (double)(_ro._outputImageHeight - 1) - 1.0) * _vfovRadians,
-                -1.0
-        );
+        return castRay(x, y, camera, new Ray());
+    }
 
-        Matrix4 rotY = Matrix4.rotateY(camera.getRotation()._y);
-        Matrix4 rotX = Matrix4.rotateX(camera.getRotation()._x);
-        direction = rotY.multiply(rotX).multiply(direction);
+    // Writes the ray to out rather than allocating a new one. The ray's cone starts at the camera and spreads by the
+    // angle one pixel subtends.
+    public Ray castRay(double x, double y, Camera camera, Ray out) {
+        double directionX = (2.0 * x / (double)(_ro._outputImageWidth - 1) - 1.0) * _vfovRadians * _aspectRatio;
+        double directionY = -(2.0 * y / (double)(_ro._outputImageHeight - 1) - 1.0) * _vfovRadians;
+        double directionZ = -1.0;
 
-        return new Ray(camera.getPosition(), direction, x, y);
+        double[][] m = camera.getRotationMatrix()._m;
+        Vector3 position = camera.getPosition();
+        return out.set(
+                position._x, position._y, position._z,
+                (m[0][0] * directionX) + (m[0][1] * directionY) + (m[0][2] * directionZ),
+                (m[1][0] * directionX) + (m[1][1] * directionY) + (m[1][2] * directionZ),
+                (m[2][0] * directionX) + (m[2][1] * directionY) + (m[2][2] * directionZ),
+                Ray.DEFAULT_LINE_SEGMENT_LENGTH, x, y)
+                .setCone(0.0, _pixelSpreadAngle);
     }
 }
@@ -1,144 +1,252 @@
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 
 public class RayTracer {
     private final RenderingOptions _ro;
     private final SceneGraph _sceneGraph;
-    private final BufferedImage _environmentMappingImage;
-    private final ArrayList<PositionalLight> _positionalLights;
+    private final Texture _environmentMappingImage;
+    private final LightGrid _lightGrid;
     private final TextureSampling _textureSampling;
-    private final ZBuffer _zBuffer;
+    private final ThreadLocal<TraceContext> _contexts;
+    private final RenderMetrics _metrics;
 
     public RayTracer(RenderingOptions ro) throws Exception {
         _ro = ro;
 
-        _environmentMappingImage = ImageIO.read(new File(ro._envMappingImageFilename));
         _textureSampling = new TextureSampling(ro._textureFiltering, ro._texCoordWrapping);
 
-        if (ro._antiAliasing == RenderingOptions.AntiAliasing.SUPER_SAMPLING) {
-            _zBuffer = new ZBuffer(
-                    ro._outputImageWidth, ro._outputImageHeight,
-                    SuperSamplingAA.getNumSamples(), SuperSamplingAA.createToSampleIndexFn());
-        }
-        else {
-            _zBuffer = new ZBuffer(
-                    ro._outputImageWidth, ro._outputImageHeight,
-                    NoAntiAliasing.getNumSamples(), NoAntiAliasing.createToSampleIndexFn());
+        try (AssetLoader assets = new AssetLoader(ro)) {
+            CompletableFuture<Texture> environmentMappingImage = assets.loadTexture(new File(ro._envMappingImageFilename));
+            _sceneGraph = new SceneGraph(ro, _textureSampling, assets);
+            _environmentMappingImage = AssetLoader.join(environmentMappingImage);
         }
 
-        _sceneGraph = new SceneGraph(_textureSampling);
+        _lightGrid = _sceneGraph.getLightGrid();
+
+        _metrics = new RenderMetrics();
+        _contexts = ThreadLocal.withInitial(() ->
+                new TraceContext(ro._numberRayBounces, _lightGrid.getNumLights(), _metrics.createCounters()));
+    }
 
-        _positionalLights = new ArrayList<>();
-        _positionalLights.add(new PositionalLight(new Vector3(1.00, 0.15, 0.15), new Vector3( 1.68,10.75, -9.04), 0.55, 5.63));
-        _positionalLights.add(new PositionalLight(new Vector3(0.15, 1.00, 0.15), new Vector3(-5.05, 8.60, -8.75), 0.65, 6.35));
-        _positionalLights.add(new PositionalLight(new Vector3(1.00, 1.00, 1.00), new Vector3(-6.25, 4.74, -0.84), 0.85, 4.55));
-        _positionalLights.add(new PositionalLight(new Vector3(1.00, 1.00, 1.00), new Vector3( 1.65, 2.15,  3.50), 1.0, 15.05));
+    // The thread's context, created the first time the thread traces a ray.
+    public TraceContext getContext() {
+        return _contexts.get();
     }
 
+    // Every thread's context counts into these. They should only be read or reset when no render is running.
+    public RenderMetrics getMetrics() { return _metrics; }
+
+    // Allocates the colour, so it's for tracing the odd ray outside of a render. Samplers use the overload below.
     public Vector3 traceRay(Ray ray, int depth) {
+        return traceRay(ray, depth, getContext(), new Vector3());
+    }
+
+    // Writes the colour seen along the primary ray to colour. Everything else needed is taken from the context, so this
+    // doesn't allocate.
+    public Vector3 traceRay(Ray ray, int depth, TraceContext context, Vector3 colour) {
+        final long startTimeNs = System.nanoTime();
+        ++context._metrics._numPrimaryRays;
+        trace(ray, depth, context, colour);
+        context._metrics._primaryRayLatency.record(System.nanoTime() - startTimeNs);
+        return colour;
+    }
+
+    // Traces count primary rays that are close together, such as the samples of neighbouring pixels, writing ray i's
+    // colour to colours[i]. The colours are the same as traceRay() gives. The closest hits are found first, then the
+    // shadow rays from them towards each light are traced in packets (see traceShadowPackets()), then each hit is shaded
+    // and its reflections and refractions are traced one ray at a time. The rays' latencies aren't recorded, since they
+    // aren't traced on their own.
+    public void traceRays(Ray[] rays, int count, int depth, TraceContext context, Vector3[] colours) {
         if (depth <= 0) {
-            return performEnvironmentMapping(ray);
+            for (int i = 0; i < count; ++i) {
+                traceRay(rays[i], depth, context, colours[i]);
+            }
+            return;
         }
-        final IntersectResult hit = _sceneGraph.intersect(ray, _zBuffer);
-        if (!hit._intersected) {
-            return performEnvironmentMapping(ray);
+        final TraceContext.Batch batch = context._batch;
+        long hitRays = 0;
+        for (int i = 0; i < count; ++i) {
+            ++context._metrics._numPrimaryRays;
+            if (_sceneGraph.intersect(rays[i], batch._hits[i], context)) {
+                hitRays |= 1L << i;
+            }
+        }
+        traceShadowPackets(rays, hitRays, context, batch);
+
+        final TraceContext.Frame frame = context.getFrame(depth);
+        for (int i = 0; i < count; ++i) {
+            if ((hitRays & (1L << i)) == 0) {
+                performEnvironmentMapping(rays[i], context, colours[i]);
+                continue;
+            }
+            frame._hit.set(batch._hits[i]);
+            shade(rays[i], depth, context, frame, i, colours[i]);
         }
-        final Vector3 reflection = traceReflection(ray, depth, hit);
-        final Vector3 refraction = traceRefraction(ray, depth, hit);
-        final Lighting lighting = traceLighting(ray, hit);
-        return hit._diffuseTextureColour
-                .multiply(lighting._ambient
-                    .add(lighting._diffuse)
-                    .add(lighting._specular)
-                    .add(reflection)
-                    .add(refraction)
-                );
     }
 
-    private Vector3 traceReflection(Ray ray, int depth, IntersectResult hit) {
-        final Vector3 direction = Vector3.reflect(ray.getDirection(), hit._normal).makeNormalised();
-        final double dot = direction.dotProduct(hit._normal);
-        final Vector3 step = hit._normal.multiply(1e-3);
-        final Ray reflected = new Ray(
-                dot < 0 ? hit._point.subtract(step) : hit._point.add(step),
-                direction, ray.getPixelX(), ray.getPixelY());
-        return traceRay(reflected, depth - 1).multiply(hit._material.getAlbedo(2));
+    // For each light, gathers the hits that traceLighting() would trace a shadow ray from towards it, and traces those
+    // shadow rays together as a ShadowPacket, leaving the results in the batch. A light with too few of them is left for
+    // traceLighting() to trace one at a time.
+    private void traceShadowPackets(Ray[] rays, long hitRays, TraceContext context, TraceContext.Batch batch) {
+        final long[] packetRays = batch._packetRays;
+        final long[] shadowedRays = batch._shadowedRays;
+        Arrays.fill(packetRays, 0L);
+        Arrays.fill(shadowedRays, 0L);
+        for (long bits = hitRays; bits != 0; bits &= bits - 1) {
+            final int i = Long.numberOfTrailingZeros(bits);
+            final Vector3 point = batch._hits[i]._point;
+            final int cell = _lightGrid.findCell(point);
+            final int first = cell < 0 ? 0 : _lightGrid.getCellStart(cell);
+            final int end = cell < 0 ? 0 : _lightGrid.getCellEnd(cell);
+            for (int j = first; j < end; ++j) {
+                final PositionalLight light = _lightGrid.getCellLight(j);
+                final double distanceToLightSquared = batch._lightDirection.set(light._position).subtractInPlace(point).dotProduct();
+                if (distanceToLightSquared <= light._radius * light._radius) {
+                    packetRays[_lightGrid.getCellLightIndex(j)] |= 1L << i;
+                }
+            }
+        }
+
+        final ShadowPacket packet = batch._shadowPacket;
+        for (int lightIndex = 0; lightIndex < packetRays.length; ++lightIndex) {
+            if (Long.bitCount(packetRays[lightIndex]) < ShadowPacket.MIN_RAYS) {
+                packetRays[lightIndex] = 0;
+                continue;
+            }
+            final PositionalLight light = _lightGrid.getLight(lightIndex);
+            packet.clear(light._position);
+            for (long bits = packetRays[lightIndex]; bits != 0; bits &= bits - 1) {
+                final int i = Long.numberOfTrailingZeros(bits);
+                final IntersectResult hit = batch._hits[i];
+                final Vector3 lightDirection = batch._lightDirection.set(light._position).subtractInPlace(hit._point);
+                final double distanceToLight = Math.sqrt(lightDirection.dotProduct());
+                lightDirection.normalise();
+                createSecondaryRay(rays[i], hit, lightDirection, batch._origin, packet.addRay(distanceToLight));
+            }
+            context._metrics._numShadowRays += packet.getNumRays();
+            _sceneGraph.occludePacket(packet, lightIndex, context);
+
+            int index = 0;
+            for (long bits = packetRays[lightIndex]; bits != 0; bits &= bits - 1) {
+                if (packet.isOccluded(index++)) {
+                    shadowedRays[lightIndex] |= Long.lowestOneBit(bits);
+                }
+            }
+        }
     }
 
-    private Vector3 traceRefraction(Ray ray, int depth, IntersectResult hit) {
-        final Vector3 direction = Vector3.refract(ray.getDirection(), hit._normal, hit._material.getIndexOfRefraction(), 1.0).makeNormalised();
+    private Vector3 trace(Ray ray, int depth, TraceContext context, Vector3 colour) {
+        if (depth <= 0) {
+            return performEnvironmentMapping(ray, context, colour);
+        }
+        final TraceContext.Frame frame = context.getFrame(depth);
+        if (!_sceneGraph.intersect(ray, frame._hit, context)) {
+            return performEnvironmentMapping(ray, context, colour);
+        }
+        return shade(ray, depth, context, frame, -1, colour);
+    }
+
+    // Works out the colour at the hit in the frame. batchIndex is the ray's index in the context's batch if its shadow
+    // rays may have been traced already by traceRays(), otherwise -1.
+    private Vector3 shade(Ray ray, int depth, TraceContext context, TraceContext.Frame frame, int batchIndex, Vector3 colour) {
+        final IntersectResult hit = frame._hit;
+        traceReflection(ray, depth, hit, context, frame);
+        traceRefraction(ray, depth, hit, context, frame);
+        traceLighting(ray, hit, context, frame, batchIndex);
+        return colour.set(frame._ambient)
+                .addInPlace(frame._diffuse)
+                .addInPlace(frame._specular)
+                .addInPlace(frame._reflection)
+                .addInPlace(frame._refraction)
+                .multiplyInPlace(hit._diffuseTextureColour);
+    }
+
+    // Moves the ray's origin off the surface, to the same side of it as the direction, so the surface can't hit itself.
+    // The new ray's cone starts as wide as the old one was at the hit. Any curvature of the surface is ignored.
+    // The new ray is written to out, and origin is scratch space.
+    private Ray createSecondaryRay(Ray ray, IntersectResult hit, Vector3 direction, Vector3 origin, Ray out) {
         final double dot = direction.dotProduct(hit._normal);
-        final Vector3 step = hit._normal.multiply(1e-3);
-        final Ray refracted = new Ray(
-                dot < 0 ? hit._point.subtract(step) : hit._point.add(step),
-                direction, ray.getPixelX(), ray.getPixelY());
-        return traceRay(refracted, depth - 1).multiply(hit._material.getAlbedo(3));
+        origin.set(hit._point).addScaledInPlace(hit._normal, dot < 0 ? -1e-3 : 1e-3);
+        return out.set(origin, direction, ray.getPixelX(), ray.getPixelY())
+                .setCone(ray.getConeWidth(hit._distance), ray.getConeSpreadAngle());
     }
 
-    private static class Lighting {
-        public Vector3 _ambient;
-        public Vector3 _diffuse;
-        public Vector3 _specular;
-        public Lighting(Vector3 ambient, Vector3 diffuse, Vector3 specular) {
-            _ambient = ambient;
-            _diffuse = diffuse;
-            _specular = specular;
-        }
+    private void traceReflection(Ray ray, int depth, IntersectResult hit, TraceContext context, TraceContext.Frame frame) {
+        final Vector3 direction = Vector3.reflect(ray.getDirection(), hit._normal, frame._direction);
+        direction.makeNormalised(direction);
+        final Ray reflected = createSecondaryRay(ray, hit, direction, frame._origin, frame._ray);
+        ++context._metrics._numReflectionRays;
+        trace(reflected, depth - 1, context, frame._reflection).multiplyInPlace(hit._material.getAlbedo(2));
     }
 
-    private Lighting traceLighting(Ray ray, IntersectResult hit) {
+    private void traceRefraction(Ray ray, int depth, IntersectResult hit, TraceContext context, TraceContext.Frame frame) {
+        final Vector3 direction = Vector3.refract(ray.getDirection(), hit._normal, hit._material.getIndexOfRefraction(), 1.0, frame._direction);
+        direction.makeNormalised(direction);
+        final Ray refracted = createSecondaryRay(ray, hit, direction, frame._origin, frame._ray);
+        ++context._metrics._numRefractionRays;
+        trace(refracted, depth - 1, context, frame._refraction).multiplyInPlace(hit._material.getAlbedo(3));
+    }
+
+    // Writes the ambient, diffuse and specular light to the frame. Only the lights listed in the light grid's cell for
+    // the point can reach it. A shadow ray that traceShadowPackets() has already traced isn't traced again.
+    private void traceLighting(Ray ray, IntersectResult hit, TraceContext context, TraceContext.Frame frame, int batchIndex) {
+        final long batchBit = batchIndex < 0 ? 0 : 1L << batchIndex;
         double diffusePower = 0.0;
         double specularPower = 0.0;
-        Vector3 diffuseColour = new Vector3(1.0, 1.0, 1.0);
-
-        for (PositionalLight light : _positionalLights) {
-            final Vector3 lightDirection = light._position.subtract(hit._point);
-            final double distanceToLight = Math.abs(lightDirection.magnitude());
-            if (distanceToLight > light._radius) {
+        final Vector3 diffuseColour = frame._diffuseColour.set(1.0, 1.0, 1.0);
+
+        final int cell = _lightGrid.findCell(hit._point);
+        final int first = cell < 0 ? 0 : _lightGrid.getCellStart(cell);
+        final int end = cell < 0 ? 0 : _lightGrid.getCellEnd(cell);
+        for (int i = first; i < end; ++i) {
+            final int lightIndex = _lightGrid.getCellLightIndex(i);
+            final PositionalLight light = _lightGrid.getCellLight(i);
+            final Vector3 lightDirection = frame._lightDirection.set(light._position).subtractInPlace(hit._point);
+            final double distanceToLightSquared = lightDirection.dotProduct();
+            if (distanceToLightSquared > light._radius * light._radius) {
                 continue;
             }
+            final double distanceToLight = Math.sqrt(distanceToLightSquared);
 
             lightDirection.normalise();
             final double attenuation = light.calculateAttenuation(distanceToLight);
 
             final double lightDot = lightDirection.dotProduct(hit._normal);
-            if (isShadowed(ray, lightDot, distanceToLight, lightDirection, hit)) {
+            final boolean shadowed = (context._batch._packetRays[lightIndex] & batchBit) != 0
+                    ? (context._batch._shadowedRays[lightIndex] & batchBit) != 0
+                    : isShadowed(ray, distanceToLight, lightIndex, lightDirection, hit, context, frame);
+            if (shadowed) {
                 continue;
             }
 
             // This light is not casting a shadow on this location. Calculate the diffuse light.
             diffusePower += light._power * Math.max(0.0, lightDot) * attenuation;
-            diffuseColour = diffuseColour.multiply(light._colour);
+            diffuseColour.multiplyInPlace(light._colour);
 
             // Calculate the specular light too
-            final Vector3 reflected = Vector3.reflect(lightDirection, hit._normal);
+            final Vector3 reflected = Vector3.reflect(lightDirection, hit._normal, frame._reflectedLight);
             final double specular = Math.max(0.0, reflected.dotProduct(ray.getDirection()));
             specularPower += Math.pow(specular, hit._material.getSpecularExponent()) * light._power * attenuation;
         }
 
-        return new Lighting(
-                hit._material.getDiffuseColour().multiply(_ro._ambientLight),
-                hit._material.getDiffuseColour().multiply(diffuseColour.multiply(diffusePower * hit._material.getAlbedo(0))),
-                hit._material.getSpecularColour().multiply(specularPower * hit._material.getAlbedo(1))
-        );
+        frame._ambient.set(hit._material.getDiffuseColour()).multiplyInPlace(_ro._ambientLight);
+        frame._diffuse.set(diffuseColour).multiplyInPlace(diffusePower * hit._material.getAlbedo(0))
+                .multiplyInPlace(hit._material.getDiffuseColour());
+        frame._specular.set(hit._material.getSpecularColour()).multiplyInPlace(specularPower * hit._material.getAlbedo(1));
     }
 
-    private boolean isShadowed(Ray ray, double lightDot, double lightDistance, Vector3 lightDirection, IntersectResult hit) {
-        Vector3 step = hit._normal.multiply(1e-3);
-        Ray shadowed = new Ray(
-                lightDot < 0 ? hit._point.subtract(step) : hit._point.add(step),
-                lightDirection, ray.getPixelX(), ray.getPixelY());
-        IntersectResult shadowHit = _sceneGraph.intersect(shadowed, _zBuffer);
-        if (shadowHit._intersected) {
-            return shadowHit._point.subtract(shadowed.getOrigin()).magnitude() < lightDistance;
-        }
-        return false;
+    private boolean isShadowed(Ray ray, double lightDistance, int lightIndex, Vector3 lightDirection, IntersectResult hit,
+                               TraceContext context, TraceContext.Frame frame) {
+        ++context._metrics._numShadowRays;
+        Ray shadowed = createSecondaryRay(ray, hit, lightDirection, frame._origin, frame._ray);
+        return _sceneGraph.isOccluded(shadowed, lightDistance, lightIndex, context);
     }
 
-    private Vector3 performEnvironmentMapping(Ray ray) {
-        TexCoord tc = TexCoordGenerator.spherical(ray.getDirection());
-        return _textureSampling.takeSample(tc._u, tc._v, _environmentMappingImage);
+    private Vector3 performEnvironmentMapping(Ray ray, TraceContext context, Vector3 colour) {
+        TexCoord tc = TexCoordGenerator.spherical(ray.getDirection(), context._texCoord);
+        double footprint = ray.getConeSpreadAngle() * TexCoordGenerator.SPHERICAL_TEX_COORDS_PER_RADIAN;
+        ++context._metrics._numTextureSamples;
+        return _textureSampling.takeSample(tc._u, tc._v, footprint, _environmentMappingImage, colour);
     }
 }
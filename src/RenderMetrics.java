@@ -0,0 +1,195 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Counts what a render does: the rays traced by type, the work done in the mesh BVHs, the texture samples taken, how
+// often the shadow rays' occluder caches were right, and how long primary rays and mesh traces take. Each render thread
+// counts into its own Counters, kept in its TraceContext, so counting is a plain increment with no sharing between
+// threads. The counters are only added up once the render has finished.
+//
+// A summary of each render is appended to a file as a line of JSON, so renders can be compared over time.
+public class RenderMetrics {
+    // Latencies are counted in power of two buckets. Bucket i holds latencies of at least 2^(i-1)ns and less than 2^i
+    // ns, so percentiles are only known to within a factor of two, but recording one is a handful of instructions.
+    public static class Histogram {
+        private static final int NUM_BUCKETS = 64;
+        private final long[] _buckets = new long[NUM_BUCKETS];
+        private long _count;
+        private long _totalNs;
+        private long _maxNs;
+
+        public void record(long ns) {
+            ++_buckets[NUM_BUCKETS - Long.numberOfLeadingZeros(Math.max(ns, 0))];
+            ++_count;
+            _totalNs += ns;
+            _maxNs = Math.max(_maxNs, ns);
+        }
+
+        public long getCount() { return _count; }
+        public long getMaxNs() { return _maxNs; }
+        public double getMeanNs() { return _count > 0 ? (double)_totalNs / (double)_count : 0.0; }
+
+        // The upper bound of the bucket that holds the given percentile (0 to 100).
+        public long getPercentileNs(double percentile) {
+            long rank = (long)Math.ceil(_count * percentile / 100.0);
+            long count = 0;
+            for (int i = 0; i < NUM_BUCKETS; ++i) {
+                count += _buckets[i];
+                if (count >= rank && count > 0) {
+                    return Math.min((1L << i) - 1, _maxNs); // For the last bucket this is Long.MAX_VALUE
+                }
+            }
+            return 0;
+        }
+
+        private void add(Histogram other) {
+            for (int i = 0; i < NUM_BUCKETS; ++i) {
+                _buckets[i] += other._buckets[i];
+            }
+            _count += other._count;
+            _totalNs += other._totalNs;
+            _maxNs = Math.max(_maxNs, other._maxNs);
+        }
+
+        private void reset() {
+            Arrays.fill(_buckets, 0);
+            _count = 0;
+            _totalNs = 0;
+            _maxNs = 0;
+        }
+
+        private String toJson() {
+            return "{\"count\":" + _count + ",\"mean\":" + Math.round(getMeanNs()) +
+                   ",\"p50\":" + getPercentileNs(50.0) + ",\"p90\":" + getPercentileNs(90.0) +
+                   ",\"p99\":" + getPercentileNs(99.0) + ",\"max\":" + _maxNs + "}";
+        }
+    }
+
+    // One thread's counts. Only the thread that owns them may write to them.
+    public static class Counters {
+        // Only one mesh trace in this many is timed. There are several per ray, and reading the clock twice costs about
+        // as much as a short trace.
+        public static final int MESH_TRACE_SAMPLE_INTERVAL = 64;
+        public long _numPrimaryRays;
+        public long _numShadowRays;
+        public long _numReflectionRays;
+        public long _numRefractionRays;
+        public long _numBvhNodesVisited;
+        public long _numRayTriangleTests;
+        public long _numTextureSamples;
+        public long _numOccluderCacheTests;
+        public long _numOccluderCacheHits;
+        public long _numShadowPackets;
+        public long _numPacketShadowRays; // The shadow rays that were traced as part of a packet
+        public final Histogram _primaryRayLatency = new Histogram();
+        public final Histogram _meshTraceLatency = new Histogram(); // Only a sample, see shouldTimeMeshTrace()
+        private int _meshTracesUntilSample = 1;
+        private Thread _owner; // Null for a sum
+
+        // Returns true for the mesh traces whose latency should be recorded.
+        public boolean shouldTimeMeshTrace() {
+            if (--_meshTracesUntilSample > 0) {
+                return false;
+            }
+            _meshTracesUntilSample = MESH_TRACE_SAMPLE_INTERVAL;
+            return true;
+        }
+
+        public long getNumRays() {
+            return _numPrimaryRays + _numShadowRays + _numReflectionRays + _numRefractionRays;
+        }
+
+        private void add(Counters other) {
+            _numPrimaryRays += other._numPrimaryRays;
+            _numShadowRays += other._numShadowRays;
+            _numReflectionRays += other._numReflectionRays;
+            _numRefractionRays += other._numRefractionRays;
+            _numBvhNodesVisited += other._numBvhNodesVisited;
+            _numRayTriangleTests += other._numRayTriangleTests;
+            _numTextureSamples += other._numTextureSamples;
+            _numOccluderCacheTests += other._numOccluderCacheTests;
+            _numOccluderCacheHits += other._numOccluderCacheHits;
+            _numShadowPackets += other._numShadowPackets;
+            _numPacketShadowRays += other._numPacketShadowRays;
+            _primaryRayLatency.add(other._primaryRayLatency);
+            _meshTraceLatency.add(other._meshTraceLatency);
+        }
+
+        private void reset() {
+            _numPrimaryRays = 0;
+            _numShadowRays = 0;
+            _numReflectionRays = 0;
+            _numRefractionRays = 0;
+            _numBvhNodesVisited = 0;
+            _numRayTriangleTests = 0;
+            _numTextureSamples = 0;
+            _numOccluderCacheTests = 0;
+            _numOccluderCacheHits = 0;
+            _numShadowPackets = 0;
+            _numPacketShadowRays = 0;
+            _primaryRayLatency.reset();
+            _meshTraceLatency.reset();
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Counters> _allCounters;
+
+    public RenderMetrics() {
+        _allCounters = new ConcurrentLinkedQueue<>();
+    }
+
+    // Creates the calling thread's counters.
+    public Counters createCounters() {
+        Counters counters = new Counters();
+        counters._owner = Thread.currentThread();
+        _allCounters.add(counters);
+        return counters;
+    }
+
+    // Neither of these may be called while a render is running. The render threads' counts are only visible once the
+    // render's tasks have been joined.
+    //
+    // Each render runs on new threads (see TileRenderer), which create new counters, so reset() also drops the counters
+    // of threads that have finished. Otherwise they'd pile up, one set per thread per render.
+    public void reset() {
+        _allCounters.removeIf(counters -> !counters._owner.isAlive());
+        for (Counters counters : _allCounters) {
+            counters.reset();
+        }
+    }
+
+    public Counters sum() {
+        Counters total = new Counters();
+        for (Counters counters : _allCounters) {
+            total.add(counters);
+        }
+        return total;
+    }
+
+    public static void appendSummary(File file, RenderingOptions ro, int numThreads, long elapsedNs, Counters total)
+            throws IOException {
+        String json = "{\"time\":\"" + Instant.now() + "\"" +
+                ",\"width\":" + ro._outputImageWidth + ",\"height\":" + ro._outputImageHeight +
+                ",\"antiAliasing\":\"" + ro._antiAliasing + "\",\"textureFiltering\":\"" + ro._textureFiltering + "\"" +
+                ",\"numberRayBounces\":" + ro._numberRayBounces + ",\"numThreads\":" + numThreads +
+                ",\"elapsedMs\":" + elapsedNs / 1000000 +
+                ",\"rays\":{\"primary\":" + total._numPrimaryRays + ",\"shadow\":" + total._numShadowRays +
+                ",\"reflection\":" + total._numReflectionRays + ",\"refraction\":" + total._numRefractionRays +
+                ",\"total\":" + total.getNumRays() + "}" +
+                ",\"bvhNodesVisited\":" + total._numBvhNodesVisited +
+                ",\"rayTriangleTests\":" + total._numRayTriangleTests +
+                ",\"textureSamples\":" + total._numTextureSamples +
+                ",\"occluderCache\":{\"tests\":" + total._numOccluderCacheTests + ",\"hits\":" + total._numOccluderCacheHits + "}" +
+                ",\"shadowPackets\":{\"packets\":" + total._numShadowPackets + ",\"rays\":" + total._numPacketShadowRays + "}" +
+                ",\"latencyNs\":{\"primaryRay\":" + total._primaryRayLatency.toJson() +
+                ",\"meshTrace\":" + total._meshTraceLatency.toJson() + "}}";
+        try (Writer writer = new FileWriter(file, true)) {
+            writer.write(json);
+            writer.write(System.lineSeparator());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormat;
+
+// Owns everything needed to produce an image from a set of RenderingOptions. It doesn't create any windows, so it's
+// used directly by the headless command line mode and is wrapped by MainWindow for the GUI.
+public class Renderer {
+    private final RenderingOptions _ro;
+    private final IAntiAliasing _sampler;
+    private final RayTracer _rayTracer;
+    private final TileRenderer _tileRenderer;
+
+    public Renderer(RenderingOptions ro) throws Exception {
+        _ro = ro;
+        _rayTracer = new RayTracer(ro);
+        _sampler = createSampler(ro, _rayTracer);
+
+        _tileRenderer = new TileRenderer(ro);
+    }
+
+    public static IAntiAliasing createSampler(RenderingOptions ro, RayTracer rayTracer) throws Exception {
+        Camera camera = new Camera(ro._cameraPosition, ro._cameraEulersDegrees);
+        RayCaster rayCaster = new RayCaster(ro);
+        switch (ro._antiAliasing) {
+            case SUPER_SAMPLING:
+                return new SuperSamplingAA(camera, rayCaster, rayTracer, ro._numberRayBounces);
+            case ADAPTIVE:
+                return new AdaptiveAA(camera, rayCaster, rayTracer, ro._numberRayBounces,
+                        ro._adaptiveAAMaxSamples, ro._adaptiveAAContrastThreshold);
+            default:
+                return new NoAntiAliasing(camera, rayCaster, rayTracer, ro._numberRayBounces);
+        }
+    }
+
+    public RenderingOptions getRenderingOptions() { return _ro; }
+
+    public BufferedImage createOutputImage() {
+        return new BufferedImage(_ro._outputImageWidth, _ro._outputImageHeight, BufferedImage.TYPE_INT_RGB);
+    }
+
+    public BufferedImage render() throws Exception {
+        return render(createOutputImage());
+    }
+
+    // Renders into an image made by createOutputImage(). The image can be painted while it's being rendered.
+    public BufferedImage render(BufferedImage outputImage) throws Exception {
+        RenderMetrics metrics = _rayTracer.getMetrics();
+        metrics.reset();
+        if (_sampler instanceof AdaptiveAA) {
+            ((AdaptiveAA)_sampler).resetStatistics();
+        }
+        _tileRenderer.render(_sampler, outputImage);
+        RenderMetrics.Counters total = metrics.sum();
+        long numRays = total.getNumRays();
+        if (numRays > 0) {
+            System.out.println("    Traced " + numRays + " rays, " + (_tileRenderer.getAllocatedBytes() / numRays) + " bytes allocated per ray.");
+            System.out.println("    " + total._numPrimaryRays + " primary, " + total._numShadowRays + " shadow, " +
+                    total._numReflectionRays + " reflection and " + total._numRefractionRays + " refraction rays.");
+        }
+        if (total._numOccluderCacheTests > 0) {
+            System.out.println("    The shadow occluder caches were right for " + total._numOccluderCacheHits + " of " +
+                    total._numOccluderCacheTests + " shadow rays (" + new DecimalFormat("0.0").format(
+                    100.0 * total._numOccluderCacheHits / total._numOccluderCacheTests) + "%).");
+        }
+        if (total._numShadowPackets > 0) {
+            System.out.println("    " + total._numPacketShadowRays + " shadow rays were traced in " +
+                    total._numShadowPackets + " packets.");
+        }
+        if (_sampler instanceof AdaptiveAA) {
+            System.out.println("    Adaptive anti-aliasing took " + new DecimalFormat("0.00").format(
+                    ((AdaptiveAA)_sampler).getAverageSamplesPerPixel()) + " samples per pixel on average.");
+        }
+        if (!_ro._metricsFilename.isEmpty()) {
+            RenderMetrics.appendSummary(new File(_ro._metricsFilename), _ro, _tileRenderer.getNumThreads(),
+                    _tileRenderer.getElapsedNs(), total);
+        }
+        if (_ro._speedupBaseline) {
+            _tileRenderer.reportSpeedup(_sampler, createOutputImage());
+        }
+        return outputImage;
+    }
+
+    public void saveToFile(BufferedImage bufferedImage) throws IOException {
+        File outputFile = new File(_ro._outputImageFilename);
+        if (!ImageIO.write(bufferedImage, _ro._outputImageFileFormat, outputFile)) {
+            throw new IOException("No image writer is available for the format " + _ro._outputImageFileFormat);
+        }
+    }
+}
@@ -1,3 +1,8 @@
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Properties;
+
 public class RenderingOptions {
     public RenderingOptions() {
         setProduction();
@@ -21,6 +26,19 @@ public class RenderingOptions {
         _texCoordWrapping = TextureSampling.TexCoordWrapping.REPEAT;
         _textureFiltering = TextureSampling.Filtering.BILINEAR;
         _ambientLight = new Vector3(0.095, 0.095, 0.095);
+        _numRenderThreads = 0; // 0 means one thread per available core
+        _numLoadThreads = 0; // Likewise
+        _bvhMaxLeafFaces = 4;
+        _sceneCacheEnabled = true;
+        _progressiveRendering = true;
+        _shadowRayPackets = false;
+        _speedupBaseline = false;
+        _vectorApi = false;
+        _singlePrecision = false;
+        _adaptiveAAMaxSamples = AdaptiveAA.getMaxNumSamples();
+        _adaptiveAAContrastThreshold = 0.1;
+        _metricsFilename = "RenderMetrics.jsonl";
+        _logLevel = LogFile.Level.WARNING;
     }
 
     public void setDevelopment() {
@@ -32,6 +50,85 @@ public class RenderingOptions {
         _textureFiltering = TextureSampling.Filtering.NEAREST;
     }
 
+    // Command line arguments are either "--development", "--properties=<file>" or "<option>=<value>". They're applied
+    // in order, so later arguments override earlier ones.
+    public void parseCommandLine(String[] args) throws Exception {
+        for (String arg : args) {
+            if (arg.equals("--development")) {
+                setDevelopment();
+            }
+            else if (arg.startsWith("--properties=")) {
+                loadProperties(arg.substring("--properties=".length()));
+            }
+            else {
+                int equals = arg.indexOf('=');
+                if (equals <= 0) {
+                    throw new Exception("Invalid command line argument: " + arg);
+                }
+                setOption(arg.substring(0, equals), arg.substring(equals + 1));
+            }
+        }
+    }
+
+    public void loadProperties(String fileName) throws Exception {
+        Properties properties = new Properties();
+        try (Reader reader = new FileReader(fileName)) {
+            properties.load(reader);
+        }
+        catch (IOException e) {
+            throw new Exception("Unable to read the properties file " + fileName, e);
+        }
+        for (String name : properties.stringPropertyNames()) {
+            setOption(name, properties.getProperty(name));
+        }
+    }
+
+    // Option names are the member names without the leading underscore. Vectors are written as "x,y,z".
+    public void setOption(String name, String value) throws Exception {
+        value = value.trim();
+        switch (name.trim()) {
+            case "outputImageWidth": _outputImageWidth = Integer.parseInt(value); break;
+            case "outputImageHeight": _outputImageHeight = Integer.parseInt(value); break;
+            case "outputImageFilename": _outputImageFilename = value; break;
+            case "outputImageFileFormat": _outputImageFileFormat = value; break;
+            case "envMappingImageFilename": _envMappingImageFilename = value; break;
+            case "cameraPosition": _cameraPosition = parseVector3(value); break;
+            case "cameraEulersDegrees": _cameraEulersDegrees = parseVector3(value); break;
+            case "cameraVfovDegrees": _cameraVfovDegrees = Double.parseDouble(value); break;
+            case "numberRayBounces": _numberRayBounces = Integer.parseInt(value); break;
+            case "antiAliasing": _antiAliasing = AntiAliasing.valueOf(value.toUpperCase()); break;
+            case "texCoordWrapping": _texCoordWrapping = TextureSampling.TexCoordWrapping.valueOf(value.toUpperCase()); break;
+            case "textureFiltering": _textureFiltering = TextureSampling.Filtering.valueOf(value.toUpperCase()); break;
+            case "ambientLight": _ambientLight = parseVector3(value); break;
+            case "numRenderThreads": _numRenderThreads = Integer.parseInt(value); break;
+            case "numLoadThreads": _numLoadThreads = Integer.parseInt(value); break;
+            case "bvhMaxLeafFaces": _bvhMaxLeafFaces = Integer.parseInt(value); break;
+            case "sceneCacheEnabled": _sceneCacheEnabled = Boolean.parseBoolean(value); break;
+            case "progressiveRendering": _progressiveRendering = Boolean.parseBoolean(value); break;
+            case "shadowRayPackets": _shadowRayPackets = Boolean.parseBoolean(value); break;
+            case "speedupBaseline": _speedupBaseline = Boolean.parseBoolean(value); break;
+            case "vectorApi": _vectorApi = Boolean.parseBoolean(value); break;
+            case "singlePrecision": _singlePrecision = Boolean.parseBoolean(value); break;
+            case "adaptiveAAMaxSamples": _adaptiveAAMaxSamples = Integer.parseInt(value); break;
+            case "adaptiveAAContrastThreshold": _adaptiveAAContrastThreshold = Double.parseDouble(value); break;
+            case "metricsFilename": _metricsFilename = value; break;
+            case "logLevel": _logLevel = LogFile.Level.valueOf(value.toUpperCase()); break;
+            default: throw new Exception("Unknown rendering option: " + name);
+        }
+    }
+
+    private static Vector3 parseVector3(String value) throws Exception {
+        String[] words = value.split(",");
+        if (words.length != 3) {
+            throw new Exception("Expected a vector in the form x,y,z but found: " + value);
+        }
+        return new Vector3(
+                Double.parseDouble(words[0].trim()),
+                Double.parseDouble(words[1].trim()),
+                Double.parseDouble(words[2].trim())
+        );
+    }
+
     public int _outputImageWidth;
     public int _outputImageHeight;
     public String _outputImageFilename;
@@ -44,9 +141,22 @@ public class RenderingOptions {
     public double _cameraVfovDegrees;
 
     public int _numberRayBounces;
-    public enum AntiAliasing { NONE, SUPER_SAMPLING }
+    public enum AntiAliasing { NONE, SUPER_SAMPLING, ADAPTIVE }
     public AntiAliasing _antiAliasing;
     public TextureSampling.TexCoordWrapping _texCoordWrapping;
     public TextureSampling.Filtering _textureFiltering;
     public Vector3 _ambientLight;
+    public int _numRenderThreads;
+    public int _numLoadThreads; // See AssetLoader
+    public int _bvhMaxLeafFaces;
+    public boolean _sceneCacheEnabled; // See SceneCache
+    public boolean _progressiveRendering; // See TileRenderer
+    public boolean _shadowRayPackets; // Trace neighbouring pixels' shadow rays towards each light together. See ShadowPacket
+    public boolean _speedupBaseline; // Render again on one thread after each render, to measure the speedup
+    public boolean _vectorApi; // Test BVH leaves' triangles 4 at a time, if the Vector API is there. See ITriangleKernel
+    public boolean _singlePrecision; // Keep the BVHs' bounds and triangles as floats. See LeafTriangles
+    public int _adaptiveAAMaxSamples; // Between 2 and 16. Rounded down to a whole batch of samples, see AdaptiveAA
+    public double _adaptiveAAContrastThreshold; // The largest difference in a colour channel that isn't refined
+    public String _metricsFilename; // Each render's RenderMetrics are appended to this. Empty for none
+    public LogFile.Level _logLevel; // The least severe messages written to Log.txt
 }
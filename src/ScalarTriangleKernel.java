@@ -0,0 +1,122 @@
+// Tests the triangles one at a time, with the same arithmetic as PolyhedronMesh.intersectFace(), or the same in float
+// arithmetic for single precision triangles.
+// https://en.wikipedia.org/wiki/M%C3%B6ller%E2%80%93Trumbore_intersection_algorithm
+public class ScalarTriangleKernel implements ITriangleKernel {
+    @Override
+    public String getName() { return "scalar"; }
+
+    @Override
+    public int intersect(LeafTriangles triangles, int offset, int count, Vector3 origin, Vector3 direction, double closest,
+                         double[] distance) {
+        int hitSlot = -1;
+        for (int slot = offset; slot < offset + count; ++slot) {
+            double t = intersectTriangle(triangles, slot, origin, direction);
+            if (t > 0.0 && t < closest) {
+                closest = t;
+                hitSlot = slot;
+            }
+        }
+        distance[0] = closest;
+        return hitSlot;
+    }
+
+    @Override
+    public int findOccluder(LeafTriangles triangles, int offset, int count, Vector3 origin, Vector3 direction, double tMax) {
+        for (int slot = offset; slot < offset + count; ++slot) {
+            double t = intersectTriangle(triangles, slot, origin, direction);
+            if (t > 0.0 && t < tMax) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // Returns the distance along the ray to the intersection, or a negative value if there isn't one.
+    private static double intersectTriangle(LeafTriangles triangles, int slot, Vector3 origin, Vector3 direction) {
+        final int s = triangles._stride;
+        final double[] c = triangles.getComponents();
+        if (c == null) {
+            final float[] f = triangles.getComponentsFloat();
+            return intersectTriangle(
+                    f[LeafTriangles.V0X * s + slot], f[LeafTriangles.V0Y * s + slot], f[LeafTriangles.V0Z * s + slot],
+                    f[LeafTriangles.V1X * s + slot], f[LeafTriangles.V1Y * s + slot], f[LeafTriangles.V1Z * s + slot],
+                    f[LeafTriangles.V2X * s + slot], f[LeafTriangles.V2Y * s + slot], f[LeafTriangles.V2Z * s + slot],
+                    (float)origin._x, (float)origin._y, (float)origin._z,
+                    (float)direction._x, (float)direction._y, (float)direction._z);
+        }
+        return intersectTriangle(
+                c[LeafTriangles.V0X * s + slot], c[LeafTriangles.V0Y * s + slot], c[LeafTriangles.V0Z * s + slot],
+                c[LeafTriangles.E0X * s + slot], c[LeafTriangles.E0Y * s + slot], c[LeafTriangles.E0Z * s + slot],
+                c[LeafTriangles.E1X * s + slot], c[LeafTriangles.E1Y * s + slot], c[LeafTriangles.E1Z * s + slot],
+                origin, direction);
+    }
+
+    private static double intersectTriangle(double v0x, double v0y, double v0z,
+                                            double e0x, double e0y, double e0z,
+                                            double e1x, double e1y, double e1z,
+                                            Vector3 origin, Vector3 direction) {
+        double hx = direction._y * e1z - direction._z * e1y;
+        double hy = direction._z * e1x - direction._x * e1z;
+        double hz = direction._x * e1y - direction._y * e1x;
+        double dot = e0x * hx + e0y * hy + e0z * hz;
+        if (Math.abs(dot) < 1e-3) {
+            return -1.0; // line is parallel
+        }
+
+        double f = 1.0 / dot;
+
+        double sx = origin._x - v0x, sy = origin._y - v0y, sz = origin._z - v0z;
+        double u = f * (sx * hx + sy * hy + sz * hz);
+        if (u < 0.0 || u > 1.0) {
+            return -1.0;
+        }
+
+        double qx = sy * e0z - sz * e0y;
+        double qy = sz * e0x - sx * e0z;
+        double qz = sx * e0y - sy * e0x;
+        double v = f * (direction._x * qx + direction._y * qy + direction._z * qz);
+        if (v < 0.0 || u + v > 1.0) {
+            return -1.0;
+        }
+
+        double t = f * (e1x * qx + e1y * qy + e1z * qz);
+        return t > 1e-3 ? t : -1.0;
+    }
+
+    // The same test in float arithmetic, for single precision triangles. The edges are computed here from the
+    // vertices, so a triangle's edges are exactly the same as its neighbours' where they share them.
+    private static double intersectTriangle(float v0x, float v0y, float v0z,
+                                            float v1x, float v1y, float v1z,
+                                            float v2x, float v2y, float v2z,
+                                            float ox, float oy, float oz, float dx, float dy, float dz) {
+        final float e0x = v1x - v0x, e0y = v1y - v0y, e0z = v1z - v0z;
+        final float e1x = v2x - v0x, e1y = v2y - v0y, e1z = v2z - v0z;
+
+        float hx = dy * e1z - dz * e1y;
+        float hy = dz * e1x - dx * e1z;
+        float hz = dx * e1y - dy * e1x;
+        float dot = e0x * hx + e0y * hy + e0z * hz;
+        if (Math.abs(dot) < 1e-3f) {
+            return -1.0; // line is parallel
+        }
+
+        float f = 1.0f / dot;
+
+        float sx = ox - v0x, sy = oy - v0y, sz = oz - v0z;
+        float u = f * (sx * hx + sy * hy + sz * hz);
+        if (u < 0.0f || u > 1.0f) {
+            return -1.0;
+        }
+
+        float qx = sy * e0z - sz * e0y;
+        float qy = sz * e0x - sx * e0z;
+        float qz = sx * e0y - sy * e0x;
+        float v = f * (qx * dx + qy * dy + qz * dz);
+        if (v < 0.0f || u + v > 1.0f) {
+            return -1.0;
+        }
+
+        float t = f * (e1x * qx + e1y * qy + e1z * qz);
+        return t > 1e-3f ? t : -1.0;
+    }
+}
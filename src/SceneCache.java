@@ -0,0 +1,433 @@
+import java.io.*;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.function.Consumer;
+
+// A binary copy of everything that's loaded from an OBJ file and its MTL file: the materials, the meshes and the
+// meshes' bounding volume hierarchies once they've been built. Loading it means reading numbers straight out of a
+// memory mapped file, rather than parsing text and building the hierarchies again.
+//
+// The cache is kept next to the OBJ file. It's keyed by SHA-256 hashes of the OBJ and MTL files' contents, and by the
+// options the hierarchies were built with, so when any of those change the cache is ignored and written again. Textures
+// aren't part of it: only their file names are kept, and they're loaded from those files as usual.
+//
+// All numbers are big endian, as written by DataOutputStream. Strings are a length (-1 for null) followed by UTF-8.
+// Every length is checked against what's left of the file before anything is allocated for it, so a truncated or
+// corrupt cache is just ignored, like one that's out of date.
+public class SceneCache {
+    private static final int MAGIC = 0x52545343; // "RTSC"
+    private static final int FORMAT_VERSION = 3;
+    private static final int HASH_LENGTH = 32;
+    private static final int MIN_RECORD_BYTES = Integer.BYTES; // Materials, meshes and pieces all start with a string
+    private final File _objFile;
+    private final File _cacheFile;
+    private final int _bvhMaxLeafFaces;
+    private Material[] _materials;
+    private PolyhedronMesh[] _meshes;
+    private BoundingVolumeHierarchy[] _bvhs;
+
+    public SceneCache(File objFile, int bvhMaxLeafFaces) {
+        _objFile = objFile;
+        _cacheFile = new File(objFile.getPath() + ".cache");
+        _bvhMaxLeafFaces = bvhMaxLeafFaces;
+    }
+
+    public File getFile() { return _cacheFile; }
+
+    // Only valid after load() has returned true.
+    public Material[] getMaterials() { return _materials; }
+    public PolyhedronMesh[] getMeshes() { return _meshes; }
+    public BoundingVolumeHierarchy[] getBoundingVolumeHierarchies() { return _bvhs; }
+
+    // Returns false if there's no cache, it was made from different files or options, or it can't be read. The materials'
+    // textures are loaded by assets in the background. Call assets.awaitTextures() before using them.
+    public boolean load(AssetLoader assets) throws IOException {
+        if (!_cacheFile.isFile()) {
+            return false;
+        }
+        MappedByteBuffer buffer = null;
+        try (FileChannel channel = FileChannel.open(_cacheFile.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION || buffer.getInt() != _bvhMaxLeafFaces) {
+                return false;
+            }
+            if (!Arrays.equals(readHash(buffer), hashFile(_objFile))) {
+                return false;
+            }
+            String mtlFileName = readString(buffer);
+            if (mtlFileName == null || !new File(mtlFileName).isFile() ||
+                !Arrays.equals(readHash(buffer), hashFile(new File(mtlFileName)))) {
+                return false;
+            }
+            readScene(buffer, assets);
+            return true;
+        }
+        // Anything a corrupt cache makes go wrong while it's being read. Running out of memory is included: the lengths
+        // are checked, but a cache that's too big for the heap is still better loaded from the OBJ file.
+        catch (RuntimeException | OutOfMemoryError e) {
+            System.out.println("Ignoring the unreadable scene cache " + _cacheFile.getPath() + ": " + e);
+            return false;
+        }
+        finally {
+            if (buffer != null) {
+                unmap(buffer);
+            }
+        }
+    }
+
+    // The cache is written to a temporary file first and then moved into place, so a render that's stopped part way
+    // through can't leave half a cache behind.
+    public void save(String mtlFileName, Material[] materials, PolyhedronMesh[] meshes, BoundingVolumeHierarchy[] bvhs)
+            throws IOException {
+        File tempFile = new File(_cacheFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(_bvhMaxLeafFaces);
+            out.write(hashFile(_objFile));
+            writeString(out, mtlFileName);
+            out.write(hashFile(new File(mtlFileName)));
+            writeScene(out, materials, meshes, bvhs);
+        }
+        Files.move(tempFile.toPath(), _cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static byte[] hashFile(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 isn't available", e);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            digest.update(buffer);
+            unmap(buffer);
+        }
+        return digest.digest();
+    }
+
+    // A mapping stays open until its buffer is garbage collected, and while it's open Windows won't let the file be
+    // replaced, which is what save() does when the cache is out of date. Everything is copied out of the buffers, so
+    // they're unmapped as soon as they've been read. There's no public way of doing that before Java 22's Arena, so
+    // it's done through sun.misc.Unsafe, and if that isn't there the mapping is left to the garbage collector.
+    // https://bugs.openjdk.org/browse/JDK-4724038
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Field field = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            java.lang.Object unsafe = field.get(null); // The scene has an Object class of its own
+            unsafe.getClass().getMethod("invokeCleaner", ByteBuffer.class).invoke(unsafe, buffer);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            // Left mapped
+        }
+    }
+
+    private static byte[] readHash(ByteBuffer buffer) {
+        byte[] hash = new byte[HASH_LENGTH];
+        buffer.get(hash);
+        return hash;
+    }
+
+    // The hierarchies refer to their faces by their numbers in the mesh, and to the faces' pieces by index.
+    private static void writeScene(DataOutputStream out, Material[] materials, PolyhedronMesh[] meshes,
+                                   BoundingVolumeHierarchy[] bvhs) throws IOException {
+        out.writeInt(materials.length);
+        for (Material material : materials) {
+            writeMaterial(out, material);
+        }
+
+        out.writeInt(meshes.length);
+        for (int i = 0; i < meshes.length; ++i) {
+            writeMesh(out, meshes[i]);
+
+            BoundingVolumeHierarchy bvh = bvhs[i];
+            out.writeInt(bvh.getNumFaces());
+            for (int face = 0; face < bvh.getNumFaces(); ++face) {
+                out.writeInt(bvh.getFace(face));
+                out.writeInt(bvh.getFacePiece(face));
+            }
+            writeDoubles(out, bvh.getNodeBounds());
+            writeInts(out, bvh.getNodeData());
+            writeInts(out, bvh.getPrimitiveIndices());
+            out.writeInt(bvh.getMaxDepth());
+        }
+    }
+
+    private void readScene(ByteBuffer buffer, AssetLoader assets) throws IOException {
+        _materials = new Material[readLength(buffer, MIN_RECORD_BYTES)];
+        for (int i = 0; i < _materials.length; ++i) {
+            _materials[i] = readMaterial(buffer, assets);
+        }
+
+        _meshes = new PolyhedronMesh[readLength(buffer, MIN_RECORD_BYTES)];
+        _bvhs = new BoundingVolumeHierarchy[_meshes.length];
+        for (int i = 0; i < _meshes.length; ++i) {
+            _meshes[i] = readMesh(buffer);
+            _meshes[i].resolveMaterials(_materials);
+
+            int[] faces = new int[readLength(buffer, 2 * Integer.BYTES)];
+            int[] facePieces = new int[faces.length];
+            for (int face = 0; face < faces.length; ++face) {
+                faces[face] = readIndex(buffer, _meshes[i].getNumFaces(), false);
+                facePieces[face] = readIndex(buffer, _meshes[i].getPieces().length, false);
+            }
+            _bvhs[i] = new BoundingVolumeHierarchy(_meshes[i]);
+            _bvhs[i].restore(faces, facePieces, readDoubles(buffer), readInts(buffer), readInts(buffer), buffer.getInt());
+        }
+    }
+
+    private static void writeMesh(DataOutputStream out, PolyhedronMesh mesh) throws IOException {
+        writeString(out, mesh.getName());
+        writeDoubles(out, mesh.getVertices());
+        writeDoubles(out, mesh.getNormals());
+        writeDoubles(out, mesh.getTexCoords());
+        writeInts(out, mesh.getFaces());
+
+        out.writeInt(mesh.getPieces().length);
+        for (PolyhedronMesh.Piece piece : mesh.getPieces()) {
+            writeString(out, piece.getMaterialName());
+            writeFaceNumbers(out, piece.getFlatShadedFaces());
+            Set<Integer> groupIds = piece.getGroupIds();
+            out.writeInt(groupIds.size());
+            for (Integer groupId : groupIds) {
+                out.writeInt(groupId);
+                writeFaceNumbers(out, piece.getSmoothShadedFaceGroup(groupId));
+            }
+        }
+    }
+
+    private static PolyhedronMesh readMesh(ByteBuffer buffer) {
+        PolyhedronMesh mesh = new PolyhedronMesh(readString(buffer));
+        mesh.setVertices(readDoubles(buffer, 3));
+        mesh.setNormals(readDoubles(buffer, 3));
+        mesh.setTexCoords(readDoubles(buffer, 2));
+        mesh.setFaces(readFaces(buffer, mesh));
+
+        PolyhedronMesh.Piece[] pieces = new PolyhedronMesh.Piece[readLength(buffer, MIN_RECORD_BYTES)];
+        for (int i = 0; i < pieces.length; ++i) {
+            pieces[i] = new PolyhedronMesh.Piece(readString(buffer));
+            pieces[i].setFlatShadedFaces(readFaceNumbers(buffer, mesh));
+            int numGroups = readLength(buffer, 2 * Integer.BYTES);
+            for (int group = 0; group < numGroups; ++group) {
+                int groupId = buffer.getInt();
+                pieces[i].addSmoothShadedFaceGroup(groupId, readFaceNumbers(buffer, mesh));
+            }
+        }
+        mesh.setPieces(pieces);
+        return mesh;
+    }
+
+    // The faces' indices are checked, as the renderer trusts them.
+    private static int[] readFaces(ByteBuffer buffer, PolyhedronMesh mesh) {
+        int[] faces = readInts(buffer);
+        if (faces.length % PolyhedronMesh.FACE_INTS != 0) {
+            throw new IllegalStateException("The faces are " + faces.length + " ints, which isn't whole triangles");
+        }
+        for (int i = 0; i < faces.length; i += 3) {
+            checkIndex(faces[i], mesh.getNumVertices(), false);
+            checkIndex(faces[i + 1], mesh.getNumTexCoords(), true);
+            checkIndex(faces[i + 2], mesh.getNumNormals(), true);
+        }
+        return faces;
+    }
+
+    // A piece's faces, or -1 if it has none.
+    private static void writeFaceNumbers(DataOutputStream out, int[] faces) throws IOException {
+        if (faces == null) {
+            out.writeInt(-1);
+            return;
+        }
+        writeInts(out, faces);
+    }
+
+    private static int[] readFaceNumbers(ByteBuffer buffer, PolyhedronMesh mesh) {
+        if (buffer.getInt(buffer.position()) == -1) {
+            buffer.getInt();
+            return null;
+        }
+        int[] faces = readInts(buffer);
+        for (int face : faces) {
+            checkIndex(face, mesh.getNumFaces(), false);
+        }
+        return faces;
+    }
+
+    private static void writeMaterial(DataOutputStream out, Material m) throws IOException {
+        writeString(out, m.getName());
+        out.writeInt(m.getIlluminationModel().ordinal());
+        writeVector3(out, m.getAmbientColour());
+        writeVector3(out, m.getDiffuseColour());
+        writeVector3(out, m.getSpecularColour());
+        writeVector3(out, m.getEmissiveColour());
+        out.writeDouble(m.getSpecularExponent());
+        out.writeDouble(m.getIndexOfRefraction());
+        out.writeDouble(m.getDissolved());
+        out.writeDouble(m.getTransparency());
+        writeVector3(out, m.getTransmissionFilterColour());
+        writeTexture(out, m.getAmbientTexture());
+        writeTexture(out, m.getDiffuseTexture());
+        writeTexture(out, m.getSpecularTexture());
+        writeTexture(out, m.getEmissiveTexture());
+        writeTexture(out, m.getSpecularExponentTexture());
+        writeTexture(out, m.getIndexOfRefractionTexture());
+        writeTexture(out, m.getDissolvedTexture());
+        writeTexture(out, m.getTransparencyTexture());
+        writeTexture(out, m.getTransmissionFilterTexture());
+        for (int i = 0; i < 4; ++i) {
+            out.writeDouble(m.getAlbedo(i));
+        }
+    }
+
+    private static Material readMaterial(ByteBuffer buffer, AssetLoader assets) throws IOException {
+        Material m = new Material(readString(buffer));
+        m.setIlluminationModel(Material.IlluminationModel.values()[buffer.getInt()]);
+        m.setAmbientColour(readVector3(buffer));
+        m.setDiffuseColour(readVector3(buffer));
+        m.setSpecularColour(readVector3(buffer));
+        m.setEmissiveColour(readVector3(buffer));
+        m.setSpecularExponent(buffer.getDouble());
+        m.setIndexOfRefraction(buffer.getDouble());
+        m.setDissolved(buffer.getDouble());
+        m.setTransparency(buffer.getDouble());
+        m.setTransmissionFilterColour(readVector3(buffer));
+        readTexture(buffer, assets, m::setAmbientTexture);
+        readTexture(buffer, assets, m::setDiffuseTexture);
+        readTexture(buffer, assets, m::setSpecularTexture);
+        readTexture(buffer, assets, m::setEmissiveTexture);
+        readTexture(buffer, assets, m::setSpecularExponentTexture);
+        readTexture(buffer, assets, m::setIndexOfRefractionTexture);
+        readTexture(buffer, assets, m::setDissolvedTexture);
+        readTexture(buffer, assets, m::setTransparencyTexture);
+        readTexture(buffer, assets, m::setTransmissionFilterTexture);
+        for (int i = 0; i < 4; ++i) {
+            m.setAlbedo(i, buffer.getDouble());
+        }
+        return m;
+    }
+
+    // Only the texture's file name is kept. Textures that weren't loaded from a file can't be cached.
+    private static void writeTexture(DataOutputStream out, Texture texture) throws IOException {
+        if (texture != null && texture.getFileName() == null) {
+            throw new IOException("A texture that wasn't loaded from a file can't be cached");
+        }
+        writeString(out, texture == null ? null : texture.getFileName());
+    }
+
+    private static void readTexture(ByteBuffer buffer, AssetLoader assets, Consumer<Texture> setter) throws IOException {
+        String fileName = readString(buffer);
+        if (fileName != null) {
+            assets.loadTexture(new File(fileName), setter);
+        }
+    }
+
+    private static void writeVector3(DataOutputStream out, Vector3 v) throws IOException {
+        out.writeBoolean(v != null);
+        if (v != null) {
+            out.writeDouble(v._x);
+            out.writeDouble(v._y);
+            out.writeDouble(v._z);
+        }
+    }
+
+    private static Vector3 readVector3(ByteBuffer buffer) {
+        if (buffer.get() == 0) {
+            return null;
+        }
+        return new Vector3(buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static double[] readDoubles(ByteBuffer buffer) {
+        return readDoubles(buffer, 1);
+    }
+
+    // Bulk reads through a view of the buffer, then moves the buffer past what was read. The number of values has to be
+    // a multiple of valuesPerElement, e.g. 3 for the x, y and z of each vertex.
+    private static double[] readDoubles(ByteBuffer buffer, int valuesPerElement) {
+        double[] values = new double[readLength(buffer, Double.BYTES)];
+        if (values.length % valuesPerElement != 0) {
+            throw new IllegalStateException(values.length + " values aren't a whole number of " + valuesPerElement + "s");
+        }
+        buffer.asDoubleBuffer().get(values);
+        buffer.position(buffer.position() + values.length * Double.BYTES);
+        return values;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer buffer) {
+        int[] values = new int[readLength(buffer, Integer.BYTES)];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + values.length * Integer.BYTES);
+        return values;
+    }
+
+    // Reads the length of an array and checks that the rest of the cache is big enough to hold that many elements of
+    // at least minBytesPerElement each.
+    private static int readLength(ByteBuffer buffer, int minBytesPerElement) {
+        return checkLength(buffer, buffer.getInt(), minBytesPerElement);
+    }
+
+    private static int checkLength(ByteBuffer buffer, int length, int minBytesPerElement) {
+        if (length < 0 || (long)length * minBytesPerElement > buffer.remaining()) {
+            throw new IllegalStateException("A length of " + length + " is more than the rest of the cache holds");
+        }
+        return length;
+    }
+
+    // An index into one of a mesh's arrays, or -1 if it's optional and was left out.
+    private static int readIndex(ByteBuffer buffer, int count, boolean optional) {
+        return checkIndex(buffer.getInt(), count, optional);
+    }
+
+    private static int checkIndex(int index, int count, boolean optional) {
+        if ((index < 0 || index >= count) && !(optional && index == -1)) {
+            throw new IllegalStateException("An index of " + index + " is outside of a mesh's " + count + " elements");
+        }
+        return index;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[checkLength(buffer, length, 1)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,12 +1,16 @@
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class SceneGraph {
     public static final double FAR_CLIP_PLANE = 1000.0;
-    private static final int MAX_BVH_DEPTH = 2;
+    private static final String OBJ_FILENAME = "OldWarehouse.obj";
+    private static final String LIGHTS_FILENAME = "OldWarehouse.lights";
     private final ArrayList<SphereObject> _spheres;
     private final ArrayList<BoxObject> _boxes;
     private final PlaneObject _plane;
@@ -14,9 +18,26 @@ public class SceneGraph {
     private BoundingVolumeHierarchy[] _bvhs;
     private PolyhedronMesh[] _meshes;
     private Material[] _materials;
+    private final int _bvhMaxLeafFaces;
+    private final boolean _sceneCacheEnabled;
+    private String _mtlFileName; // Null if the meshes came from the scene cache
+    private final ObjectHierarchy _objectHierarchy;
+    private final LightGrid _lightGrid;
 
-    public SceneGraph(TextureSampling textureSampling) throws IOException {
-        WellKnownMaterials materials = new WellKnownMaterials();
+    // The meshes are loaded, and the textures decoded, by assets while the rest of the scene is put together. Everything
+    // has been loaded by the time this returns.
+    public SceneGraph(RenderingOptions ro, TextureSampling textureSampling, AssetLoader assets) throws IOException {
+        _bvhMaxLeafFaces = ro._bvhMaxLeafFaces;
+        _sceneCacheEnabled = ro._sceneCacheEnabled;
+
+        File objFile = new File(OBJ_FILENAME);
+        SceneCache sceneCache = new SceneCache(objFile, _bvhMaxLeafFaces);
+        CompletableFuture<Void> meshesLoaded = assets.submit(() -> {
+            loadPolyhedronMeshes(objFile, sceneCache, assets);
+            return null;
+        });
+
+        WellKnownMaterials materials = new WellKnownMaterials(assets);
 
         _plane = new PlaneObject(
                 new Vector3(-6.7, 9.6, -5.5),
@@ -73,63 +94,155 @@ public class SceneGraph {
                 new Vector3(2.25, 2.25, 2.25),
                 new Material[] { materials.Crate }, textureSampling));
 
-        ObjFile objFile = loadPolyhedronMeshes();
-        buildBoundingVolumeHierarchies(objFile);
-        createPolyhedronObjects(objFile, textureSampling);
+        AssetLoader.join(meshesLoaded);
+        ITriangleKernel triangleKernel = ITriangleKernel.create(ro._vectorApi);
+        for (BoundingVolumeHierarchy bvh : _bvhs) {
+            bvh.setTriangleKernel(triangleKernel);
+        }
+        System.out.println("Using the " + triangleKernel.getName() + " ray/triangle tests");
+        createPolyhedronObjects(textureSampling);
+
+        _objectHierarchy = buildObjectHierarchy();
+        _lightGrid = loadLights(new File(LIGHTS_FILENAME));
+
+        assets.awaitTextures();
+        if (_sceneCacheEnabled && _mtlFileName != null) {
+            saveSceneCache(sceneCache);
+        }
+
+        // The scene cache is always written in double precision, so this has to wait until it's been saved
+        if (ro._singlePrecision) {
+            _objectHierarchy.useSinglePrecision();
+            for (BoundingVolumeHierarchy bvh : _bvhs) {
+                bvh.useSinglePrecision();
+            }
+            System.out.println("Converted the BVHs to single precision");
+        }
     }
 
-    private ObjFile loadPolyhedronMeshes() throws IOException {
-        ObjFile objFile = new ObjFile(new File("OldWarehouse.obj"));
-        MtlFile mtlFile = new MtlFile(new File(objFile.getMaterialFileName()));
+    private static LightGrid loadLights(File file) throws IOException {
+        LightsFile lightsFile = new LightsFile(file);
+        PositionalLight[] lights = new PositionalLight[lightsFile.getLightCount()];
+        for (int i = 0; i < lights.length; ++i) {
+            lights[i] = lightsFile.getLight(i);
+        }
+        System.out.println("Loaded " + lights.length + " lights from " + file.getPath());
+        return new LightGrid(lights);
+    }
 
+    public LightGrid getLightGrid() { return _lightGrid; }
+
+    private ObjectHierarchy buildObjectHierarchy() {
+        ArrayList<Object> objects = new ArrayList<>();
+        objects.addAll(_spheres);
+        objects.addAll(_boxes);
+        objects.addAll(Arrays.asList(_objects));
+        objects.add(_plane);
+
+        ObjectHierarchy objectHierarchy = new ObjectHierarchy(objects);
+        System.out.println("Built the object hierarchy. " + objectHierarchy.getNumObjects() + " objects, " +
+                objectHierarchy.getNumNodes() + " nodes.");
+        return objectHierarchy;
+    }
+
+    // The meshes, their materials and their BVHs come from the scene cache if it's up to date. Otherwise they're loaded
+    // from the OBJ and MTL files, and the cache is written for next time once the textures have been loaded too.
+    private void loadPolyhedronMeshes(File file, SceneCache sceneCache, AssetLoader assets) throws IOException {
+        if (_sceneCacheEnabled && sceneCache.load(assets)) {
+            _materials = sceneCache.getMaterials();
+            _meshes = sceneCache.getMeshes();
+            _bvhs = sceneCache.getBoundingVolumeHierarchies();
+            System.out.println("Loaded the meshes from " + sceneCache.getFile().getPath());
+            return;
+        }
+
+        MeshLoader meshLoader = new MeshLoader(assets);
+        ObjFile objFile = new ObjFile(file, meshLoader);
+        if (meshLoader._mtlFileLoaded == null) {
+            throw new IOException(file.getPath() + " doesn't have an mtllib statement");
+        }
+
+        MtlFile mtlFile = AssetLoader.join(meshLoader._mtlFileLoaded);
         _materials = new Material[mtlFile.getMaterialCount()];
         for (int i = 0; i < mtlFile.getMaterialCount(); ++i) {
             _materials[i] = mtlFile.getMaterial(i);
         }
 
+        // The BVHs only refer to their faces' pieces, so the materials can be resolved while they're being built
         _meshes = new PolyhedronMesh[objFile.getMeshCount()];
-        for (int i = 0; i < objFile.getMeshCount(); ++i) {
+        _bvhs = new BoundingVolumeHierarchy[_meshes.length];
+        for (int i = 0; i < _meshes.length; ++i) {
             _meshes[i] = objFile.getMesh(i);
             _meshes[i].resolveMaterials(_materials);
         }
+        for (int i = 0; i < _meshes.length; ++i) {
+            _bvhs[i] = AssetLoader.join(meshLoader._bvhsBuilt.get(_meshes[i]));
+        }
+        _mtlFileName = objFile.getMaterialFileName();
+    }
 
-        return objFile;
+    // Starts loading the MTL file as soon as the OBJ file names it, and building each mesh's BVH as soon as the mesh has
+    // been parsed, each in a task of its own, so they overlap with parsing the rest of the OBJ file.
+    private class MeshLoader implements ObjFile.Listener {
+        private final AssetLoader _assets;
+        private final ConcurrentHashMap<PolyhedronMesh, CompletableFuture<BoundingVolumeHierarchy>> _bvhsBuilt;
+        private volatile CompletableFuture<MtlFile> _mtlFileLoaded;
+
+        MeshLoader(AssetLoader assets) {
+            _assets = assets;
+            _bvhsBuilt = new ConcurrentHashMap<>();
+            _mtlFileLoaded = null;
+        }
+
+        @Override
+        public void materialFileFound(String fileName) {
+            _mtlFileLoaded = _assets.submit(() -> new MtlFile(new File(fileName), _assets));
+        }
+
+        @Override
+        public void meshParsed(PolyhedronMesh mesh) {
+            _bvhsBuilt.put(mesh, _assets.submit(() -> buildBoundingVolumeHierarchy(mesh)));
+        }
     }
 
-    private void buildBoundingVolumeHierarchies(ObjFile objFile) {
-        _bvhs = new BoundingVolumeHierarchy[objFile.getMeshCount()];
-        for (int i = 0; i < objFile.getMeshCount(); ++i) {
-            _bvhs[i] = buildBoundingVolumeHierarchy(_meshes[i]);
+    // The materials' texture file names are written to the cache, so it mustn't be saved until they've been loaded.
+    private void saveSceneCache(SceneCache sceneCache) {
+        try {
+            sceneCache.save(_mtlFileName, _materials, _meshes, _bvhs);
+            System.out.println("Wrote " + sceneCache.getFile().getPath());
+        }
+        catch (IOException e) {
+            System.out.println("Unable to write the scene cache " + sceneCache.getFile().getPath() + ": " + e.getMessage());
         }
     }
 
     private BoundingVolumeHierarchy buildBoundingVolumeHierarchy(PolyhedronMesh polyhedronMesh) {
         BoundingVolumeHierarchy bvh = new BoundingVolumeHierarchy(polyhedronMesh);
-        bvh.build(MAX_BVH_DEPTH);
 
         for (int piece = 0; piece < polyhedronMesh.getPieces().length; ++piece) {
             PolyhedronMesh.Piece p = polyhedronMesh.getPieces()[piece];
-            LogFile.Instance.write("Inserting flat faces for piece " + piece);
-            bvh.insertFaces(p.getFlatShadedFaces(), p.getMaterial());
+            final int pieceIndex = piece;
+            LogFile.Instance.debug(() -> "Inserting flat faces for piece " + pieceIndex);
+            bvh.insertFaces(p.getFlatShadedFaces(), piece);
 
             Set<Integer> smoothShadedFaceGroups = polyhedronMesh.getPieces()[piece].getGroupIds();
             for (Integer groupId : smoothShadedFaceGroups) {
-                LogFile.Instance.write("Inserting smooth faces for piece " + piece + ", group id " + groupId);
-                bvh.insertFaces(p.getSmoothShadedFaceGroup(groupId), p.getMaterial());
+                LogFile.Instance.debug(() -> "Inserting smooth faces for piece " + pieceIndex + ", group id " + groupId);
+                bvh.insertFaces(p.getSmoothShadedFaceGroup(groupId), piece);
             }
         }
 
-        bvh.printDebugInformation();
-        LogFile.Instance.close();
-        //System.exit(0); // temp
+        bvh.build(_bvhMaxLeafFaces);
+        LogFile.Instance.info(() -> "Built a BVH over " + bvh.getNumFaces() + " faces. " + bvh.getNumNodes() + " nodes, " +
+                "a maximum depth of " + bvh.getMaxDepth());
         return bvh;
     }
 
-    private void createPolyhedronObjects(ObjFile objFile, TextureSampling textureSampling) {
-        _objects = new PolyhedronObject[objFile.getMeshCount()];
+    private void createPolyhedronObjects(TextureSampling textureSampling) {
+        _objects = new PolyhedronObject[_meshes.length];
         long numFaces = 0;
-        for (int i = 0; i < objFile.getMeshCount(); ++i) {
-            PolyhedronMesh mesh = objFile.getMesh(i);
+        for (int i = 0; i < _meshes.length; ++i) {
+            PolyhedronMesh mesh = _meshes[i];
             _objects[i] = new PolyhedronObject(
                     new Vector3(), // The origin
                     new Vector3(), // Not rotated
@@ -140,44 +253,75 @@ public class SceneGraph {
         System.out.println("Loaded " + _meshes.length + " meshes. " + numFaces + " faces total.");
     }
 
-    public IntersectResult intersect(Ray ray, ZBuffer zBuffer) {
-        IntersectResult result = null;
-        final double x = ray.getPixelX();
-        final double y = ray.getPixelY();
-
-        for (SphereObject sphere : _spheres) {
-            Ray lc = sphere.toLocalCoords(ray);
-            IntersectResult r = sphere.intersect(lc);
-            if (r._intersected && zBuffer.testAndUpdate(x, y, r._distance)) {
-                result = sphere.toWorldCoords(r);
-            }
+    public void printBoundingVolumeHierarchies(PrintWriter out) {
+        out.println("Object hierarchy:");
+        _objectHierarchy.printDebugInformation(out);
+        for (int i = 0; i < _bvhs.length; ++i) {
+            out.println();
+            out.println("Mesh " + i + ":");
+            _bvhs[i].printDebugInformation(out);
         }
+    }
 
-        for (BoxObject box : _boxes) {
-            Ray lc = box.toLocalCoords(ray);
-            IntersectResult r = box.intersect(lc);
-            if (r._intersected && zBuffer.testAndUpdate(x, y, r._distance)) {
-                result = box.toWorldCoords(r);
-            }
-        }
+    // Finds the closest hit along the ray and writes it to result. Nothing beyond the far clip plane is hit.
+    public boolean intersect(Ray ray, IntersectResult result, TraceContext context) {
+        return _objectHierarchy.intersect(ray, Math.min(ray.getMagnitude(), FAR_CLIP_PLANE), result, context);
+    }
+
+    // An any-hit query for shadow rays. Returns true if anything is closer than maxDistance along the ray.
+    public boolean isOccluded(Ray ray, double maxDistance, TraceContext context) {
+        return _objectHierarchy.isOccluded(ray, maxDistance, context);
+    }
 
-        for (PolyhedronObject object : _objects) {
-            Ray lc = object.toLocalCoords(ray);
-            IntersectResult r = object.intersect(lc);
-            if (r._intersected && zBuffer.testAndUpdate(x, y, r._distance)) {
-                result = object.toWorldCoords(r);
+    // As isOccluded(), but first tests whatever blocked the last shadow ray towards the same light on this thread, and
+    // remembers what blocks this one. Usually the neighbouring points shaded before this one were blocked by the same
+    // thing, in which case the hierarchy isn't traversed at all.
+    public boolean isOccluded(Ray ray, double maxDistance, int lightIndex, TraceContext context) {
+        final TraceContext.OccluderCache cache = context._occluderCache;
+        final int cachedObject = cache._objects[lightIndex];
+        if (cachedObject >= 0) {
+            ++context._metrics._numOccluderCacheTests;
+            if (_objectHierarchy.isOccludedBy(cachedObject, cache._primitives[lightIndex], ray, maxDistance, context)) {
+                ++context._metrics._numOccluderCacheHits;
+                return true;
             }
         }
-
-        Ray lc = _plane.toLocalCoords(ray);
-        IntersectResult r = _plane.intersect(lc);
-        if (r._intersected && zBuffer.testAndUpdate(x, y, r._distance)) {
-            result = _plane.toWorldCoords(r);
+        final int object = _objectHierarchy.findOccluder(ray, maxDistance, context);
+        if (object < 0) {
+            return false; // Whatever was cached may well block the next point again, so it's kept
         }
+        cache._objects[lightIndex] = object;
+        cache._primitives[lightIndex] = context._occluderPrimitive;
+        return true;
+    }
 
-        if (result == null || zBuffer.getDepthValue(x, y) >= FAR_CLIP_PLANE) {
-            return new IntersectResult();
+    // Marks each of the packet's shadow rays towards the light at lightIndex that's blocked as occluded. Each ray is first
+    // tested against whatever blocked the last shadow ray towards the light, as isOccluded() does. The rest are traced
+    // through the hierarchies as a packet, unless they're too few or too spread out for that to pay (see
+    // ShadowPacket.buildFrustum()), in which case they're traced one at a time instead.
+    public void occludePacket(ShadowPacket packet, int lightIndex, TraceContext context) {
+        if (!packet.buildFrustum()) {
+            for (int i = 0; i < packet.getNumRays(); ++i) {
+                if (isOccluded(packet.getRay(i), packet.getMaxDistance(i), lightIndex, context)) {
+                    packet.setOccluded(i);
+                }
+            }
+            return;
+        }
+        final TraceContext.OccluderCache cache = context._occluderCache;
+        final int cachedObject = cache._objects[lightIndex];
+        if (cachedObject >= 0) {
+            for (int i = 0; i < packet.getNumRays(); ++i) {
+                ++context._metrics._numOccluderCacheTests;
+                if (_objectHierarchy.isOccludedBy(cachedObject, cache._primitives[lightIndex], packet.getRay(i),
+                                                  packet.getMaxDistance(i), context)) {
+                    ++context._metrics._numOccluderCacheHits;
+                    packet.setOccluded(i);
+                }
+            }
         }
-        return result;
+        ++context._metrics._numShadowPackets;
+        context._metrics._numPacketShadowRays += Long.bitCount(packet.getUnoccludedRays());
+        _objectHierarchy.occludePacket(packet, context);
     }
 }
@@ -0,0 +1,167 @@
+// Shadow rays from neighbouring points towards the same light, traced through the scene's hierarchies together. The
+// rays all end at (or within a surface offset of) the light, so they fit in a narrow frustum with its apex there, and a
+// node whose box is outside the frustum, or outside the box around the rays, can't be reached by any of them. That's
+// tested once per node for the whole packet instead of once per ray. At the leaves each ray that's still unoccluded is
+// tested on its own.
+//
+// A packet whose rays spread too far apart for the frustum to cull much, or that has too few rays to be worth it, isn't
+// traced as a packet at all (see buildFrustum()), and its rays are traced one at a time instead.
+//
+// Each ray i is the segment from its origin to getMaxDistance(i) along it. Live rays are kept as a bitmask.
+public class ShadowPacket {
+    public static final int MAX_RAYS = 64;
+    public static final int MIN_RAYS = 4;
+    private static final double MAX_SPREAD = 1.0; // The widest the frustum can be across each side, as a tangent
+    private static final double TOLERANCE = 1e-6; // Room for rounding in the tests below, in scene units
+    private final Ray[] _rays;
+    private final double[] _maxDistances;
+    private int _numRays;
+    private long _unoccludedRays;
+    private double _apexX, _apexY, _apexZ;
+    private double _minX, _minY, _minZ, _maxX, _maxY, _maxZ; // The box around the rays
+    private final double[] _planes; // 4 planes through the apex, each a normal and the least a reachable point can give
+
+    public ShadowPacket() {
+        _rays = new Ray[MAX_RAYS];
+        for (int i = 0; i < MAX_RAYS; ++i) {
+            _rays[i] = new Ray();
+        }
+        _maxDistances = new double[MAX_RAYS];
+        _planes = new double[16];
+    }
+
+    // Starts a new packet of rays towards the light at lightPosition.
+    public void clear(Vector3 lightPosition) {
+        _numRays = 0;
+        _unoccludedRays = 0;
+        _apexX = lightPosition._x;
+        _apexY = lightPosition._y;
+        _apexZ = lightPosition._z;
+    }
+
+    // Returns the next ray, for the caller to set. It's only tested up to maxDistance along its direction.
+    public Ray addRay(double maxDistance) {
+        _maxDistances[_numRays] = maxDistance;
+        _unoccludedRays |= 1L << _numRays;
+        return _rays[_numRays++];
+    }
+
+    public int getNumRays() { return _numRays; }
+    public Ray getRay(int index) { return _rays[index]; }
+    public double getMaxDistance(int index) { return _maxDistances[index]; }
+
+    public long getUnoccludedRays() { return _unoccludedRays; }
+    public boolean isOccluded(int index) { return (_unoccludedRays & (1L << index)) == 0; }
+    public void setOccluded(int index) { _unoccludedRays &= ~(1L << index); }
+
+    // Works out the frustum and the box around the rays once they've all been added, and returns true if they're worth
+    // tracing as a packet.
+    //
+    // Ray i ends at e = origin + maxDistance * direction, so every point it reaches is e - u * direction for some u
+    // between 0 and maxDistance, i.e. within |e - apex| of the half line from the apex along -direction. The frustum's
+    // sides are the planes through the apex that bound those half lines, found by projecting them onto the face of a
+    // cube around the apex that they point at. Each plane is moved out by the largest |e - apex|.
+    public boolean buildFrustum() {
+        if (_numRays < MIN_RAYS) {
+            return false;
+        }
+        double sumX = 0.0, sumY = 0.0, sumZ = 0.0;
+        double margin = 0.0;
+        _minX = _minY = _minZ = Double.MAX_VALUE;
+        _maxX = _maxY = _maxZ = -Double.MAX_VALUE;
+        for (int i = 0; i < _numRays; ++i) {
+            final Vector3 origin = _rays[i].getOrigin();
+            final Vector3 direction = _rays[i].getDirection();
+            final double endX = origin._x + _maxDistances[i] * direction._x;
+            final double endY = origin._y + _maxDistances[i] * direction._y;
+            final double endZ = origin._z + _maxDistances[i] * direction._z;
+            _minX = Math.min(_minX, Math.min(origin._x, endX));
+            _minY = Math.min(_minY, Math.min(origin._y, endY));
+            _minZ = Math.min(_minZ, Math.min(origin._z, endZ));
+            _maxX = Math.max(_maxX, Math.max(origin._x, endX));
+            _maxY = Math.max(_maxY, Math.max(origin._y, endY));
+            _maxZ = Math.max(_maxZ, Math.max(origin._z, endZ));
+            final double dx = endX - _apexX, dy = endY - _apexY, dz = endZ - _apexZ;
+            margin = Math.max(margin, Math.sqrt(dx * dx + dy * dy + dz * dz));
+            sumX -= direction._x;
+            sumY -= direction._y;
+            sumZ -= direction._z;
+        }
+        _minX -= TOLERANCE; _minY -= TOLERANCE; _minZ -= TOLERANCE;
+        _maxX += TOLERANCE; _maxY += TOLERANCE; _maxZ += TOLERANCE;
+        margin += TOLERANCE;
+
+        // k is the axis the rays mostly run along from the apex, and a and b are the other two
+        final int k = Math.abs(sumX) >= Math.abs(sumY) && Math.abs(sumX) >= Math.abs(sumZ) ? 0 : Math.abs(sumY) >= Math.abs(sumZ) ? 1 : 2;
+        final int a = (k + 1) % 3, b = (k + 2) % 3;
+        final double sign = (k == 0 ? sumX : k == 1 ? sumY : sumZ) >= 0.0 ? 1.0 : -1.0;
+        double minU = Double.MAX_VALUE, maxU = -Double.MAX_VALUE, minV = Double.MAX_VALUE, maxV = -Double.MAX_VALUE;
+        for (int i = 0; i < _numRays; ++i) {
+            final Vector3 direction = _rays[i].getDirection();
+            final double dk = getComponent(direction, k);
+            if (-dk * sign <= 0.0) {
+                return false; // Some rays run the other way along k, so they don't fit in a frustum around it
+            }
+            final double u = getComponent(direction, a) / dk;
+            final double v = getComponent(direction, b) / dk;
+            minU = Math.min(minU, u); maxU = Math.max(maxU, u);
+            minV = Math.min(minV, v); maxV = Math.max(maxV, v);
+        }
+        if (maxU - minU > MAX_SPREAD || maxV - minV > MAX_SPREAD) {
+            return false;
+        }
+
+        // A point p is on the rays' side of the plane through the apex with normal n when n.(p - apex) >= 0. For the
+        // side where u >= minU, n is sign * (axis a - minU * axis k), and so on.
+        setPlane(0, a, k, sign, -sign * minU, margin);
+        setPlane(1, a, k, -sign, sign * maxU, margin);
+        setPlane(2, b, k, sign, -sign * minV, margin);
+        setPlane(3, b, k, -sign, sign * maxV, margin);
+        return true;
+    }
+
+    private static double getComponent(Vector3 v, int axis) {
+        return axis == 0 ? v._x : axis == 1 ? v._y : v._z;
+    }
+
+    private void setPlane(int plane, int axis, int k, double axisComponent, double kComponent, double margin) {
+        final int i = plane * 4;
+        _planes[i] = _planes[i + 1] = _planes[i + 2] = 0.0;
+        _planes[i + axis] = axisComponent;
+        _planes[i + k] = kComponent;
+        _planes[i + 3] = -margin * Math.sqrt(axisComponent * axisComponent + kComponent * kComponent);
+    }
+
+    // Returns false if none of the rays can reach the box stored as 6 consecutive values (min x/y/z, max x/y/z) within
+    // the array. True means some of them may.
+    public boolean mayReach(double[] bounds, int offset) {
+        return mayReach(bounds[offset], bounds[offset + 1], bounds[offset + 2],
+                        bounds[offset + 3], bounds[offset + 4], bounds[offset + 5]);
+    }
+
+    // The same for a box stored as floats.
+    public boolean mayReach(float[] bounds, int offset) {
+        return mayReach(bounds[offset], bounds[offset + 1], bounds[offset + 2],
+                        bounds[offset + 3], bounds[offset + 4], bounds[offset + 5]);
+    }
+
+    // The box is outside a plane if even its corner that's furthest along the plane's normal is behind it.
+    private boolean mayReach(double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+        if (minX > _maxX || maxX < _minX || minY > _maxY || maxY < _minY || minZ > _maxZ || maxZ < _minZ) {
+            return false;
+        }
+        minX -= _apexX; maxX -= _apexX;
+        minY -= _apexY; maxY -= _apexY;
+        minZ -= _apexZ; maxZ -= _apexZ;
+        final double[] planes = _planes;
+        for (int i = 0; i < 16; i += 4) {
+            final double nx = planes[i], ny = planes[i + 1], nz = planes[i + 2];
+            final double furthest = (nx >= 0.0 ? nx * maxX : nx * minX) + (ny >= 0.0 ? ny * maxY : ny * minY) +
+                                    (nz >= 0.0 ? nz * maxZ : nz * minZ);
+            if (furthest < planes[i + 3]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
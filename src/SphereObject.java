@@ -1,27 +1,47 @@
 public class SphereObject extends Object {
+    private final double _radius;
     private final double _radiusSquared;
 
     public SphereObject(Vector3 position, Vector3 rotation, double radius, Material[] materials, TextureSampling textureSampling) {
         super(position, rotation, new Vector3(radius, radius, radius), materials, textureSampling);
+        _radius = radius;
         _radiusSquared = radius * radius;
     }
 
     // https://en.wikipedia.org/wiki/Line%E2%80%93sphere_intersection
     @Override
-    public IntersectResult intersect(Ray rayLocalCoords) {
-        IntersectResult result = new IntersectResult();
-        if (determineIntersectionPoint(rayLocalCoords, result)) {
-            determineDiffuseTextureColour(result);
-            result._intersected = true;
-            result._material = getMaterials()[0];
+    public boolean intersect(Ray rayLocalCoords, double tMax, IntersectResult result, TraceContext context) {
+        if (!determineIntersectionPoint(rayLocalCoords, result) || result._distance >= tMax) {
+            return false;
         }
-        return result;
+        determineDiffuseTextureColour(rayLocalCoords, result, context);
+        result._intersected = true;
+        result._material = getMaterials()[0];
+        return true;
+    }
+
+    @Override
+    public boolean isOccluding(Ray rayLocalCoords, double maxDistance, TraceContext context) {
+        Vector3 origin = rayLocalCoords.getOrigin();
+        Vector3 direction = rayLocalCoords.getDirection();
+        double lineToSphereDot = -origin.dotProduct(direction);
+        double projectedDistance = origin.dotProduct() - (lineToSphereDot * lineToSphereDot);
+        if (projectedDistance > _radiusSquared) {
+            return false;
+        }
+        double lineToSphereDistance = lineToSphereDot - Math.sqrt(_radiusSquared - projectedDistance);
+        return lineToSphereDistance >= 0 && lineToSphereDistance < maxDistance;
+    }
+
+    @Override
+    public Aabb getLocalBounds() {
+        return new Aabb(getScale().negate(), new Vector3(getScale()));
     }
 
     private boolean determineIntersectionPoint(Ray rayLocalCoords, IntersectResult result) {
-        Vector3 lineToSphere = rayLocalCoords.getOrigin().negate();
-        double lineToSphereDot = lineToSphere.dotProduct(rayLocalCoords.getDirection());
-        double projectedDistance = lineToSphere.dotProduct() - (lineToSphereDot * lineToSphereDot);
+        Vector3 origin = rayLocalCoords.getOrigin();
+        double lineToSphereDot = -origin.dotProduct(rayLocalCoords.getDirection());
+        double projectedDistance = origin.dotProduct() - (lineToSphereDot * lineToSphereDot);
         if (projectedDistance > _radiusSquared) {
             return false;
         }
@@ -32,23 +52,26 @@ public class SphereObject extends Object {
             return false;
         }
 
-        result._point = rayLocalCoords.getOrigin().add(rayLocalCoords.getDirection().multiply(lineToSphereDistance));
-        result._normal = result._point.makeNormalised();
-        result._distance = rayLocalCoords.getOrigin().subtract(result._point).magnitude();
+        result._point.set(origin).addScaledInPlace(rayLocalCoords.getDirection(), lineToSphereDistance);
+        result._point.makeNormalised(result._normal);
+        double dx = origin._x - result._point._x;
+        double dy = origin._y - result._point._y;
+        double dz = origin._z - result._point._z;
+        result._distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
         return true;
     }
 
-    private void determineDiffuseTextureColour(IntersectResult result) {
-        if (getMaterials()[0].getDiffuseTexture() != null) {
-            result._diffuseTextureColour = sampleDiffuseTexture(result._normal, getMaterials()[0]);
+    private void determineDiffuseTextureColour(Ray rayLocalCoords, IntersectResult result, TraceContext context) {
+        Material material = getMaterials()[0];
+        if (material.getDiffuseTexture() != null) {
+            TexCoord tc = TexCoordGenerator.spherical(result._normal, context._texCoord);
+            double footprint = calculateTexCoordFootprint(rayLocalCoords, result,
+                    TexCoordGenerator.SPHERICAL_TEX_COORDS_PER_RADIAN / _radius);
+            ++context._metrics._numTextureSamples;
+            _textureSampling.takeSample(tc._u, tc._v, footprint, material.getDiffuseTexture(), result._diffuseTextureColour);
         }
         else {
-            result._diffuseTextureColour = new Vector3(1.0, 1.0, 1.0);
+            result._diffuseTextureColour.set(1.0, 1.0, 1.0);
         }
     }
-
-    private Vector3 sampleDiffuseTexture(Vector3 unitVector, Material material) {
-        TexCoord tc = TexCoordGenerator.spherical(unitVector);
-        return _textureSampling.takeSample(tc._u, tc._v, material.getDiffuseTexture());
-    }
 }
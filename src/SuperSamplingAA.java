@@ -1,5 +1,3 @@
-import java.util.function.BiFunction;
-
 public class SuperSamplingAA implements IAntiAliasing {
     private final Camera _camera;
     private final RayCaster _rayCaster;
@@ -22,29 +20,50 @@ public class SuperSamplingAA implements IAntiAliasing {
 
     public static int getNumSamples() { return 4; }
 
-    public static BiFunction<Double, Double, Integer> createToSampleIndexFn() {
-        return (x, y) -> {
-            int intX = (int)((double)x); // cast away the whole part
-            int intY = (int)((double)y);
-            double decimalPartX = x - intX;
-            double decimalPartY = y - intY;
-            if (decimalPartX < 0.5) {
-                return decimalPartY < 0.5 ? 0 : 1;
-            }
-            return decimalPartY < 0.5 ? 2 : 3;
-        };
-    }
-
     @Override
     public Vector3 takeSample(double imageX, double imageY) {
-        Vector3 combinedSample = new Vector3();
+        TraceContext context = _rayTracer.getContext();
+        Vector3 combinedSample = context._pixelColour.set(0.0, 0.0, 0.0);
         for (int row = 0; row < NUM_SUB_PIXEL_ROWS; ++row) {
             for (int col = 0; col < NUM_SUB_PIXEL_COLS; ++col) {
-                Ray rayWorldCoords = _rayCaster.castRay(imageX + _subPixelBiases[col], imageY + _subPixelBiases[row], _camera);
-                combinedSample = combinedSample.add(_rayTracer.traceRay(rayWorldCoords, _numRayBounces));
+                Ray rayWorldCoords = _rayCaster.castRay(imageX + _subPixelBiases[col], imageY + _subPixelBiases[row], _camera, context._primaryRay);
+                rayWorldCoords.setCone(0.0, rayWorldCoords.getConeSpreadAngle() / NUM_SUB_PIXEL_ROWS); // Each sample covers part of the pixel
+                combinedSample.addInPlace(_rayTracer.traceRay(rayWorldCoords, _numRayBounces, context, context._sampleColour));
             }
         }
         double sampleScale = 1.0 / (NUM_SUB_PIXEL_ROWS * NUM_SUB_PIXEL_COLS);
-        return combinedSample.multiply(sampleScale);
+        return combinedSample.multiplyInPlace(sampleScale);
+    }
+
+    // The sub-pixel rays of as many of the pixels as fit are traced together. They're combined in the same order as by
+    // takeSample(), so the result is the same.
+    @Override
+    public void takeSamples(int[] pixelX, int[] pixelY, int numPixels, Vector3[] samples) {
+        final int samplesPerPixel = NUM_SUB_PIXEL_ROWS * NUM_SUB_PIXEL_COLS;
+        final int pixelsPerBatch = ShadowPacket.MAX_RAYS / samplesPerPixel;
+        final double sampleScale = 1.0 / samplesPerPixel;
+        TraceContext context = _rayTracer.getContext();
+        Ray[] rays = context._batch._rays;
+        Vector3[] colours = context._batch._colours;
+        for (int first = 0; first < numPixels; first += pixelsPerBatch) {
+            final int count = Math.min(pixelsPerBatch, numPixels - first);
+            int numRays = 0;
+            for (int i = first; i < first + count; ++i) {
+                for (int row = 0; row < NUM_SUB_PIXEL_ROWS; ++row) {
+                    for (int col = 0; col < NUM_SUB_PIXEL_COLS; ++col) {
+                        Ray rayWorldCoords = _rayCaster.castRay(pixelX[i] + _subPixelBiases[col], pixelY[i] + _subPixelBiases[row], _camera, rays[numRays++]);
+                        rayWorldCoords.setCone(0.0, rayWorldCoords.getConeSpreadAngle() / NUM_SUB_PIXEL_ROWS);
+                    }
+                }
+            }
+            _rayTracer.traceRays(rays, numRays, _numRayBounces, context, colours);
+            for (int i = 0; i < count; ++i) {
+                Vector3 sample = samples[first + i].set(0.0, 0.0, 0.0);
+                for (int j = 0; j < samplesPerPixel; ++j) {
+                    sample.addInPlace(colours[i * samplesPerPixel + j]);
+                }
+                sample.multiplyInPlace(sampleScale);
+            }
+        }
     }
 }
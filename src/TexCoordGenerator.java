@@ -1,8 +1,15 @@
 public class TexCoordGenerator {
+    // u goes once around the sphere (2 pi radians) and v from pole to pole (pi radians). This is the geometric mean
+    // of how fast they change, for working out texture footprints.
+    public static final double SPHERICAL_TEX_COORDS_PER_RADIAN = 1.0 / (Math.PI * Math.sqrt(2.0));
+
     public static TexCoord spherical(Vector3 unitVector) {
-        return new TexCoord(
-                Math.atan2(unitVector._z, unitVector._x) / (2.0 * Math.PI) + 0.5,
-                Math.acos(unitVector._y) / Math.PI
-        );
+        return spherical(unitVector, new TexCoord(0.0, 0.0));
+    }
+
+    public static TexCoord spherical(Vector3 unitVector, TexCoord out) {
+        out._u = Math.atan2(unitVector._z, unitVector._x) / (2.0 * Math.PI) + 0.5;
+        out._v = Math.acos(unitVector._y) / Math.PI;
+        return out;
     }
 }
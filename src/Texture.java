@@ -0,0 +1,116 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+// An image that's been decoded once, when it's loaded, into a flat array of 0xRRGGBB texels. Reading a texel is then
+// just an array access, where BufferedImage.getRGB() goes through the image's ColorModel (and allocates) every time.
+//
+// The mip pyramid is only needed for TRILINEAR filtering, so it's only built when buildMipLevels() is called, which
+// AssetLoader does as it loads each texture for a TRILINEAR render. Each level is half the size of the one above it (rounded down, but never less than 1), down to a single texel, and
+// every level is a Texture of its own.
+// https://en.wikipedia.org/wiki/Mipmap
+public class Texture {
+    private final int _width;
+    private final int _height;
+    private final int[] _texels;
+    private final boolean _isPowerOfTwo;
+    private Texture[] _mipLevels; // Null until it's built. _mipLevels[0] is this texture
+    private final String _fileName;
+
+    public Texture(BufferedImage image) {
+        this(null, image.getWidth(), image.getHeight(), decode(image));
+    }
+
+    private Texture(String fileName, int width, int height, int[] texels) {
+        _fileName = fileName;
+        _width = width;
+        _height = height;
+        _texels = texels;
+        _isPowerOfTwo = Integer.bitCount(_width) == 1 && Integer.bitCount(_height) == 1;
+    }
+
+    public static Texture load(File file) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("The image format of " + file.getPath() + " isn't supported");
+        }
+        return new Texture(file.getPath(), image.getWidth(), image.getHeight(), decode(image));
+    }
+
+    private static int[] decode(BufferedImage image) {
+        int[] texels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+        for (int i = 0; i < texels.length; ++i) {
+            texels[i] &= 0x00ffffff;
+        }
+        return texels;
+    }
+
+    // Box filters each 2x2 block of texels into one. Along an odd sized edge the last row or column is dropped.
+    private Texture downsample() {
+        final int width = Math.max(1, _width / 2);
+        final int height = Math.max(1, _height / 2);
+        final int[] texels = new int[width * height];
+        for (int y = 0; y < height; ++y) {
+            final int top = Math.min(y * 2, _height - 1) * _width;
+            final int bottom = Math.min(y * 2 + 1, _height - 1) * _width;
+            for (int x = 0; x < width; ++x) {
+                final int left = Math.min(x * 2, _width - 1);
+                final int right = Math.min(x * 2 + 1, _width - 1);
+                texels[y * width + x] = average(
+                        _texels[top + left], _texels[top + right], _texels[bottom + left], _texels[bottom + right]);
+            }
+        }
+        return new Texture(_fileName, width, height, texels);
+    }
+
+    private static int average(int a, int b, int c, int d) {
+        int colour = 0;
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int sum = ((a >> shift) & 0xff) + ((b >> shift) & 0xff) + ((c >> shift) & 0xff) + ((d >> shift) & 0xff);
+            colour |= ((sum + 2) >> 2) << shift;
+        }
+        return colour;
+    }
+
+    // The file the texture was loaded from, or null if it was made from an image in memory.
+    public String getFileName() { return _fileName; }
+
+    public int getWidth() { return _width; }
+    public int getHeight() { return _height; }
+
+    // Power of two sized textures can be wrapped with a bit mask rather than the remainder operator.
+    public boolean isPowerOfTwo() { return _isPowerOfTwo; }
+
+    // The larger side halves with each level until it's 1, so there's one level per bit of it.
+    public int getNumMipLevels() { return 32 - Integer.numberOfLeadingZeros(Math.max(_width, _height)); }
+
+    // Level 0 is this texture. Levels beyond the smallest return the smallest.
+    public Texture getMipLevel(int level) {
+        if (level <= 0) {
+            return this;
+        }
+        if (_mipLevels == null) {
+            throw new IllegalStateException("The mip levels of " + _fileName + " haven't been built");
+        }
+        return _mipLevels[Math.min(level, _mipLevels.length - 1)];
+    }
+
+    // Call this before the texture is shared, e.g. on the thread that loads it, so that a render never has to wait
+    // for it. Calling it again does nothing.
+    public void buildMipLevels() {
+        if (_mipLevels == null) {
+            Texture[] mipLevels = new Texture[getNumMipLevels()];
+            mipLevels[0] = this;
+            for (int level = 1; level < mipLevels.length; ++level) {
+                mipLevels[level] = mipLevels[level - 1].downsample();
+            }
+            _mipLevels = mipLevels;
+        }
+    }
+
+    // x and y must already be within the texture.
+    public int getTexel(int x, int y) {
+        return _texels[y * _width + x];
+    }
+}
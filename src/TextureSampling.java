@@ -1,6 +1,5 @@
-import java.awt.image.BufferedImage;
-
 public class TextureSampling {
+    private static final double LOG_2 = Math.log(2.0);
     private final Filtering _filtering;
     private final TexCoordWrapping _texCoordWrapping;
     
@@ -9,74 +8,108 @@ public class TextureSampling {
         _texCoordWrapping = texCoordWrapping;
     }
 
-    public enum Filtering { NEAREST, BILINEAR }
+    public enum Filtering { NEAREST, BILINEAR, TRILINEAR }
     public enum TexCoordWrapping { CLAMP, REPEAT }
 
-    public Vector3 takeSample(double u, double v, BufferedImage bufferedImage) {
+    public Vector3 takeSample(double u, double v, Texture texture) {
+        return takeSample(u, v, texture, new Vector3());
+    }
+
+    // Writes the sample to out rather than allocating a new vector.
+    public Vector3 takeSample(double u, double v, Texture texture, Vector3 out) {
+        return takeSample(u, v, 0.0, texture, out);
+    }
+
+    // The footprint is how wide the area covered by the sample is, in texture coordinates. Only TRILINEAR filtering
+    // uses it, to choose which mip levels to read from.
+    public Vector3 takeSample(double u, double v, double footprint, Texture texture, Vector3 out) {
+        if (_filtering == Filtering.TRILINEAR) {
+            return applyTrilinearFiltering(u, v, footprint, texture, out);
+        }
         if (_filtering == Filtering.BILINEAR) {
-            return applyBilinearFiltering(u, v, bufferedImage);
+            return applyBilinearFiltering(u, v, texture, out);
         }
-        int x = (int)(u * (double)bufferedImage.getWidth());
-        int y = (int)(v * (double)bufferedImage.getHeight());
-        return getPixel(x, y, bufferedImage);
+        int x = (int)(u * (double)texture.getWidth());
+        int y = (int)(v * (double)texture.getHeight());
+        return Utility.ColourToVector3(getPixel(x, y, texture), out);
     }
 
-    private Vector3 getPixel(int x, int y, BufferedImage bufferedImage) {
-        Pair<Integer, Integer> xy = applyTexCoordWrapping(x, y, bufferedImage);
-        return Utility.ColourToVector3(bufferedImage.getRGB(xy.getFirst(), xy.getSecond()));
+    private int getPixel(int x, int y, Texture texture) {
+        if (texture.isPowerOfTwo() && _texCoordWrapping == TexCoordWrapping.REPEAT) {
+            return texture.getTexel(x & (texture.getWidth() - 1), y & (texture.getHeight() - 1));
+        }
+        return texture.getTexel(
+                applyTexCoordWrapping(x, texture.getWidth()),
+                applyTexCoordWrapping(y, texture.getHeight()));
+    }
+
+    private static double getChannel(int colour, int shift) {
+        return (double)((colour >> shift) & 0xff) / 255.0;
     }
 
     // https://www.scratchapixel.com/lessons/mathematics-physics-for-computer-graphics/interpolation/bilinear-filtering
     // https://handwiki.org/wiki/Bilinear_filtering
-    private Vector3 applyBilinearFiltering(double u, double v, BufferedImage bufferedImage) {
-        u = u * (double)bufferedImage.getWidth() - 0.5;
-        v = v * (double)bufferedImage.getHeight() - 0.5;
+    private Vector3 applyBilinearFiltering(double u, double v, Texture texture, Vector3 out) {
+        return addBilinearSample(u, v, texture, 1.0, out.set(0.0, 0.0, 0.0));
+    }
+
+    // The level of detail is log2 of the footprint in texels of the full size texture. Bilinear samples are taken from
+    // the two mip levels either side of it and blended by how close it is to each.
+    // https://en.wikipedia.org/wiki/Trilinear_filtering
+    private Vector3 applyTrilinearFiltering(double u, double v, double footprint, Texture texture, Vector3 out) {
+        double footprintTexels = footprint * Math.sqrt((double)texture.getWidth() * (double)texture.getHeight());
+        double levelOfDetail = footprintTexels > 1.0 ? Math.log(footprintTexels) / LOG_2 : 0.0;
+        int maxLevel = texture.getNumMipLevels() - 1;
+        if (!(levelOfDetail < maxLevel)) { // Also catches NaN
+            return applyBilinearFiltering(u, v, texture.getMipLevel(maxLevel), out);
+        }
+        int level = (int)levelOfDetail;
+        double ratio = levelOfDetail - level;
+        out.set(0.0, 0.0, 0.0);
+        addBilinearSample(u, v, texture.getMipLevel(level), 1.0 - ratio, out);
+        if (ratio > 0.0) {
+            addBilinearSample(u, v, texture.getMipLevel(level + 1), ratio, out);
+        }
+        return out;
+    }
+
+    // Adds the bilinearly filtered sample, scaled by weight, to out.
+    private Vector3 addBilinearSample(double u, double v, Texture texture, double weight, Vector3 out) {
+        u = u * (double)texture.getWidth() - 0.5;
+        v = v * (double)texture.getHeight() - 0.5;
         int x = (int)Math.floor(u);
         int y = (int)Math.floor(v);
         double ratioU = u - x;
         double ratioV = v - y;
-        double oppositeU = 1.0 - ratioU;
-        double oppositeV = 1.0 - ratioV;
-
-        Vector3 tl = getPixel(x, y, bufferedImage);
-        Vector3 tr = getPixel(x + 1, y, bufferedImage);
-        Vector3 bl = getPixel(x, y + 1, bufferedImage);
-        Vector3 br = getPixel(x + 1, y + 1, bufferedImage);
-
-        Vector3 topRow = tl.multiply(oppositeU).add(tr.multiply(ratioU));
-        Vector3 bottomRow = bl.multiply(oppositeU).add(br.multiply(ratioU));
 
-        topRow = topRow.multiply(oppositeV);
-        bottomRow = bottomRow.multiply(ratioV);
+        int tl = getPixel(x, y, texture);
+        int tr = getPixel(x + 1, y, texture);
+        int bl = getPixel(x, y + 1, texture);
+        int br = getPixel(x + 1, y + 1, texture);
 
-        return topRow.add(bottomRow);
+        out._x += filterChannel(tl, tr, bl, br, 16, ratioU, ratioV) * weight;
+        out._y += filterChannel(tl, tr, bl, br, 8, ratioU, ratioV) * weight;
+        out._z += filterChannel(tl, tr, bl, br, 0, ratioU, ratioV) * weight;
+        return out;
     }
 
-    private Pair<Integer, Integer> applyTexCoordWrapping(int x, int y, BufferedImage bufferedImage) {
-        return new Pair<>(
-                applyTexCoordWrapping(x, bufferedImage.getWidth()),
-                applyTexCoordWrapping(y, bufferedImage.getHeight()));
+    // Blends along u within the top and bottom rows, then between the two rows along v.
+    private static double filterChannel(int tl, int tr, int bl, int br, int shift, double ratioU, double ratioV) {
+        double oppositeU = 1.0 - ratioU;
+        double oppositeV = 1.0 - ratioV;
+        double topRow = getChannel(tl, shift) * oppositeU + getChannel(tr, shift) * ratioU;
+        double bottomRow = getChannel(bl, shift) * oppositeU + getChannel(br, shift) * ratioU;
+        return topRow * oppositeV + bottomRow * ratioV;
     }
 
     private int applyTexCoordWrapping(int a, int size) {
-        if (a < 0) {
-            switch (_texCoordWrapping) {
-                case CLAMP: a = 0; break;
-                case REPEAT:
-                default:
-                    while (a < 0) a += size;
-                    break;
-            }
+        if (a >= 0 && a < size) {
+            return a;
         }
-        else if (a >= size) {
-            switch (_texCoordWrapping) {
-                case CLAMP: a = size - 1; break;
-                case REPEAT:
-                default:
-                    while (a >= size) a -= size;
-                    break;
-            }
+        if (_texCoordWrapping == TexCoordWrapping.CLAMP) {
+            return a < 0 ? 0 : size - 1;
         }
-        return a;
+        a %= size;
+        return a < 0 ? a + size : a;
     }
 }
@@ -0,0 +1,313 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Splits the output image into square tiles and renders them on a work-stealing ForkJoinPool. Each tile is owned
+// by exactly one task, so every pixel of the image is only ever written by one thread.
+//
+// A progressive render goes over the tiles several times. The first pass traces one pixel in every 8x8 block and fills
+// the block with it, then each pass after that halves the blocks, until the last traces single pixels. A pass only
+// traces the pixels that the passes before it didn't, and its blocks never cover those pixels, so the image is being
+// refined in place and no pixel is traced twice. Someone watching the output image sees the whole frame early on.
+//
+// With shadow ray packets on, the sampler is given all of a pass's pixels in a tile at once, in square groups of
+// neighbours, so that it can trace each group's rays together (see IAntiAliasing.takeSamples()).
+public class TileRenderer {
+    public static final int TILE_SIZE = 32;
+    private static final int[] PROGRESSIVE_BLOCK_SIZES = { 8, 4, 2, 1 }; // Each must divide TILE_SIZE
+    private static final int PIXEL_GROUP_SIZE = 8; // The pixels in a tile are grouped into squares this many pixels across
+    private static final long PROGRESS_INTERVAL_MS = 3000;
+    private final int _numThreads;
+    private final boolean _progressive;
+    private final boolean _samplePixelGroups;
+    private final DecimalFormat _decimalFormat;
+    private final AtomicLong _completedPixels;
+    private final LongAdder _busyTimeNs;
+    private final LongAdder _allocatedBytes;
+    private final ThreadMXBean _threadMXBean;
+    private final ThreadLocal<TilePixels> _tilePixels;
+    private long _elapsedNs;
+
+    public TileRenderer(RenderingOptions ro) {
+        _numThreads = ro._numRenderThreads > 0 ? ro._numRenderThreads : Runtime.getRuntime().availableProcessors();
+        _progressive = ro._progressiveRendering;
+        _samplePixelGroups = ro._shadowRayPackets;
+        _decimalFormat = new DecimalFormat("0.00");
+        _completedPixels = new AtomicLong();
+        _busyTimeNs = new LongAdder();
+        _allocatedBytes = new LongAdder();
+        _threadMXBean = ManagementFactory.getThreadMXBean();
+        _tilePixels = ThreadLocal.withInitial(TilePixels::new);
+    }
+
+    public int getNumThreads() { return _numThreads; }
+
+    // How long the last render took.
+    public long getElapsedNs() { return _elapsedNs; }
+
+    // The number of bytes allocated by the render threads during the last render, or 0 if the JVM can't measure it.
+    public long getAllocatedBytes() { return _allocatedBytes.sum(); }
+
+    private static class Tile {
+        public final int _x, _y, _width, _height;
+        public Tile(int x, int y, int width, int height) {
+            _x = x; _y = y; _width = width; _height = height;
+        }
+    }
+
+    // The pixels of one tile that a pass traces, and their samples. Each render thread reuses its own.
+    private static class TilePixels {
+        public final int[] _x = new int[TILE_SIZE * TILE_SIZE];
+        public final int[] _y = new int[TILE_SIZE * TILE_SIZE];
+        public final Vector3[] _samples = new Vector3[TILE_SIZE * TILE_SIZE];
+        public int _numPixels;
+
+        public TilePixels() {
+            for (int i = 0; i < _samples.length; ++i) {
+                _samples[i] = new Vector3();
+            }
+        }
+    }
+
+    @SuppressWarnings("serial") // Tasks are never serialised
+    private class TileTask extends RecursiveAction {
+        private final IAntiAliasing _sampler;
+        private final ArrayList<Tile> _tiles;
+        private final int _first, _last;
+        private final int[] _pixels;
+        private final int _stride;
+        private final int _blockSize;
+        private final boolean _isFirstPass;
+
+        public TileTask(IAntiAliasing sampler, ArrayList<Tile> tiles, int first, int last, int[] pixels, int stride,
+                        int blockSize, boolean isFirstPass) {
+            _sampler = sampler;
+            _tiles = tiles;
+            _first = first;
+            _last = last;
+            _pixels = pixels;
+            _stride = stride;
+            _blockSize = blockSize;
+            _isFirstPass = isFirstPass;
+        }
+
+        @Override
+        protected void compute() {
+            if (_last - _first > 1) {
+                int middle = (_first + _last) >>> 1;
+                invokeAll(new TileTask(_sampler, _tiles, _first, middle, _pixels, _stride, _blockSize, _isFirstPass),
+                          new TileTask(_sampler, _tiles, middle, _last, _pixels, _stride, _blockSize, _isFirstPass));
+                return;
+            }
+            renderTile(_tiles.get(_first));
+        }
+
+        // Tiles start on multiples of TILE_SIZE, so the pixels at the corners of the blocks are at multiples of the
+        // block size. The ones at multiples of twice the block size were traced by the previous pass.
+        private void renderTile(Tile tile) {
+            long startTimeNs = getBusyTimeNs();
+            long startBytes = getAllocatedBytesOnThread();
+            if (_samplePixelGroups) {
+                renderPixelGroups(tile);
+            }
+            else {
+                renderPixels(tile);
+            }
+            _busyTimeNs.add(getBusyTimeNs() - startTimeNs);
+            _allocatedBytes.add(getAllocatedBytesOnThread() - startBytes);
+        }
+
+        private void renderPixels(Tile tile) {
+            final int previousBlockSize = _blockSize * 2;
+            for (int y = tile._y; y < tile._y + tile._height; y += _blockSize) {
+                final boolean isPreviousRow = y % previousBlockSize == 0;
+                int numPixels = 0;
+                for (int x = tile._x; x < tile._x + tile._width; x += _blockSize) {
+                    if (!_isFirstPass && isPreviousRow && x % previousBlockSize == 0) {
+                        continue;
+                    }
+                    setPixel(tile, x, y, Utility.Vector3ToColour(_sampler.takeSample(x, y)));
+                    ++numPixels;
+                }
+                _completedPixels.addAndGet(numPixels);
+            }
+        }
+
+        private void renderPixelGroups(Tile tile) {
+            TilePixels tilePixels = _tilePixels.get();
+            gatherPixels(tile, tilePixels);
+            _sampler.takeSamples(tilePixels._x, tilePixels._y, tilePixels._numPixels, tilePixels._samples);
+            for (int i = 0; i < tilePixels._numPixels; ++i) {
+                setPixel(tile, tilePixels._x[i], tilePixels._y[i], Utility.Vector3ToColour(tilePixels._samples[i]));
+            }
+            _completedPixels.addAndGet(tilePixels._numPixels);
+        }
+
+        // Lists the pixels this pass traces in the tile, a group of neighbours at a time. A group spans
+        // PIXEL_GROUP_SIZE of the pass's blocks in each direction.
+        private void gatherPixels(Tile tile, TilePixels tilePixels) {
+            final int previousBlockSize = _blockSize * 2;
+            final int groupSize = PIXEL_GROUP_SIZE * _blockSize;
+            tilePixels._numPixels = 0;
+            for (int groupY = tile._y; groupY < tile._y + tile._height; groupY += groupSize) {
+                for (int groupX = tile._x; groupX < tile._x + tile._width; groupX += groupSize) {
+                    final int bottom = Math.min(groupY + groupSize, tile._y + tile._height);
+                    final int right = Math.min(groupX + groupSize, tile._x + tile._width);
+                    for (int y = groupY; y < bottom; y += _blockSize) {
+                        final boolean isPreviousRow = y % previousBlockSize == 0;
+                        for (int x = groupX; x < right; x += _blockSize) {
+                            if (!_isFirstPass && isPreviousRow && x % previousBlockSize == 0) {
+                                continue;
+                            }
+                            tilePixels._x[tilePixels._numPixels] = x;
+                            tilePixels._y[tilePixels._numPixels] = y;
+                            ++tilePixels._numPixels;
+                        }
+                    }
+                }
+            }
+        }
+
+        private void setPixel(Tile tile, int x, int y, int colour) {
+            if (_blockSize == 1) {
+                _pixels[y * _stride + x] = colour;
+            }
+            else {
+                fillBlock(tile, x, y, colour);
+            }
+        }
+
+        private void fillBlock(Tile tile, int blockX, int blockY, int colour) {
+            final int right = Math.min(blockX + _blockSize, tile._x + tile._width);
+            final int bottom = Math.min(blockY + _blockSize, tile._y + tile._height);
+            for (int y = blockY; y < bottom; ++y) {
+                Arrays.fill(_pixels, y * _stride + blockX, y * _stride + right, colour);
+            }
+        }
+    }
+
+    // CPU time is used where the JVM supports it so that the utilisation isn't inflated when there are more threads than
+    // cores and the tiles are time-sliced.
+    private long getBusyTimeNs() {
+        if (_threadMXBean.isCurrentThreadCpuTimeSupported()) {
+            return _threadMXBean.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+
+    // HotSpot can report how much each thread has allocated, which is how we check that the tracing hot path doesn't
+    // allocate. Other JVMs may not, in which case nothing is reported.
+    private long getAllocatedBytesOnThread() {
+        if (_threadMXBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean)_threadMXBean;
+            if (threadMXBean.isThreadAllocatedMemorySupported() && threadMXBean.isThreadAllocatedMemoryEnabled()) {
+                return threadMXBean.getCurrentThreadAllocatedBytes();
+            }
+        }
+        return 0;
+    }
+
+    // Renders the whole image, writing straight into the output image's raster. The image must be TYPE_INT_RGB. It can be
+    // painted while it's being rendered, e.g. to show a progressive render as it's refined.
+    public void render(IAntiAliasing sampler, BufferedImage outputImage) throws Exception {
+        if (outputImage.getType() != BufferedImage.TYPE_INT_RGB) {
+            throw new Exception("The output image must be of type TYPE_INT_RGB");
+        }
+        final int w = outputImage.getWidth();
+        final int h = outputImage.getHeight();
+        final long totalPixels = (long)w * (long)h;
+        int[] pixels = ((DataBufferInt)outputImage.getRaster().getDataBuffer()).getData();
+
+        ArrayList<Tile> tiles = createTiles(w, h);
+        System.out.println("Starting render. " + tiles.size() + " tiles on " + _numThreads + " threads" +
+                (_progressive ? " in " + PROGRESSIVE_BLOCK_SIZES.length + " passes..." : "..."));
+        _busyTimeNs.reset();
+        _allocatedBytes.reset();
+        _elapsedNs = renderTiles(sampler, tiles, pixels, w, _numThreads);
+        reportCpuUtilisation(_elapsedNs);
+        System.out.println("    Allocated " + (_allocatedBytes.sum() / totalPixels) + " bytes per pixel.");
+    }
+
+    // Renders the same image again on a single thread, and reports how many times faster the last render() was. The
+    // single threaded render comes second, so it runs code that the JIT has already compiled, which makes the speedup
+    // err on the low side rather than the high side. The speedup per core divides that by the number of threads that
+    // had a core of their own.
+    public void reportSpeedup(IAntiAliasing sampler, BufferedImage scratchImage) throws Exception {
+        final int w = scratchImage.getWidth();
+        final int h = scratchImage.getHeight();
+        int[] pixels = ((DataBufferInt)scratchImage.getRaster().getDataBuffer()).getData();
+        System.out.println("Rendering again on 1 thread to measure the speedup...");
+        long baselineNs = renderTiles(sampler, createTiles(w, h), pixels, w, 1);
+        double speedup = _elapsedNs > 0 ? (double)baselineNs / (double)_elapsedNs : 0.0;
+        int numCores = Math.min(_numThreads, Runtime.getRuntime().availableProcessors());
+        System.out.println("    The speedup is " + _decimalFormat.format(speedup) + " on " + _numThreads +
+                " threads (" + _decimalFormat.format(speedup / numCores) + " per core), against " +
+                (baselineNs / 1000000) + "ms on 1 thread.");
+    }
+
+    private static ArrayList<Tile> createTiles(int w, int h) {
+        ArrayList<Tile> tiles = new ArrayList<>();
+        for (int y = 0; y < h; y += TILE_SIZE) {
+            for (int x = 0; x < w; x += TILE_SIZE) {
+                tiles.add(new Tile(x, y, Math.min(TILE_SIZE, w - x), Math.min(TILE_SIZE, h - y)));
+            }
+        }
+        return tiles;
+    }
+
+    // Runs every pass over the tiles on a new pool of numThreads threads, and returns how long that took.
+    private long renderTiles(IAntiAliasing sampler, ArrayList<Tile> tiles, int[] pixels, int w, int numThreads)
+            throws Exception {
+        final long totalPixels = (long)pixels.length;
+        _completedPixels.set(0);
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            long startTimeNs = System.nanoTime();
+            int[] blockSizes = _progressive ? PROGRESSIVE_BLOCK_SIZES : new int[] { 1 };
+            for (int pass = 0; pass < blockSizes.length; ++pass) {
+                ForkJoinTask<Void> task = pool.submit(
+                        new TileTask(sampler, tiles, 0, tiles.size(), pixels, w, blockSizes[pass], pass == 0));
+                while (true) {
+                    try {
+                        task.get(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                        break;
+                    }
+                    catch (TimeoutException e) {
+                        long numCompletedPixels = _completedPixels.get();
+                        System.out.println("Completed " + numCompletedPixels + "/" + totalPixels + " pixels (" +
+                                (numCompletedPixels * 100 / totalPixels) + "%)");
+                    }
+                }
+            }
+            return System.nanoTime() - startTimeNs;
+        }
+        finally {
+            // Wait for the threads to finish, so that the next render's RenderMetrics.reset() drops their counters
+            pool.shutdown();
+            pool.awaitTermination(PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // The CPU utilisation is the total CPU time spent rendering tiles divided by the wall clock time, i.e. how many
+    // cores were kept busy on average. Dividing that by the thread count gives how busy each thread was. It isn't a
+    // speedup, as time-slicing, JIT compilation and GC all take CPU time away from the tiles. speedupBaseline=true
+    // measures that with reportSpeedup().
+    private void reportCpuUtilisation(long elapsedNs) {
+        double elapsedMs = elapsedNs / 1e6;
+        double utilisation = elapsedNs > 0 ? (double)_busyTimeNs.sum() / (double)elapsedNs : 0.0;
+        System.out.println("Render complete. " + (long)elapsedMs + "ms elapsed.");
+        System.out.println("    CPU utilisation is " + _decimalFormat.format(utilisation) + " cores on " + _numThreads +
+                " threads (" + _decimalFormat.format(utilisation / _numThreads) + " per thread).");
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// The scratch state used to trace rays on one thread: rays, hit records, vectors and traversal stacks that are reused
+// for every ray instead of being allocated and thrown away. Once a thread's context has been created, tracing a ray
+// doesn't allocate anything.
+//
+// A context must only ever be used by the thread that owns it. RayTracer hands out one per thread.
+public class TraceContext {
+    // The state for one level of recursion in RayTracer.traceRay(). Reflection and refraction rays trace the next
+    // level down, so each level needs its own.
+    public static class Frame {
+        public final IntersectResult _hit = new IntersectResult();
+        public final Ray _ray = new Ray(); // Reused for the reflection, refraction and shadow rays
+        public final Vector3 _origin = new Vector3();
+        public final Vector3 _direction = new Vector3();
+        public final Vector3 _reflection = new Vector3();
+        public final Vector3 _refraction = new Vector3();
+        public final Vector3 _ambient = new Vector3();
+        public final Vector3 _diffuse = new Vector3();
+        public final Vector3 _specular = new Vector3();
+        public final Vector3 _diffuseColour = new Vector3();
+        public final Vector3 _lightDirection = new Vector3();
+        public final Vector3 _reflectedLight = new Vector3();
+    }
+
+    // The object (and part of it) that last blocked a shadow ray towards each light, or -1. See SceneGraph.isOccluded().
+    public static class OccluderCache {
+        public final int[] _objects;
+        public final int[] _primitives;
+
+        public OccluderCache(int numLights) {
+            _objects = new int[numLights];
+            _primitives = new int[numLights];
+            Arrays.fill(_objects, -1);
+            Arrays.fill(_primitives, -1);
+        }
+    }
+
+    // The primary rays that RayTracer.traceRays() traces together, what they hit, and which of the hits the packets of
+    // shadow rays towards each light found to be shadowed. Bit i of a light's masks is for the i'th ray.
+    public static class Batch {
+        public final Ray[] _rays = new Ray[ShadowPacket.MAX_RAYS];
+        public final Vector3[] _colours = new Vector3[ShadowPacket.MAX_RAYS];
+        public final IntersectResult[] _hits = new IntersectResult[ShadowPacket.MAX_RAYS];
+        public final long[] _packetRays; // The hits whose shadow ray towards the light was in a packet
+        public final long[] _shadowedRays; // Those of them that were blocked
+        public final ShadowPacket _shadowPacket = new ShadowPacket();
+        public final Vector3 _origin = new Vector3();
+        public final Vector3 _lightDirection = new Vector3();
+
+        public Batch(int numLights) {
+            for (int i = 0; i < ShadowPacket.MAX_RAYS; ++i) {
+                _rays[i] = new Ray();
+                _colours[i] = new Vector3();
+                _hits[i] = new IntersectResult();
+            }
+            _packetRays = new long[numLights];
+            _shadowedRays = new long[numLights];
+        }
+    }
+
+    private final ArrayList<Frame> _frames;
+
+    public final Ray _primaryRay = new Ray();
+    public final Vector3 _sampleColour = new Vector3();
+    public final Vector3 _pixelColour = new Vector3(); // What IAntiAliasing.takeSample() returns
+    public final Ray _localRay = new Ray(); // A ray in the local coordinates of the object being tested
+    public final Ray _childRay = new Ray(); // A ray in the local coordinates of a part of that object
+    public final IntersectResult _childResult = new IntersectResult();
+    public final TexCoord _texCoord = new TexCoord(0.0, 0.0);
+    public final BarycentricCoords _barycentricCoords = new BarycentricCoords(0.0, 0.0, 0.0);
+    public final Vector3[] _faceVertices = { new Vector3(), new Vector3(), new Vector3() }; // A hit face's corners
+    public final TexCoord[] _faceTexCoords = { new TexCoord(0.0, 0.0), new TexCoord(0.0, 0.0), new TexCoord(0.0, 0.0) };
+    public final ObjectHierarchy.Query _objectQuery = new ObjectHierarchy.Query();
+    public final LinearBoundingVolumeHierarchy.TraversalStack _objectStack = new LinearBoundingVolumeHierarchy.TraversalStack();
+    public final BoundingVolumeHierarchy.TraceResult _meshTrace = new BoundingVolumeHierarchy.TraceResult();
+    public final LinearBoundingVolumeHierarchy.TraversalStack _meshStack = new LinearBoundingVolumeHierarchy.TraversalStack();
+    public final RenderMetrics.Counters _metrics;
+    public final OccluderCache _occluderCache;
+    public final Batch _batch;
+    public int _occluderPrimitive; // Set by Object.isOccluding()
+
+    public TraceContext(int maxDepth, int numLights, RenderMetrics.Counters metrics) {
+        _frames = new ArrayList<>();
+        _metrics = metrics;
+        _occluderCache = new OccluderCache(numLights);
+        _batch = new Batch(numLights);
+        getFrame(maxDepth);
+    }
+
+    public Frame getFrame(int depth) {
+        while (_frames.size() <= depth) {
+            _frames.add(new Frame());
+        }
+        return _frames.get(depth);
+    }
+}
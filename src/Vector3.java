@@ -55,6 +55,40 @@ public class Vector3 {
         return new Vector3(_x * value, _y * value, _z * value);
     }
 
+    // In-place versions of the operations above, for hot paths that reuse scratch vectors rather than allocating.
+    // They return this so they can be chained.
+    public Vector3 set(double x, double y, double z) {
+        _x = x;
+        _y = y;
+        _z = z;
+        return this;
+    }
+
+    public Vector3 set(Vector3 v) {
+        return set(v._x, v._y, v._z);
+    }
+
+    public Vector3 addInPlace(Vector3 v) {
+        return set(_x + v._x, _y + v._y, _z + v._z);
+    }
+
+    public Vector3 subtractInPlace(Vector3 v) {
+        return set(_x - v._x, _y - v._y, _z - v._z);
+    }
+
+    public Vector3 multiplyInPlace(Vector3 v) {
+        return set(_x * v._x, _y * v._y, _z * v._z);
+    }
+
+    public Vector3 multiplyInPlace(double value) {
+        return set(_x * value, _y * value, _z * value);
+    }
+
+    // this += v * value
+    public Vector3 addScaledInPlace(Vector3 v, double value) {
+        return set(_x + v._x * value, _y + v._y * value, _z + v._z * value);
+    }
+
     public Vector3 divide(double value) {
         if (value == 0.0) {
             return this;
@@ -72,29 +106,58 @@ public class Vector3 {
     }
 
     public Vector3 makeNormalised() {
+        return makeNormalised(new Vector3());
+    }
+
+    public Vector3 makeNormalised(Vector3 out) {
         double length = magnitude();
         if (length != 0.0) {
-            return new Vector3(_x / length, _y / length, _z / length);
+            return out.set(_x / length, _y / length, _z / length);
         }
-        return new Vector3();
+        return out.set(0.0, 0.0, 0.0);
     }
 
     public static Vector3 reflect(Vector3 incidentUnit, Vector3 normal) {
+        return reflect(incidentUnit, normal, new Vector3());
+    }
+
+    // The result is written to out, which may be the same object as either input.
+    public static Vector3 reflect(Vector3 incidentUnit, Vector3 normal, Vector3 out) {
         // https://math.stackexchange.com/questions/13261/how-to-get-a-reflection-vector
-        return incidentUnit.subtract(normal.multiply(2.0 * incidentUnit.dotProduct(normal)));
+        double scale = 2.0 * incidentUnit.dotProduct(normal);
+        return out.set(
+                incidentUnit._x - normal._x * scale,
+                incidentUnit._y - normal._y * scale,
+                incidentUnit._z - normal._z * scale);
     }
 
     public static Vector3 refract(Vector3 incidentUnit, Vector3 normal, double etaT, double etaI) {
+        return refract(incidentUnit, normal, etaT, etaI, new Vector3());
+    }
+
+    // The result is written to out, which may be the same object as either input.
+    public static Vector3 refract(Vector3 incidentUnit, Vector3 normal, double etaT, double etaI, Vector3 out) {
         // https://en.wikipedia.org/wiki/Snell%27s_law
         double incidentCos = - Math.max(-1.0, Math.min(1.0, incidentUnit.dotProduct(normal)));
+        double normalSign = 1.0;
         if (incidentCos < 0.0) {
-            return refract(incidentUnit, normal.negate(), etaI, etaT); // if the ray comes from the inside the object, swap the air and the media
+            // if the ray comes from the inside the object, flip the normal and swap the air and the media
+            incidentCos = -incidentCos;
+            normalSign = -1.0;
+            double temp = etaT;
+            etaT = etaI;
+            etaI = temp;
         }
         double eta = etaI / etaT;
         double k = 1 - eta * eta * (1 - incidentCos*incidentCos);
-        return k < 0.0 ?
-                new Vector3(1.0,0.0,0.0) :
-                incidentUnit.multiply(eta).add(normal.multiply(eta * incidentCos - Math.sqrt(k)));
+        if (k < 0.0) {
+            return out.set(1.0, 0.0, 0.0);
+        }
+        double scale = normalSign * (eta * incidentCos - Math.sqrt(k));
+        return out.set(
+                incidentUnit._x * eta + normal._x * scale,
+                incidentUnit._y * eta + normal._y * scale,
+                incidentUnit._z * eta + normal._z * scale);
     }
 
     public String toString() {
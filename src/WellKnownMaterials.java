@@ -1,4 +1,3 @@
-import javax.imageio.ImageIO;
 import java.io.File;
 import java.io.IOException;
 
@@ -12,7 +11,8 @@ public class WellKnownMaterials {
     public Material BlueBox;
     public Material OldPainting;
 
-    public WellKnownMaterials() throws IOException {
+    // The textures are loaded by assets in the background. Call assets.awaitTextures() before using the materials.
+    public WellKnownMaterials(AssetLoader assets) throws IOException {
         Glass = new Material("Glass");
         Glass.setDiffuseColour(new Vector3(0.5, 0.6, 0.7));
         Glass.setSpecularColour(new Vector3(0.8, 0.8, 0.8));
@@ -54,7 +54,7 @@ public class WellKnownMaterials {
         ShinyRed.setIndexOfRefraction(1.0);
 
         Mars = new Material("Mars");
-        Mars.setDiffuseTexture(ImageIO.read(new File("Mars.jpg")));
+        assets.loadTexture(new File("Mars.jpg"), Mars::setDiffuseTexture);
         Mars.setDiffuseColour(new Vector3(0.98, 0.97, 0.97));
         Mars.setSpecularColour(new Vector3(0.62, 0.62, 0.62));
         Mars.setAlbedo(0, 0.95);
@@ -65,7 +65,7 @@ public class WellKnownMaterials {
         Mars.setIndexOfRefraction(1.0);
 
         Crate = new Material("Crate");
-        Crate.setDiffuseTexture(ImageIO.read(new File("Crate.jpg")));
+        assets.loadTexture(new File("Crate.jpg"), Crate::setDiffuseTexture);
         Crate.setDiffuseColour(new Vector3(0.977, 0.977, 0.977));
         Crate.setSpecularColour(new Vector3(0.65, 0.65, 0.65));
         Crate.setAlbedo(0, 0.73);
@@ -86,7 +86,7 @@ public class WellKnownMaterials {
         BlueBox.setIndexOfRefraction(1.0);
 
         OldPainting = new Material("Crate");
-        OldPainting.setDiffuseTexture(ImageIO.read(new File("OldPainting.jpg")));
+        assets.loadTexture(new File("OldPainting.jpg"), OldPainting::setDiffuseTexture);
         OldPainting.setDiffuseColour(new Vector3(0.977, 0.977, 0.977));
         OldPainting.setSpecularColour(new Vector3(0.65, 0.65, 0.65));
         OldPainting.setAlbedo(0, 0.73);
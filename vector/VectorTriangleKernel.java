@@ -0,0 +1,169 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Tests a group of LeafTriangles.GROUP_SIZE triangles at once with the Vector API, one triangle per lane, or
+// LeafTriangles.GROUP_SIZE_FLOAT single precision triangles, as a vector of floats holds twice as many. Each lane does
+// the same arithmetic as ScalarTriangleKernel, in the same order, so the results are exactly the same. Lanes past the
+// end of the leaf are masked off. Only use this through ITriangleKernel.create().
+// https://openjdk.org/jeps/414
+public class VectorTriangleKernel implements ITriangleKernel {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_256;
+    private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_256;
+    private static final DoubleVector LANE_INDICES = DoubleVector.zero(SPECIES).addIndex(1); // 0, 1, 2, 3
+    private static final FloatVector LANE_INDICES_FLOAT = FloatVector.zero(FLOAT_SPECIES).addIndex(1); // 0, 1, ... 7
+
+    public VectorTriangleKernel() {
+        if (SPECIES.length() != LeafTriangles.GROUP_SIZE || FLOAT_SPECIES.length() != LeafTriangles.GROUP_SIZE_FLOAT) {
+            throw new IllegalStateException("A group of triangles doesn't fit the vector species");
+        }
+    }
+
+    @Override
+    public String getName() { return "vector"; }
+
+    @Override
+    public int intersect(LeafTriangles triangles, int offset, int count, Vector3 origin, Vector3 direction, double closest,
+                         double[] distance) {
+        int hitSlot = -1;
+        distance[0] = closest;
+        final boolean singlePrecision = triangles.isSinglePrecision();
+        final int groupSize = singlePrecision ? FLOAT_SPECIES.length() : SPECIES.length();
+        for (int slot = offset; slot < offset + count; slot += groupSize) {
+            int lane = singlePrecision
+                    ? intersectGroupFloat(triangles, slot, offset + count, origin, direction, distance[0], true, distance)
+                    : intersectGroup(triangles, slot, offset + count, origin, direction, distance[0], true, distance);
+            if (lane >= 0) {
+                hitSlot = slot + lane;
+            }
+        }
+        return hitSlot;
+    }
+
+    @Override
+    public int findOccluder(LeafTriangles triangles, int offset, int count, Vector3 origin, Vector3 direction, double tMax) {
+        final boolean singlePrecision = triangles.isSinglePrecision();
+        final int groupSize = singlePrecision ? FLOAT_SPECIES.length() : SPECIES.length();
+        for (int slot = offset; slot < offset + count; slot += groupSize) {
+            int lane = singlePrecision
+                    ? intersectGroupFloat(triangles, slot, offset + count, origin, direction, tMax, false, null)
+                    : intersectGroup(triangles, slot, offset + count, origin, direction, tMax, false, null);
+            if (lane >= 0) {
+                return slot + lane;
+            }
+        }
+        return -1;
+    }
+
+    // Tests the group of triangles starting at slot, leaving out any at or past end, and returns the lane of the
+    // nearest triangle hit closer than tMax, whose distance is written to distance[0], or -1 if none is. If nearest is
+    // false it returns the first lane hit instead, and distance isn't used. The vectors never leave this method, as
+    // passing one to or from a method that isn't inlined means allocating it.
+    private static int intersectGroup(LeafTriangles triangles, int slot, int end, Vector3 origin, Vector3 direction,
+                                      double tMax, boolean nearest, double[] distance) {
+        final double dx = direction._x, dy = direction._y, dz = direction._z;
+        DoubleVector e0x = load(triangles, LeafTriangles.E0X, slot);
+        DoubleVector e0y = load(triangles, LeafTriangles.E0Y, slot);
+        DoubleVector e0z = load(triangles, LeafTriangles.E0Z, slot);
+        DoubleVector e1x = load(triangles, LeafTriangles.E1X, slot);
+        DoubleVector e1y = load(triangles, LeafTriangles.E1Y, slot);
+        DoubleVector e1z = load(triangles, LeafTriangles.E1Z, slot);
+
+        DoubleVector hx = e1z.mul(dy).sub(e1y.mul(dz));
+        DoubleVector hy = e1x.mul(dz).sub(e1z.mul(dx));
+        DoubleVector hz = e1y.mul(dx).sub(e1x.mul(dy));
+        DoubleVector dot = e0x.mul(hx).add(e0y.mul(hy)).add(e0z.mul(hz));
+        VectorMask<Double> hits = dot.abs().compare(VectorOperators.GE, 1e-3); // Otherwise the line is parallel
+        hits = hits.and(LANE_INDICES.compare(VectorOperators.LT, (double)(end - slot)));
+
+        DoubleVector f = DoubleVector.broadcast(SPECIES, 1.0).div(dot);
+
+        DoubleVector sx = DoubleVector.broadcast(SPECIES, origin._x).sub(load(triangles, LeafTriangles.V0X, slot));
+        DoubleVector sy = DoubleVector.broadcast(SPECIES, origin._y).sub(load(triangles, LeafTriangles.V0Y, slot));
+        DoubleVector sz = DoubleVector.broadcast(SPECIES, origin._z).sub(load(triangles, LeafTriangles.V0Z, slot));
+        DoubleVector u = f.mul(sx.mul(hx).add(sy.mul(hy)).add(sz.mul(hz)));
+        hits = hits.and(u.compare(VectorOperators.GE, 0.0)).and(u.compare(VectorOperators.LE, 1.0));
+
+        DoubleVector qx = sy.mul(e0z).sub(sz.mul(e0y));
+        DoubleVector qy = sz.mul(e0x).sub(sx.mul(e0z));
+        DoubleVector qz = sx.mul(e0y).sub(sy.mul(e0x));
+        DoubleVector v = f.mul(qx.mul(dx).add(qy.mul(dy)).add(qz.mul(dz)));
+        hits = hits.and(v.compare(VectorOperators.GE, 0.0)).and(u.add(v).compare(VectorOperators.LE, 1.0));
+
+        DoubleVector t = f.mul(e1x.mul(qx).add(e1y.mul(qy)).add(e1z.mul(qz)));
+        hits = hits.and(t.compare(VectorOperators.GT, 1e-3)).and(t.compare(VectorOperators.LT, tMax));
+        if (!hits.anyTrue()) {
+            return -1;
+        }
+        if (!nearest) {
+            return hits.firstTrue();
+        }
+        // The nearest lane, and the first of them if several are as near
+        DoubleVector hitDistances = DoubleVector.broadcast(SPECIES, Double.POSITIVE_INFINITY).blend(t, hits);
+        distance[0] = hitDistances.reduceLanes(VectorOperators.MIN);
+        return hitDistances.compare(VectorOperators.EQ, distance[0]).firstTrue();
+    }
+
+    // The same for a group of single precision triangles, with the edges computed from the vertices as
+    // ScalarTriangleKernel does. A float distance is less than tMax exactly when it's less than tMax rounded up to a
+    // float, so the test against it can be done in floats too.
+    private static int intersectGroupFloat(LeafTriangles triangles, int slot, int end, Vector3 origin, Vector3 direction,
+                                           double tMax, boolean nearest, double[] distance) {
+        final float dx = (float)direction._x, dy = (float)direction._y, dz = (float)direction._z;
+        FloatVector v0x = loadFloat(triangles, LeafTriangles.V0X, slot);
+        FloatVector v0y = loadFloat(triangles, LeafTriangles.V0Y, slot);
+        FloatVector v0z = loadFloat(triangles, LeafTriangles.V0Z, slot);
+        FloatVector e0x = loadFloat(triangles, LeafTriangles.V1X, slot).sub(v0x);
+        FloatVector e0y = loadFloat(triangles, LeafTriangles.V1Y, slot).sub(v0y);
+        FloatVector e0z = loadFloat(triangles, LeafTriangles.V1Z, slot).sub(v0z);
+        FloatVector e1x = loadFloat(triangles, LeafTriangles.V2X, slot).sub(v0x);
+        FloatVector e1y = loadFloat(triangles, LeafTriangles.V2Y, slot).sub(v0y);
+        FloatVector e1z = loadFloat(triangles, LeafTriangles.V2Z, slot).sub(v0z);
+
+        FloatVector hx = e1z.mul(dy).sub(e1y.mul(dz));
+        FloatVector hy = e1x.mul(dz).sub(e1z.mul(dx));
+        FloatVector hz = e1y.mul(dx).sub(e1x.mul(dy));
+        FloatVector dot = e0x.mul(hx).add(e0y.mul(hy)).add(e0z.mul(hz));
+        VectorMask<Float> hits = dot.abs().compare(VectorOperators.GE, 1e-3f); // Otherwise the line is parallel
+        hits = hits.and(LANE_INDICES_FLOAT.compare(VectorOperators.LT, (float)(end - slot)));
+
+        FloatVector f = FloatVector.broadcast(FLOAT_SPECIES, 1.0f).div(dot);
+
+        FloatVector sx = FloatVector.broadcast(FLOAT_SPECIES, (float)origin._x).sub(v0x);
+        FloatVector sy = FloatVector.broadcast(FLOAT_SPECIES, (float)origin._y).sub(v0y);
+        FloatVector sz = FloatVector.broadcast(FLOAT_SPECIES, (float)origin._z).sub(v0z);
+        FloatVector u = f.mul(sx.mul(hx).add(sy.mul(hy)).add(sz.mul(hz)));
+        hits = hits.and(u.compare(VectorOperators.GE, 0.0f)).and(u.compare(VectorOperators.LE, 1.0f));
+
+        FloatVector qx = sy.mul(e0z).sub(sz.mul(e0y));
+        FloatVector qy = sz.mul(e0x).sub(sx.mul(e0z));
+        FloatVector qz = sx.mul(e0y).sub(sy.mul(e0x));
+        FloatVector v = f.mul(qx.mul(dx).add(qy.mul(dy)).add(qz.mul(dz)));
+        hits = hits.and(v.compare(VectorOperators.GE, 0.0f)).and(u.add(v).compare(VectorOperators.LE, 1.0f));
+
+        FloatVector t = f.mul(e1x.mul(qx).add(e1y.mul(qy)).add(e1z.mul(qz)));
+        hits = hits.and(t.compare(VectorOperators.GT, 1e-3f))
+                .and(t.compare(VectorOperators.LT, LinearBoundingVolumeHierarchy.roundUp(tMax)));
+        if (!hits.anyTrue()) {
+            return -1;
+        }
+        if (!nearest) {
+            return hits.firstTrue();
+        }
+        FloatVector hitDistances = FloatVector.broadcast(FLOAT_SPECIES, Float.POSITIVE_INFINITY).blend(t, hits);
+        float nearestDistance = hitDistances.reduceLanes(VectorOperators.MIN);
+        distance[0] = nearestDistance;
+        return hitDistances.compare(VectorOperators.EQ, nearestDistance).firstTrue();
+    }
+
+    // These are small enough to always be inlined into intersectGroup() and intersectGroupFloat().
+    private static DoubleVector load(LeafTriangles triangles, int component, int slot) {
+        return DoubleVector.fromArray(SPECIES, triangles.getComponents(), component * triangles._stride + slot);
+    }
+
+    private static FloatVector loadFloat(LeafTriangles triangles, int component, int slot) {
+        return FloatVector.fromArray(FLOAT_SPECIES, triangles.getComponentsFloat(), component * triangles._stride + slot);
+    }
+}